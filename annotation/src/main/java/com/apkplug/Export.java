@@ -24,4 +24,49 @@ import java.lang.annotation.Target;
 
 @Target(ElementType.METHOD) @Retention(RetentionPolicy.CLASS) public @interface Export {
 
+  /**
+   * If true, the generated bundle activator invokes this method through the proxy during
+   * {@code warmUp(Executor)}. Only methods without parameters can be warm-up calls.
+   */
+  boolean warmUp() default false;
+
+  /**
+   * Marks the method as a pure function of its arguments: if greater than 0 the generated proxy
+   * memoizes up to this many results and concurrent calls with equal arguments run the method only
+   * once. Only methods with a return value and without array parameters can be cached, arguments
+   * are compared with {@code equals()}.
+   * <p>
+   * The size is rounded up to a power of two and split into sets of four entries, each argument
+   * list maps to one set. When a fifth distinct argument list of a set is stored, it replaces an
+   * entry that hasn't been hit recently, so a hot working set larger than four keys per set can
+   * still evict itself. Pick a size well above the number of distinct arguments you expect, or
+   * bound the staleness with {@link #cacheTtlMillis()}.
+   */
+  int cacheSize() default 0;
+
+  /**
+   * How long a memoized result stays valid, 0 means until it is evicted by another one
+   */
+  long cacheTtlMillis() default 0;
+
+  /**
+   * Marks the method as not modifying the service, it runs under the read lock of a
+   * {@link Service.Concurrency#READ_WRITE} service
+   */
+  boolean readOnly() default false;
+
+  /**
+   * Name of the parameter that selects the lock of a {@link Service.Concurrency#STRIPED} service.
+   * <p>
+   * Gradle's incremental compilation reads unchanged services from their class files, which only
+   * contain the parameter names if the module is compiled with {@code -g}. Without them the name
+   * doesn't resolve and the generated interface and proxy call the parameters arg0, arg1 and so on.
+   */
+  String stripeKey() default "";
+
+  /**
+   * If greater than 0, at most this many calls of this method run at the same time, further calls
+   * fail with a {@link java.util.concurrent.RejectedExecutionException}
+   */
+  int maxConcurrent() default 0;
 }
@@ -23,6 +23,14 @@ import java.lang.annotation.Target;
 
 /**
  * Annotation to indicate classes that are part of a certain factory
+ * <p>
+ * Besides {@code create(String)} the generated factory has an int constant per id with
+ * {@code create(int)}, {@code create(Class)} and a nested {@code Id} enum with {@code create(Id)}.
+ * Factories with more than 2,000 products don't get the {@code Id} enum and {@code create(Id)},
+ * because the enum's static initializer would exceed the JVM's method size limit. Code that has
+ * to keep compiling while a factory grows should use the int constants. Ids that map to the same
+ * constant name, like "dish-a" and "dish_a", are told apart by a number: {@code DISH_A} and
+ * {@code DISH_A2}, in the order the products are processed.
  *
  * @author Hannes Dorfmann
  */
@@ -37,4 +45,41 @@ import java.lang.annotation.Target;
    * The identifier for determining which item should be instantiated
    */
   String id();
+
+  /**
+   * The lifetime of the instances handed out by the generated factory
+   */
+  Scope scope() default Scope.PROTOTYPE;
+
+  /**
+   * The maximum number of idle instances kept around if {@link #scope()} is {@link Scope#POOLED}
+   */
+  int poolSize() default 8;
+
+  /**
+   * The name of a public no-arg method that is invoked on a {@link Scope#POOLED} instance before it
+   * goes back into the pool. Empty means the instance is pooled as it is.
+   */
+  String reset() default "";
+
+  /**
+   * The lifetime of a factory product
+   */
+  enum Scope {
+
+    /**
+     * Every create() call returns a new instance
+     */
+    PROTOTYPE,
+
+    /**
+     * The instance is created lazily on the first create() call and shared afterwards
+     */
+    SINGLETON,
+
+    /**
+     * Instances are recycled: create() takes one from a bounded pool and release() puts it back
+     */
+    POOLED
+  }
 }
@@ -21,7 +21,15 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
-
+/**
+ * Declares the services a class annotated with {@link Service} depends on. The generated bundle
+ * activator starts a service only after the services it depends on have been registered and
+ * starts services that don't depend on each other in parallel. Cycles are rejected at compile time.
+ */
 @Target(ElementType.TYPE) @Retention(RetentionPolicy.CLASS) public @interface Provided {
 
+  /**
+   * The classes annotated with {@link Service} in the same bundle this service depends on
+   */
+  Class<?>[] value() default {};
 }
@@ -24,4 +24,150 @@ import java.lang.annotation.Target;
 
 @Target(ElementType.TYPE) @Retention(RetentionPolicy.CLASS) public @interface Service {
   String name();
+
+  /**
+   * If true, the generated proxy records call counts, errors and a latency histogram for every
+   * exported method and the generated bundle activator registers them as a
+   * {@link com.apkplug.runtime.ServiceStats} service
+   */
+  boolean metrics() default false;
+
+  /**
+   * If true, the processor also generates an asynchronous variant of the service interface (the
+   * service name with an "Async" suffix) whose methods return a {@link java.util.concurrent.Future},
+   * plus a proxy that runs the calls on an executor. The generated bundle activator registers it
+   * next to the blocking service.
+   */
+  boolean async() default false;
+
+  /**
+   * If greater than 0, calls of void methods are not run on the caller's thread: the generated
+   * proxy queues up to this many of them in a {@link com.apkplug.runtime.Mailbox}, which drains
+   * them in order on a pool shared by all mailboxes. The generated activator drains the mailbox in
+   * stop(), lazy and bundle scoped services when the proxy is released.
+   */
+  int mailboxCapacity() default 0;
+
+  /**
+   * What the proxy does with a void call if the mailbox is full
+   */
+  Overflow overflow() default Overflow.BLOCK;
+
+  /**
+   * How the generated proxy serializes calls into the implementation
+   */
+  Concurrency concurrency() default Concurrency.NONE;
+
+  /**
+   * Number of locks used by {@link Concurrency#STRIPED}
+   */
+  int stripes() default 16;
+
+  /**
+   * If greater than 0, at most this many calls run through the proxy at the same time, further
+   * calls fail with a {@link java.util.concurrent.RejectedExecutionException}. A method's own
+   * {@link Export#maxConcurrent()} takes precedence.
+   */
+  int maxConcurrent() default 0;
+
+  /**
+   * If true, the generated bundle activator doesn't create the implementation and its proxy in
+   * start() but registers a generated {@link org.osgi.framework.ServiceFactory} that creates them
+   * when the first consumer gets the service and drops them when the last one ungets it
+   */
+  boolean lazy() default false;
+
+  /**
+   * Which consumers share an implementation and its proxy. Call statistics are shared by all
+   * instances.
+   */
+  Scope scope() default Scope.SINGLETON;
+
+  /**
+   * The service.ranking the generated bundle activator registers the service with. Lookups prefer
+   * the service with the highest ranking.
+   */
+  int ranking() default 0;
+
+  /**
+   * If true, the processor also generates a client and a server stub (the service name with a
+   * "RemoteClient" and "RemoteServer" suffix) that call the service in another process over a
+   * {@link com.apkplug.runtime.Transport}. Exported methods can only take and return primitives,
+   * String, byte[] and {@link java.nio.ByteBuffer}.
+   */
+  boolean remote() default false;
+
+  /**
+   * If true, the processor also generates a {@link com.apkplug.runtime.Dispatcher} (the service
+   * name with a "Dispatcher" suffix) that calls the exported methods by id, so that they can be
+   * invoked dynamically without reflection
+   */
+  boolean dispatcher() default false;
+
+  /**
+   * Backpressure policy of a full mailbox
+   */
+  enum Overflow {
+
+    /**
+     * The caller waits until there is room again
+     */
+    BLOCK,
+
+    /**
+     * The call is silently discarded
+     */
+    DROP,
+
+    /**
+     * The call is run on the caller's thread
+     */
+    CALLER_RUNS,
+
+    /**
+     * The call fails with a {@link java.util.concurrent.RejectedExecutionException}
+     */
+    FAIL
+  }
+
+  /**
+   * Sharing policy of the service instances
+   */
+  enum Scope {
+
+    /**
+     * All consumers share one implementation
+     */
+    SINGLETON,
+
+    /**
+     * Every consuming bundle gets its own implementation, created by a generated
+     * {@link org.osgi.framework.ServiceFactory} when the bundle gets the service and dropped when it
+     * ungets it. Implies {@link Service#lazy()}.
+     */
+    BUNDLE
+  }
+
+  /**
+   * Locking policy of the generated proxy
+   */
+  enum Concurrency {
+
+    /**
+     * Calls are passed through, the implementation has to be thread safe on its own
+     */
+    NONE,
+
+    /**
+     * Methods marked with {@link Export#readOnly()} share a read lock, all others take the write
+     * lock
+     */
+    READ_WRITE,
+
+    /**
+     * Calls lock the stripe selected by the hash of their {@link Export#stripeKey()} parameter,
+     * calls of methods without a stripe key lock all stripes
+     */
+    STRIPED
+  }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the generated asynchronous service proxies of services annotated with
+ * {@code @Service(async = true)}
+ */
+public final class AsyncExecutors {
+
+  private static volatile Executor shared;
+
+  private AsyncExecutors() {
+  }
+
+  /**
+   * The executor used when none has been configured: a virtual thread per task if the JVM supports
+   * them, a {@link #bounded(int, int) bounded pool} with one thread per core otherwise.
+   */
+  public static Executor shared() {
+    Executor executor = shared;
+    if (executor == null) {
+      synchronized (AsyncExecutors.class) {
+        executor = shared;
+        if (executor == null) {
+          executor = virtualThreads();
+          if (executor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            executor = bounded(threads, threads * 64);
+          }
+          shared = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * Creates a pool of daemon threads with a bounded queue. If the queue is full the calling thread
+   * runs the task itself, which slows down producers instead of dropping calls.
+   */
+  public static ExecutorService bounded(int threads, int queueCapacity) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), new DaemonThreadFactory("apkplug-async"),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * @return an executor that starts a virtual thread per task or null if the JVM doesn't support
+   * virtual threads
+   */
+  public static ExecutorService virtualThreads() {
+    try {
+      Method factory =
+          java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Creates named daemon threads, so that pools never keep a process alive
+   */
+  static final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,616 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The services and factory products of one or more modules, as written by the processor to
+ * {@code META-INF/apkplug/<module>.index}. A host can find out which bundle activator provides a
+ * service, and which classes implement it, without loading any of them. Indexes of several
+ * modules are merged into {@link #APP_INDEX} at build time by {@code gradle/apkplug-index.gradle}
+ * or, at the cost of incremental compilation, if the processor of the app module runs with
+ * {@code -Aapkplug.mergeIndexes=<module>,<module>...}.
+ *
+ * The index is a UTF-8 text file with one tab separated record per line:
+ *
+ * <pre>
+ * apkplug-index  1
+ * service  activator  name  interface  implementation  proxy  ranking  flags
+ * method   interface  signature  return type
+ * factory  factory  product type
+ * product  factory  index  id  class
+ * </pre>
+ *
+ * All class names are binary names, as expected by {@link ClassLoader#loadClass(String)}.
+ */
+public final class BundleIndex {
+
+  public static final String DIRECTORY = "META-INF/apkplug/";
+  public static final String SUFFIX = ".index";
+
+  /**
+   * The merged index of all modules of an app
+   */
+  public static final String APP_INDEX = DIRECTORY + "app" + SUFFIX;
+
+  public static final String FLAG_LAZY = "lazy";
+  public static final String FLAG_BUNDLE_SCOPE = "bundle-scope";
+  public static final String FLAG_ASYNC = "async";
+  public static final String FLAG_METRICS = "metrics";
+  public static final String FLAG_REMOTE = "remote";
+  public static final String FLAG_DISPATCHER = "dispatcher";
+
+  private static final String HEADER = "apkplug-index";
+  private static final int VERSION = 1;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Map<String, Service> services = new LinkedHashMap<String, Service>();
+  private final Map<String, Factory> factories = new LinkedHashMap<String, Factory>();
+
+  /**
+   * Reads the index of the given module
+   *
+   * @return the index or null if the module has none
+   */
+  public static BundleIndex load(ClassLoader classLoader, String module) throws IOException {
+    return load(classLoader.getResources(DIRECTORY + module + SUFFIX));
+  }
+
+  /**
+   * Reads the merged index of the app
+   *
+   * @return the index or null if the app has none
+   */
+  public static BundleIndex load(ClassLoader classLoader) throws IOException {
+    return load(classLoader.getResources(APP_INDEX));
+  }
+
+  private static BundleIndex load(Enumeration<URL> resources) throws IOException {
+    BundleIndex index = null;
+    while (resources.hasMoreElements()) {
+      InputStream in = resources.nextElement().openStream();
+      try {
+        BundleIndex resourceIndex = read(in);
+        if (index == null) {
+          index = resourceIndex;
+        } else {
+          index.merge(resourceIndex);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Parses an index, records of unknown types are skipped
+   *
+   * @throws IOException if the index is malformed or of an unsupported version
+   */
+  public static BundleIndex read(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+    String header = reader.readLine();
+    if (header == null) {
+      throw new IOException("Empty index");
+    }
+    String[] headerFields = split(header);
+    if (headerFields.length < 2 || !HEADER.equals(headerFields[0])) {
+      throw new IOException("Not an index: " + header);
+    }
+    if (Integer.parseInt(headerFields[1]) > VERSION) {
+      throw new IOException("Unsupported index version: " + headerFields[1]);
+    }
+
+    // Methods and products refer to their service or factory, which are built at the end
+    List<String[]> serviceRecords = new ArrayList<String[]>();
+    List<String[]> factoryRecords = new ArrayList<String[]>();
+    Map<String, List<Method>> methods = new LinkedHashMap<String, List<Method>>();
+    Map<String, List<Product>> products = new LinkedHashMap<String, List<Product>>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.length() == 0) {
+        continue;
+      }
+      String[] fields = split(line);
+      if ("service".equals(fields[0])) {
+        checkFields(fields, 8, line);
+        serviceRecords.add(fields);
+      } else if ("method".equals(fields[0])) {
+        checkFields(fields, 4, line);
+        listOf(methods, fields[1]).add(new Method(fields[2], fields[3]));
+      } else if ("factory".equals(fields[0])) {
+        checkFields(fields, 3, line);
+        factoryRecords.add(fields);
+      } else if ("product".equals(fields[0])) {
+        checkFields(fields, 5, line);
+        listOf(products, fields[1]).add(
+            new Product(Integer.parseInt(fields[2]), fields[3], fields[4]));
+      }
+    }
+
+    BundleIndex index = new BundleIndex();
+    for (String[] fields : serviceRecords) {
+      Set<String> flags = new LinkedHashSet<String>();
+      if (!"-".equals(fields[7])) {
+        Collections.addAll(flags, fields[7].split(","));
+      }
+      List<Method> serviceMethods = methods.get(fields[3]);
+      index.addService(new Service(fields[1], fields[2], fields[3], fields[4], fields[5],
+          Integer.parseInt(fields[6]), flags,
+          serviceMethods != null ? serviceMethods : Collections.<Method>emptyList()));
+    }
+    for (String[] fields : factoryRecords) {
+      List<Product> factoryProducts = products.get(fields[1]);
+      index.addFactory(new Factory(fields[1], fields[2],
+          factoryProducts != null ? factoryProducts : Collections.<Product>emptyList()));
+    }
+    return index;
+  }
+
+  private static <T> List<T> listOf(Map<String, List<T>> map, String key) {
+    List<T> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<T>();
+      map.put(key, list);
+    }
+    return list;
+  }
+
+  private static void checkFields(String[] fields, int count, String line) throws IOException {
+    if (fields.length < count) {
+      throw new IOException("Malformed record: " + line);
+    }
+  }
+
+  /**
+   * Adds a service
+   *
+   * @throws IllegalArgumentException if a different service with the same interface is present
+   */
+  public void addService(Service service) {
+    Service existing = services.get(service.getInterfaceName());
+    if (existing != null && !existing.equals(service)) {
+      throw new IllegalArgumentException("Conflict: " + service.getInterfaceName()
+          + " is implemented by " + existing.getImplementation() + " and "
+          + service.getImplementation());
+    }
+    services.put(service.getInterfaceName(), service);
+  }
+
+  /**
+   * Adds a factory
+   *
+   * @throws IllegalArgumentException if a different factory with the same name is present
+   */
+  public void addFactory(Factory factory) {
+    Factory existing = factories.get(factory.getClassName());
+    if (existing != null && !existing.equals(factory)) {
+      throw new IllegalArgumentException("Conflict: " + factory.getClassName()
+          + " is generated by more than one module");
+    }
+    factories.put(factory.getClassName(), factory);
+  }
+
+  /**
+   * Adds all services and factories of the given index to this one
+   *
+   * @throws IllegalArgumentException if both contain different entries for the same service or
+   * factory
+   */
+  public void merge(BundleIndex other) {
+    for (Service service : other.services.values()) {
+      addService(service);
+    }
+    for (Factory factory : other.factories.values()) {
+      addFactory(factory);
+    }
+  }
+
+  public boolean isEmpty() {
+    return services.isEmpty() && factories.isEmpty();
+  }
+
+  /**
+   * @return the services of all bundles
+   */
+  public List<Service> getServices() {
+    return Collections.unmodifiableList(new ArrayList<Service>(services.values()));
+  }
+
+  /**
+   * @param interfaceName the binary name of the service interface, which is also the name the
+   * service is registered under
+   * @return the service or null if no bundle in the index provides it
+   */
+  public Service getService(String interfaceName) {
+    return services.get(interfaceName);
+  }
+
+  /**
+   * @return the binary names of the bundle activators that provide services
+   */
+  public Set<String> getActivators() {
+    Set<String> activators = new LinkedHashSet<String>();
+    for (Service service : services.values()) {
+      activators.add(service.getActivator());
+    }
+    return Collections.unmodifiableSet(activators);
+  }
+
+  public List<Factory> getFactories() {
+    return Collections.unmodifiableList(new ArrayList<Factory>(factories.values()));
+  }
+
+  /**
+   * @return the factory or null if it isn't in the index
+   */
+  public Factory getFactory(String className) {
+    return factories.get(className);
+  }
+
+  public void write(OutputStream out) throws IOException {
+    Writer writer = new OutputStreamWriter(out, UTF_8);
+    writer.write(HEADER + "\t" + VERSION + "\n");
+    for (Service service : services.values()) {
+      StringBuilder flags = new StringBuilder();
+      for (String flag : service.getFlags()) {
+        flags.append(flags.length() == 0 ? "" : ",").append(flag);
+      }
+      writeRecord(writer, "service", service.getActivator(), service.getName(),
+          service.getInterfaceName(), service.getImplementation(), service.getProxy(),
+          String.valueOf(service.getRanking()), flags.length() == 0 ? "-" : flags.toString());
+      for (Method method : service.getMethods()) {
+        writeRecord(writer, "method", service.getInterfaceName(), method.getSignature(),
+            method.getReturnType());
+      }
+    }
+    for (Factory factory : factories.values()) {
+      writeRecord(writer, "factory", factory.getClassName(), factory.getProductType());
+      for (Product product : factory.getProducts()) {
+        writeRecord(writer, "product", factory.getClassName(), String.valueOf(product.getIndex()),
+            product.getId(), product.getClassName());
+      }
+    }
+    writer.flush();
+  }
+
+  private static void writeRecord(Writer writer, String... fields) throws IOException {
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0) {
+        writer.write('\t');
+      }
+      writer.write(escape(fields[i]));
+    }
+    writer.write('\n');
+  }
+
+  /**
+   * Factory ids are arbitrary strings, tabs, line breaks and backslashes are escaped
+   */
+  private static String escape(String field) {
+    StringBuilder escaped = null;
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      String replacement = c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r"
+          : c == '\\' ? "\\\\" : null;
+      if (replacement != null && escaped == null) {
+        escaped = new StringBuilder(field.substring(0, i));
+      }
+      if (escaped != null) {
+        escaped.append(replacement != null ? replacement : String.valueOf(c));
+      }
+    }
+    return escaped != null ? escaped.toString() : field;
+  }
+
+  private static String[] split(String line) {
+    String[] fields = line.split("\t", -1);
+    for (int i = 0; i < fields.length; i++) {
+      if (fields[i].indexOf('\\') >= 0) {
+        fields[i] = unescape(fields[i]);
+      }
+    }
+    return fields;
+  }
+
+  private static String unescape(String field) {
+    StringBuilder unescaped = new StringBuilder(field.length());
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\' && i + 1 < field.length()) {
+        char next = field.charAt(++i);
+        unescaped.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        unescaped.append(c);
+      }
+    }
+    return unescaped.toString();
+  }
+
+  @Override public String toString() {
+    return "BundleIndex[services=" + services.keySet() + ", factories=" + factories.keySet() + "]";
+  }
+
+  /**
+   * A service as registered by a generated bundle activator
+   */
+  public static final class Service {
+    private final String activator;
+    private final String name;
+    private final String interfaceName;
+    private final String implementation;
+    private final String proxy;
+    private final int ranking;
+    private final Set<String> flags;
+    private final List<Method> methods;
+
+    public Service(String activator, String name, String interfaceName, String implementation,
+        String proxy, int ranking, Set<String> flags, List<Method> methods) {
+      this.activator = activator;
+      this.name = name;
+      this.interfaceName = interfaceName;
+      this.implementation = implementation;
+      this.proxy = proxy;
+      this.ranking = ranking;
+      this.flags = Collections.unmodifiableSet(new LinkedHashSet<String>(flags));
+      this.methods = Collections.unmodifiableList(new ArrayList<Method>(methods));
+    }
+
+    /**
+     * The bundle activator that registers the service
+     */
+    public String getActivator() {
+      return activator;
+    }
+
+    /**
+     * The name as specified in {@code @Service(name = ...)}
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * The generated service interface
+     */
+    public String getInterfaceName() {
+      return interfaceName;
+    }
+
+    /**
+     * The class annotated with {@code @Service}
+     */
+    public String getImplementation() {
+      return implementation;
+    }
+
+    /**
+     * The generated proxy
+     */
+    public String getProxy() {
+      return proxy;
+    }
+
+    public int getRanking() {
+      return ranking;
+    }
+
+    /**
+     * E.g. {@link #FLAG_LAZY} if the service is only created on first use
+     */
+    public Set<String> getFlags() {
+      return flags;
+    }
+
+    public boolean hasFlag(String flag) {
+      return flags.contains(flag);
+    }
+
+    /**
+     * The exported methods, in declaration order
+     */
+    public List<Method> getMethods() {
+      return methods;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Service)) {
+        return false;
+      }
+      Service other = (Service) o;
+      return activator.equals(other.activator) && name.equals(other.name)
+          && interfaceName.equals(other.interfaceName)
+          && implementation.equals(other.implementation) && proxy.equals(other.proxy)
+          && ranking == other.ranking && flags.equals(other.flags)
+          && methods.equals(other.methods);
+    }
+
+    @Override public int hashCode() {
+      return interfaceName.hashCode();
+    }
+
+    @Override public String toString() {
+      return name + " (" + interfaceName + ") in " + activator;
+    }
+  }
+
+  /**
+   * An exported method of a service
+   */
+  public static final class Method {
+    private final String signature;
+    private final String returnType;
+
+    public Method(String signature, String returnType) {
+      this.signature = signature;
+      this.returnType = returnType;
+    }
+
+    /**
+     * E.g. "add(int,int)"
+     */
+    public String getSignature() {
+      return signature;
+    }
+
+    public String getReturnType() {
+      return returnType;
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof Method && signature.equals(((Method) o).signature)
+          && returnType.equals(((Method) o).returnType);
+    }
+
+    @Override public int hashCode() {
+      return signature.hashCode();
+    }
+
+    @Override public String toString() {
+      return returnType + " " + signature;
+    }
+  }
+
+  /**
+   * A generated factory and its products
+   */
+  public static final class Factory {
+    private final String className;
+    private final String productType;
+    private final List<Product> products;
+
+    public Factory(String className, String productType, List<Product> products) {
+      this.className = className;
+      this.productType = productType;
+      this.products = Collections.unmodifiableList(new ArrayList<Product>(products));
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    /**
+     * The type specified in {@code @Factory(type = ...)}
+     */
+    public String getProductType() {
+      return productType;
+    }
+
+    /**
+     * The products, ordered by their index
+     */
+    public List<Product> getProducts() {
+      return products;
+    }
+
+    /**
+     * @return the product with the given id or null
+     */
+    public Product getProduct(String id) {
+      for (Product product : products) {
+        if (product.getId().equals(id)) {
+          return product;
+        }
+      }
+      return null;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Factory)) {
+        return false;
+      }
+      Factory other = (Factory) o;
+      return className.equals(other.className) && productType.equals(other.productType)
+          && products.equals(other.products);
+    }
+
+    @Override public int hashCode() {
+      return className.hashCode();
+    }
+
+    @Override public String toString() {
+      return className + products;
+    }
+  }
+
+  /**
+   * A product of a generated factory
+   */
+  public static final class Product {
+    private final int index;
+    private final String id;
+    private final String className;
+
+    public Product(int index, String id, String className) {
+      this.index = index;
+      this.id = id;
+      this.className = className;
+    }
+
+    /**
+     * The int key of the product in the generated factory, e.g. for {@code create(int)}
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    /**
+     * The id as specified in {@code @Factory(id = ...)}
+     */
+    public String getId() {
+      return id;
+    }
+
+    public String getClassName() {
+      return className;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Product)) {
+        return false;
+      }
+      Product other = (Product) o;
+      return index == other.index && id.equals(other.id) && className.equals(other.className);
+    }
+
+    @Override public int hashCode() {
+      return id.hashCode();
+    }
+
+    @Override public String toString() {
+      return id + "=" + className;
+    }
+  }
+}
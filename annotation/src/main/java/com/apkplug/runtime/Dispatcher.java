@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+/**
+ * Calls the exported methods of a service by id, without reflection. The processor generates one
+ * for every service annotated with {@code @Service(dispatcher = true)}, it runs the calls through
+ * the service interface like any other consumer.
+ */
+public interface Dispatcher {
+
+  /**
+   * Looks up the id of a method by its signature, like "add(int,int)", or by its simple name if
+   * the method is not overloaded. Ids don't change as long as the signature doesn't, so they can
+   * be looked up once and kept.
+   *
+   * @throws IllegalArgumentException if the service has no such method
+   */
+  int methodId(String method);
+
+  /**
+   * Calls the method with the given id. Primitives are passed and returned boxed, void methods
+   * return null.
+   *
+   * @param args the arguments in declaration order, may be null for methods without parameters
+   * @throws IllegalArgumentException if the method id is unknown or the number of arguments
+   * doesn't match
+   * @throws ClassCastException if an argument has the wrong type
+   */
+  Object invoke(int methodId, Object[] args);
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import com.apkplug.Service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind queue of a service annotated with {@code @Service(mailboxCapacity = ...)}. The
+ * generated proxy posts every call of a void method as a task. The tasks are drained in batches on
+ * an executor, by at most one thread at a time, and run in the order they were posted. Mailboxes
+ * don't own a thread: by default they share a pool that only has threads for the mailboxes that
+ * currently have work, so bundle scoped services with many proxies cost no idle threads.
+ * <p>
+ * Posting is lock-free: the queue is a linked multi-producer single-consumer queue in which
+ * producers only swap the tail, and the capacity is enforced with an atomic counter. What happens
+ * if the mailbox is full is decided by the {@link Service.Overflow} policy.
+ */
+public final class Mailbox {
+
+  /**
+   * Maximum number of tasks a drain runs before it hands the thread back to the executor
+   */
+  public static final int BATCH_SIZE = 64;
+
+  private static final Logger LOGGER = Logger.getLogger(Mailbox.class.getName());
+
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final String name;
+  private final int capacity;
+  private final Service.Overflow overflow;
+  private final Executor executor;
+  private final AtomicReference<Node> tail;
+  private Node head;
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong executed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final Runnable drain = new Runnable() {
+    @Override public void run() {
+      drain(BATCH_SIZE);
+    }
+  };
+  private volatile Thread drainer;
+  private volatile boolean closed;
+
+  /**
+   * Creates a mailbox that drains on the pool shared by all mailboxes
+   */
+  public Mailbox(String name, int capacity, Service.Overflow overflow) {
+    this(name, capacity, overflow, SharedExecutor.INSTANCE);
+  }
+
+  /**
+   * @param executor runs the drains, it must not run them on the calling thread
+   */
+  public Mailbox(String name, int capacity, Service.Overflow overflow, Executor executor) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive but was " + capacity);
+    }
+    this.name = name;
+    this.capacity = capacity;
+    this.overflow = overflow;
+    this.executor = executor;
+    this.head = new Node(null);
+    this.tail = new AtomicReference<Node>(head);
+  }
+
+  /**
+   * Queues a call. Once the mailbox has been shut down calls run on the calling thread, so that
+   * late callers don't lose them.
+   *
+   * @throws RejectedExecutionException if the mailbox is full and the policy is
+   * {@link Service.Overflow#FAIL}
+   */
+  public void post(Runnable task) {
+    if (closed || Thread.currentThread() == drainer) {
+      // Running inline in a drain keeps calls from a queued task from deadlocking a full box
+      runTask(task);
+      return;
+    }
+    while (!reserve()) {
+      switch (overflow) {
+        case DROP:
+          dropped.incrementAndGet();
+          return;
+        case CALLER_RUNS:
+          runTask(task);
+          return;
+        case FAIL:
+          throw new RejectedExecutionException("Mailbox " + name + " is full");
+        default:
+          LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+          if (closed) {
+            runTask(task);
+            return;
+          }
+      }
+    }
+    // A drain scheduled after shutdown() has returned would run the call too late, so if the
+    // mailbox has been closed meanwhile the reservation is given back and the call run here
+    if (closed) {
+      size.decrementAndGet();
+      runTask(task);
+      return;
+    }
+    enqueue(new Node(task));
+  }
+
+  /**
+   * Blocks until all calls posted before have been run
+   */
+  public void flush() throws InterruptedException {
+    if (closed || Thread.currentThread() == drainer) {
+      return;
+    }
+    FlushMarker marker = new FlushMarker();
+    // The marker bypasses the capacity check, so flushing never fails or drops
+    size.incrementAndGet();
+    enqueue(new Node(marker));
+    marker.latch.await();
+  }
+
+  /**
+   * Runs all queued calls, later calls run on the caller's thread. Called by the generated
+   * activator when the bundle stops and by the generated service factory when the last consumer
+   * releases the proxy.
+   */
+  public void shutdown() {
+    closed = true;
+    if (Thread.currentThread() == drainer) {
+      return;
+    }
+    // Drain here instead of waiting for the executor, and also wait for calls from producers
+    // that reserved a slot before they could see that the mailbox is closed
+    while (true) {
+      if (scheduled.compareAndSet(false, true)) {
+        drain(Integer.MAX_VALUE);
+      }
+      if (size.get() == 0 && !scheduled.get()) {
+        return;
+      }
+      LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+    }
+  }
+
+  /**
+   * @return true once {@link #shutdown()} has been called
+   */
+  public boolean isShutdown() {
+    return closed;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the number of calls waiting to be run
+   */
+  public int getPending() {
+    return size.get();
+  }
+
+  public long getExecuted() {
+    return executed.get();
+  }
+
+  /**
+   * @return the number of calls discarded by the {@link Service.Overflow#DROP} policy
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of calls that threw
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  @Override public String toString() {
+    return name + " pending=" + size.get() + " executed=" + executed.get() + " dropped="
+        + dropped.get() + " failed=" + failed.get();
+  }
+
+  private boolean reserve() {
+    while (true) {
+      int current = size.get();
+      if (current >= capacity) {
+        return false;
+      }
+      if (size.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Appends a node whose slot has been reserved and makes sure a drain will see it
+   */
+  private void enqueue(Node node) {
+    Node previous = tail.getAndSet(node);
+    previous.next = node;
+    schedule();
+  }
+
+  private void schedule() {
+    if (!scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(drain);
+    } catch (RejectedExecutionException e) {
+      // The calls still run in order, just on this thread
+      drain(Integer.MAX_VALUE);
+    }
+  }
+
+  /**
+   * Runs up to the given number of tasks, then reschedules itself if there are more, so that busy
+   * mailboxes take turns on the executor's threads. Only runs while this mailbox is scheduled,
+   * which makes it the only thread that touches the head.
+   */
+  private void drain(int limit) {
+    drainer = Thread.currentThread();
+    Node last;
+    try {
+      int batch = 0;
+      Node next;
+      while (batch < limit && (next = head.next) != null) {
+        Runnable task = next.task;
+        next.task = null;
+        head = next;
+        size.decrementAndGet();
+        runTask(task);
+        batch++;
+      }
+      last = head;
+    } finally {
+      drainer = null;
+    }
+    scheduled.set(false);
+    // A producer that appended while this drain was running may have seen it scheduled
+    if (tail.get() != last) {
+      schedule();
+    }
+  }
+
+  private void runTask(Runnable task) {
+    try {
+      task.run();
+      if (!(task instanceof FlushMarker)) {
+        executed.incrementAndGet();
+      }
+    } catch (Throwable t) {
+      failed.incrementAndGet();
+      LOGGER.log(Level.WARNING, "Call posted to mailbox " + name + " failed", t);
+    }
+  }
+
+  /**
+   * Threads are only started while mailboxes have work and end after a minute without any. The
+   * pool has no fixed size, so a call that waits for another mailbox can't starve it of threads.
+   */
+  private static final class SharedExecutor {
+    static final Executor INSTANCE = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new AsyncExecutors.DaemonThreadFactory("apkplug-mailbox"));
+  }
+
+  private static final class FlushMarker implements Runnable {
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    @Override public void run() {
+      latch.countDown();
+    }
+  }
+
+  private static final class Node {
+    Runnable task;
+    volatile Node next;
+
+    Node(Runnable task) {
+      this.task = task;
+    }
+  }
+}
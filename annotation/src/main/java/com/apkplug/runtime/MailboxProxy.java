@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+/**
+ * Implemented by generated proxies of services with a {@link Mailbox}
+ */
+public interface MailboxProxy {
+
+  /**
+   * Blocks until all void calls queued so far have been run
+   */
+  void flush() throws InterruptedException;
+
+  /**
+   * Runs the queued calls, later calls run on the caller's thread
+   */
+  void shutdown();
+
+  Mailbox getMailbox();
+}
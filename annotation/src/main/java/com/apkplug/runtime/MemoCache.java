@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Memoization cache of one exported method, used by generated proxies for methods annotated with
+ * {@code @Export(cacheSize = ...)}.
+ * <p>
+ * The cache is a fixed size, {@value #WAYS}-way set-associative table: a key can live in any of
+ * the slots of its set, and a new entry replaces an expired one or, with CLOCK replacement, the
+ * one that hasn't been hit for the longest time. Keys that hash to the same set therefore only
+ * evict each other once more than {@value #WAYS} of them are hot. Arguments that fit into 64 bits
+ * are packed into a {@code long} key by the generated code, so lookups of methods with small primitive arguments
+ * don't box anything. Lookups are lock-free; on a miss concurrent calls with the same key are
+ * collapsed into a single execution of the method.
+ *
+ * @param <V> the boxed return type of the method
+ */
+public final class MemoCache<V> {
+
+  /**
+   * Returned by the get methods if there is no valid entry for the key
+   */
+  public static final Object MISS = new Object();
+
+  /**
+   * Number of slots per set
+   */
+  public static final int WAYS = 4;
+
+  private static final Object NULL_VALUE = new Object();
+  private static final Object NULL_KEY = new Object();
+
+  /**
+   * Computes the value of a missing entry
+   */
+  public interface Loader<V> {
+    V load();
+  }
+
+  private final String name;
+  private final AtomicReferenceArray<Entry> table;
+  private final AtomicIntegerArray hands;
+  private final int setMask;
+  private final long ttlNanos;
+  private final ConcurrentMap<Object, FutureTask<V>> inFlight =
+      new ConcurrentHashMap<Object, FutureTask<V>>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param name the method signature, e.g. "add(int,int)"
+   * @param size the number of entries, rounded up to a power of two of at least {@link #WAYS}
+   * @param ttlMillis how long an entry stays valid, 0 means forever
+   */
+  public MemoCache(String name, int size, long ttlMillis) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("size must be positive but was " + size);
+    }
+    int capacity = WAYS;
+    while (capacity < size && capacity < (1 << 30)) {
+      capacity <<= 1;
+    }
+    this.name = name;
+    this.table = new AtomicReferenceArray<Entry>(capacity);
+    this.hands = new AtomicIntegerArray(capacity / WAYS);
+    this.setMask = capacity / WAYS - 1;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+  }
+
+  /**
+   * Builds the key of a method whose arguments don't fit into a long. The arguments are compared
+   * with {@code equals()}, so they must not be arrays.
+   */
+  public static Object key(Object... arguments) {
+    return Arrays.asList(arguments);
+  }
+
+  /**
+   * @return the cached value (which may be null) or {@link #MISS}
+   */
+  public Object get(long key) {
+    int set = setOf(key);
+    for (int i = set; i < set + WAYS; i++) {
+      Entry entry = table.get(i);
+      if (entry != null && entry.objectKey == null && entry.longKey == key) {
+        return hit(entry);
+      }
+    }
+    return MISS;
+  }
+
+  /**
+   * @return the cached value (which may be null) or {@link #MISS}
+   */
+  public Object get(Object key) {
+    Object objectKey = key == null ? NULL_KEY : key;
+    int set = setOf(objectKey);
+    for (int i = set; i < set + WAYS; i++) {
+      Entry entry = table.get(i);
+      if (entry != null && objectKey.equals(entry.objectKey)) {
+        return hit(entry);
+      }
+    }
+    return MISS;
+  }
+
+  /**
+   * Computes and caches the value of a key that {@link #get(long)} reported as missing
+   */
+  public V load(long key, Loader<V> loader) {
+    return load(Long.valueOf(key), key, null, loader);
+  }
+
+  /**
+   * Computes and caches the value of a key that {@link #get(Object)} reported as missing
+   */
+  public V load(Object key, Loader<V> loader) {
+    Object objectKey = key == null ? NULL_KEY : key;
+    return load(objectKey, 0, objectKey, loader);
+  }
+
+  /**
+   * Drops all entries
+   */
+  public void clear() {
+    for (int i = 0; i < table.length(); i++) {
+      table.set(i, null);
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of valid entries that have been replaced by an entry with another key
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override public String toString() {
+    return name + " hits=" + hits.get() + " misses=" + misses.get() + " evictions="
+        + evictions.get();
+  }
+
+  private V load(Object flightKey, long longKey, Object objectKey, final Loader<V> loader) {
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+      @Override public V call() {
+        return loader.load();
+      }
+    });
+    FutureTask<V> running = inFlight.putIfAbsent(flightKey, task);
+    if (running != null) {
+      // Somebody else is already computing this key, wait for the result
+      return await(running);
+    }
+
+    misses.incrementAndGet();
+    try {
+      task.run();
+      V value = await(task);
+      store(new Entry(longKey, objectKey, value == null ? NULL_VALUE : value,
+          ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos));
+      return value;
+    } finally {
+      inFlight.remove(flightKey, task);
+    }
+  }
+
+  private Object hit(Entry entry) {
+    if (isExpired(entry)) {
+      return MISS;
+    }
+    if (!entry.referenced) {
+      entry.referenced = true;
+    }
+    hits.incrementAndGet();
+    return entry.value == NULL_VALUE ? null : entry.value;
+  }
+
+  /**
+   * Puts the entry into the slot of its set that holds the same key, is empty or expired or, with
+   * CLOCK replacement, hasn't been hit since the hand last passed it. Racing stores may replace
+   * each other's entries, which only costs a later miss.
+   */
+  private void store(Entry entry) {
+    int set = entry.objectKey == null ? setOf(entry.longKey) : setOf(entry.objectKey);
+    int victim = -1;
+    for (int i = set; i < set + WAYS; i++) {
+      Entry current = table.get(i);
+      if (current == null || isExpired(current) || sameKey(current, entry)) {
+        victim = i;
+        break;
+      }
+    }
+    if (victim < 0) {
+      victim = clockVictim(set);
+      evictions.incrementAndGet();
+    }
+    table.set(victim, entry);
+  }
+
+  /**
+   * Sweeps over the set from its hand and clears the referenced bits until it finds an entry that
+   * hasn't been hit since the last sweep
+   */
+  private int clockVictim(int set) {
+    int start = hands.get(set / WAYS);
+    for (int i = 0; i < 2 * WAYS; i++) {
+      int index = set + (start + i) % WAYS;
+      Entry current = table.get(index);
+      if (current == null || !current.referenced) {
+        hands.set(set / WAYS, (index - set + 1) % WAYS);
+        return index;
+      }
+      current.referenced = false;
+    }
+    return set + start;
+  }
+
+  private static boolean sameKey(Entry a, Entry b) {
+    return a.objectKey == null ? b.objectKey == null && a.longKey == b.longKey
+        : a.objectKey.equals(b.objectKey);
+  }
+
+  private boolean isExpired(Entry entry) {
+    return entry.expiresAt != 0 && System.nanoTime() - entry.expiresAt > 0;
+  }
+
+  /**
+   * @return the index of the first slot of the key's set
+   */
+  private int setOf(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return ((int) (hash >>> 32) & setMask) * WAYS;
+  }
+
+  private int setOf(Object key) {
+    int hash = key.hashCode() * 0x9E3779B9;
+    return ((hash ^ (hash >>> 16)) & setMask) * WAYS;
+  }
+
+  private static <V> V await(FutureTask<V> task) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static final class Entry {
+    final long longKey;
+    final Object objectKey;
+    final Object value;
+    final long expiresAt;
+    volatile boolean referenced;
+
+    Entry(long longKey, Object objectKey, Object value, long expiresAt) {
+      this.longKey = longKey;
+      this.objectKey = objectKey;
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
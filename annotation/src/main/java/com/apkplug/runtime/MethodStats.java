@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call statistics of one method of a generated proxy: number of calls, number of calls that ended
+ * with an exception, total time and a latency histogram. Recording is lock-free: the counters are
+ * striped by thread so that concurrent callers rarely touch the same cache line, and the histogram
+ * has a fixed set of power-of-two buckets.
+ */
+public final class MethodStats {
+
+  /**
+   * Number of latency buckets. Bucket i counts calls that took less than 2^i nanoseconds, the last
+   * bucket counts everything slower.
+   */
+  public static final int BUCKETS = 40;
+
+  private static final int STRIPES = stripeCount();
+
+  /**
+   * Distance between two stripes in the counter arrays, keeps each stripe on its own cache line
+   */
+  private static final int PADDING = 8;
+
+  private static final int CALLS = 0;
+  private static final int ERRORS = 1;
+  private static final int NANOS = 2;
+  private static final int REJECTED = 3;
+  private static final int WAIT_NANOS = 4;
+
+  private final String name;
+  private final String policy;
+  private final AtomicLongArray counters = new AtomicLongArray(STRIPES * PADDING);
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+  public MethodStats(String name) {
+    this(name, "none");
+  }
+
+  /**
+   * @param name the method signature
+   * @param policy describes the concurrency policy of the method, e.g. "read-lock, bulkhead(8)"
+   */
+  public MethodStats(String name, String policy) {
+    this.name = name;
+    this.policy = policy;
+  }
+
+  /**
+   * The method signature, e.g. "add(int,int)"
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The concurrency policy the generated proxy applies to the method
+   */
+  public String getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Records a call that has been turned away by a bulkhead. Rejected calls also end up in
+   * {@link #record(long, boolean)} as failed calls.
+   */
+  public void recordRejected() {
+    counters.incrementAndGet(stripe() + REJECTED);
+  }
+
+  /**
+   * Records the time a call waited for a lock
+   */
+  public void recordWait(long nanos) {
+    counters.addAndGet(stripe() + WAIT_NANOS, nanos);
+  }
+
+  /**
+   * Records one finished call.
+   *
+   * @param nanos the time the call took
+   * @param failed true if the call threw
+   */
+  public void record(long nanos, boolean failed) {
+    int stripe = stripe();
+    counters.incrementAndGet(stripe + CALLS);
+    if (failed) {
+      counters.incrementAndGet(stripe + ERRORS);
+    }
+    counters.addAndGet(stripe + NANOS, nanos);
+    histogram.incrementAndGet(bucketOf(nanos));
+  }
+
+  /**
+   * Takes a snapshot of the current values. Calls that finish while the snapshot is taken may or
+   * may not be part of it.
+   */
+  public Snapshot snapshot() {
+    long calls = 0;
+    long errors = 0;
+    long nanos = 0;
+    long rejected = 0;
+    long waitNanos = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      int stripe = i * PADDING;
+      calls += counters.get(stripe + CALLS);
+      errors += counters.get(stripe + ERRORS);
+      nanos += counters.get(stripe + NANOS);
+      rejected += counters.get(stripe + REJECTED);
+      waitNanos += counters.get(stripe + WAIT_NANOS);
+    }
+    long[] buckets = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = histogram.get(i);
+    }
+    return new Snapshot(name, policy, calls, errors, nanos, rejected, waitNanos, buckets);
+  }
+
+  private static int stripe() {
+    return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+  }
+
+  static int bucketOf(long nanos) {
+    if (nanos <= 0) {
+      return 0;
+    }
+    return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+  }
+
+  private static int stripeCount() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int stripes = 1;
+    while (stripes < processors && stripes < 64) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+  /**
+   * Immutable view of a {@link MethodStats} at a certain point in time
+   */
+  public static final class Snapshot {
+
+    private final String name;
+    private final String policy;
+    private final long calls;
+    private final long errors;
+    private final long totalNanos;
+    private final long rejected;
+    private final long waitNanos;
+    private final long[] buckets;
+
+    Snapshot(String name, String policy, long calls, long errors, long totalNanos, long rejected,
+        long waitNanos, long[] buckets) {
+      this.name = name;
+      this.policy = policy;
+      this.calls = calls;
+      this.errors = errors;
+      this.totalNanos = totalNanos;
+      this.rejected = rejected;
+      this.waitNanos = waitNanos;
+      this.buckets = buckets;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getPolicy() {
+      return policy;
+    }
+
+    /**
+     * @return the number of calls turned away by a bulkhead
+     */
+    public long getRejected() {
+      return rejected;
+    }
+
+    /**
+     * @return the total time calls spent waiting for locks
+     */
+    public long getWaitNanos() {
+      return waitNanos;
+    }
+
+    public long getCalls() {
+      return calls;
+    }
+
+    public long getErrors() {
+      return errors;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getMeanNanos() {
+      return calls == 0 ? 0 : totalNanos / calls;
+    }
+
+    /**
+     * @return the number of calls in the given histogram bucket, see {@link #BUCKETS}
+     */
+    public long getBucket(int bucket) {
+      return buckets[bucket];
+    }
+
+    /**
+     * Estimates a latency percentile from the histogram.
+     *
+     * @param percentile a value between 0 and 100
+     * @return the upper bound of the bucket the percentile falls into
+     */
+    public long getPercentileNanos(double percentile) {
+      long total = 0;
+      for (long count : buckets) {
+        total += count;
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(total * percentile / 100d);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          return i >= 63 ? Long.MAX_VALUE : 1L << i;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    @Override public String toString() {
+      return name + " [" + policy + "] calls=" + calls + " errors=" + errors + " rejected="
+          + rejected + " wait=" + waitNanos + "ns mean=" + getMeanNanos() + "ns p50<"
+          + getPercentileNanos(50) + "ns p99<" + getPercentileNanos(99) + "ns";
+    }
+  }
+}
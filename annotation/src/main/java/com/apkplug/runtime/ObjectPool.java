@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free pool used by generated factories for products annotated with
+ * {@code @Factory(scope = Factory.Scope.POOLED)}. Idle instances live in a fixed array of slots
+ * that are claimed and filled with compare-and-set, so neither {@link #acquire()} nor
+ * {@link #release(Object)} ever blocks.
+ *
+ * @param <T> the pooled product type
+ */
+public final class ObjectPool<T> {
+
+  private final AtomicReferenceArray<T> slots;
+
+  public ObjectPool(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive but was " + capacity);
+    }
+    slots = new AtomicReferenceArray<T>(capacity);
+  }
+
+  /**
+   * Takes an idle instance out of the pool.
+   *
+   * @return the instance or null if the pool is empty
+   */
+  public T acquire() {
+    int capacity = slots.length();
+    int start = firstSlot(capacity);
+    for (int i = 0; i < capacity; i++) {
+      int index = (start + i) % capacity;
+      T item = slots.get(index);
+      if (item != null && slots.compareAndSet(index, item, null)) {
+        return item;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Puts an instance back into the pool.
+   *
+   * @return false if the pool is full, in which case the instance is simply dropped
+   */
+  public boolean release(T item) {
+    if (item == null) {
+      throw new IllegalArgumentException("item is null!");
+    }
+    int capacity = slots.length();
+    int start = firstSlot(capacity);
+    for (int i = 0; i < capacity; i++) {
+      int index = (start + i) % capacity;
+      if (slots.get(index) == null && slots.compareAndSet(index, null, item)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Spreads threads over the slots so that concurrent callers rarely race for the same one
+   */
+  private static int firstSlot(int capacity) {
+    return (int) (Thread.currentThread().getId() % capacity);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A remote service call that has been sent and waits for its response. Calls are pipelined: any
+ * number of them can be in flight on one {@link Transport}.
+ */
+public final class RemoteCall implements Future<ByteBuffer> {
+
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile ByteBuffer result;
+  private volatile RemoteException failure;
+
+  RemoteCall() {
+  }
+
+  void complete(ByteBuffer result) {
+    this.result = result;
+    done.countDown();
+  }
+
+  void fail(RemoteException failure) {
+    this.failure = failure;
+    done.countDown();
+  }
+
+  /**
+   * Waits for the response and returns the encoded result, positioned at its first byte
+   *
+   * @throws RemoteException if the service threw an exception or the transport failed
+   */
+  public ByteBuffer await() {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return result();
+  }
+
+  private ByteBuffer result() {
+    RemoteException failure = this.failure;
+    if (failure != null) {
+      throw failure;
+    }
+    return result;
+  }
+
+  /**
+   * Calls can't be cancelled once they have been sent
+   */
+  @Override public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override public boolean isCancelled() {
+    return false;
+  }
+
+  @Override public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  @Override public ByteBuffer get() throws InterruptedException, ExecutionException {
+    done.await();
+    try {
+      return result();
+    } catch (RemoteException e) {
+      throw new ExecutionException(e);
+    }
+  }
+
+  @Override public ByteBuffer get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    try {
+      return result();
+    } catch (RemoteException e) {
+      throw new ExecutionException(e);
+    }
+  }
+}
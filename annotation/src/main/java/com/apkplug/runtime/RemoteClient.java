@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The calling side of remote services, used by the generated client stubs. Requests are sent as
+ * soon as they are made and responses are matched to them by a call id, so many threads can have
+ * calls in flight on the same transport.
+ *
+ * A request frame is the call id (long), the method id (int) and the encoded arguments. A
+ * response frame is the call id, a status byte and the encoded result or the error message.
+ */
+public final class RemoteClient implements Transport.Receiver {
+
+  static final byte STATUS_OK = 0;
+  static final byte STATUS_ERROR = 1;
+
+  private final Transport transport;
+  private final AtomicLong nextCallId = new AtomicLong();
+  private final ConcurrentMap<Long, RemoteCall> calls = new ConcurrentHashMap<Long, RemoteCall>();
+  private volatile IOException closed;
+
+  public RemoteClient(Transport transport) {
+    this.transport = transport;
+    transport.setReceiver(this);
+  }
+
+  /**
+   * Sends a call without waiting for its response
+   *
+   * @param arguments the encoded arguments, null if the method has none
+   */
+  public RemoteCall send(int methodId, RemoteOutput arguments) {
+    long callId = nextCallId.incrementAndGet();
+    ByteBuffer header = ByteBuffer.allocate(12);
+    header.putLong(callId).putInt(methodId).flip();
+    ByteBuffer[] frame;
+    if (arguments == null) {
+      frame = new ByteBuffer[] {header};
+    } else {
+      ByteBuffer[] buffers = arguments.toBuffers();
+      frame = new ByteBuffer[buffers.length + 1];
+      frame[0] = header;
+      System.arraycopy(buffers, 0, frame, 1, buffers.length);
+    }
+
+    RemoteCall call = new RemoteCall();
+    calls.put(callId, call);
+    try {
+      if (closed != null) {
+        throw closed;
+      }
+      transport.send(frame);
+    } catch (IOException e) {
+      calls.remove(callId);
+      call.fail(new RemoteException("Can not send the call: " + e, e));
+    }
+    return call;
+  }
+
+  /**
+   * Sends a call and waits for its result
+   *
+   * @throws RemoteException if the service threw an exception or the transport failed
+   */
+  public ByteBuffer call(int methodId, RemoteOutput arguments) {
+    return send(methodId, arguments).await();
+  }
+
+  /**
+   * Closes the transport, calls that are in flight fail
+   */
+  public void close() throws IOException {
+    transport.close();
+  }
+
+  @Override public void receive(ByteBuffer frame) {
+    RemoteCall call = calls.remove(frame.getLong());
+    if (call == null) {
+      return;
+    }
+    if (frame.get() == STATUS_OK) {
+      call.complete(frame);
+    } else {
+      call.fail(new RemoteException(RemoteCodec.readString(frame)));
+    }
+  }
+
+  @Override public void closed(IOException cause) {
+    closed = cause != null ? cause : new IOException("The transport has been closed");
+    for (Long callId : calls.keySet()) {
+      RemoteCall call = calls.remove(callId);
+      if (call != null) {
+        call.fail(new RemoteException("The transport has been closed", cause));
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the values written by {@link RemoteOutput}. Primitives are read with the methods of
+ * {@link ByteBuffer} itself.
+ */
+public final class RemoteCodec {
+
+  private RemoteCodec() {
+  }
+
+  public static boolean readBoolean(ByteBuffer in) {
+    return in.get() != 0;
+  }
+
+  public static String readString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    if (!in.hasArray()) {
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      return new String(bytes, RemoteOutput.UTF_8);
+    }
+    String value = new String(in.array(), in.arrayOffset() + in.position(), length,
+        RemoteOutput.UTF_8);
+    in.position(in.position() + length);
+    return value;
+  }
+
+  public static byte[] readBytes(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] value = new byte[length];
+    in.get(value);
+    return value;
+  }
+
+  /**
+   * Returns a read-only view of the next buffer in the frame, its bytes are not copied
+   */
+  public static ByteBuffer readBuffer(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    ByteBuffer value = in.slice();
+    value.limit(length);
+    in.position(in.position() + length);
+    return value.asReadOnlyBuffer();
+  }
+}
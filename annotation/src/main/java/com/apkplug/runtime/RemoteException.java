@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+/**
+ * Thrown by a remote service call that failed, either because the service threw an exception or
+ * because the transport failed
+ */
+public class RemoteException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public RemoteException(String message) {
+    super(message);
+  }
+
+  public RemoteException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
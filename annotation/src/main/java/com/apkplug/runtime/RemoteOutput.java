@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes the arguments or the result of a remote service call. Primitives are written unboxed in
+ * big endian order, Strings as UTF-8 and byte arrays and {@link ByteBuffer}s with their length in
+ * front. Large arrays and all ByteBuffers are sent as they are instead of being copied.
+ *
+ * @see RemoteCodec for reading the values back
+ */
+public final class RemoteOutput {
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Size of the buffers primitives are written to, and the largest array that is copied
+   */
+  private static final int CHUNK_SIZE = 256;
+
+  private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+  private ByteBuffer current;
+  private int length;
+
+  public RemoteOutput putBoolean(boolean value) {
+    return putByte(value ? (byte) 1 : (byte) 0);
+  }
+
+  public RemoteOutput putByte(byte value) {
+    reserve(1).put(value);
+    return this;
+  }
+
+  public RemoteOutput putShort(short value) {
+    reserve(2).putShort(value);
+    return this;
+  }
+
+  public RemoteOutput putChar(char value) {
+    reserve(2).putChar(value);
+    return this;
+  }
+
+  public RemoteOutput putInt(int value) {
+    reserve(4).putInt(value);
+    return this;
+  }
+
+  public RemoteOutput putLong(long value) {
+    reserve(8).putLong(value);
+    return this;
+  }
+
+  public RemoteOutput putFloat(float value) {
+    reserve(4).putFloat(value);
+    return this;
+  }
+
+  public RemoteOutput putDouble(double value) {
+    reserve(8).putDouble(value);
+    return this;
+  }
+
+  /**
+   * Writes a String as UTF-8, null is written as length -1
+   */
+  public RemoteOutput putString(String value) {
+    return putBytes(value == null ? null : value.getBytes(UTF_8));
+  }
+
+  /**
+   * Writes a byte array, null is written as length -1. The array must not change until the call
+   * has been sent.
+   */
+  public RemoteOutput putBytes(byte[] value) {
+    if (value == null) {
+      return putInt(-1);
+    }
+    putInt(value.length);
+    if (value.length <= CHUNK_SIZE) {
+      reserve(value.length).put(value);
+    } else {
+      append(ByteBuffer.wrap(value));
+    }
+    return this;
+  }
+
+  /**
+   * Writes the remaining bytes of a buffer without copying them and without changing its position,
+   * null is written as length -1. The content must not change until the call has been sent.
+   */
+  public RemoteOutput putBuffer(ByteBuffer value) {
+    if (value == null) {
+      return putInt(-1);
+    }
+    putInt(value.remaining());
+    append(value.duplicate());
+    return this;
+  }
+
+  /**
+   * The number of bytes written so far
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * The written bytes, ready to be sent
+   */
+  public ByteBuffer[] toBuffers() {
+    flush();
+    return segments.toArray(new ByteBuffer[segments.size()]);
+  }
+
+  private ByteBuffer reserve(int bytes) {
+    if (current == null || current.remaining() < bytes) {
+      flush();
+      current = ByteBuffer.allocate(Math.max(CHUNK_SIZE, bytes));
+    }
+    length += bytes;
+    return current;
+  }
+
+  private void append(ByteBuffer buffer) {
+    flush();
+    segments.add(buffer);
+    length += buffer.remaining();
+  }
+
+  private void flush() {
+    if (current != null && current.position() > 0) {
+      current.flip();
+      segments.add(current);
+      current = null;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The serving side of a remote service. Requests are run on an executor, so that calls that are
+ * pipelined by the client run at the same time, and the responses are sent as the calls finish.
+ */
+public final class RemoteServer implements Transport.Receiver {
+
+  private static final Logger LOGGER = Logger.getLogger(RemoteServer.class.getName());
+
+  /**
+   * Decodes the arguments, calls the service and encodes the result, implemented by the generated
+   * server stubs
+   */
+  public interface Skeleton {
+
+    /**
+     * @throws IllegalArgumentException if the method id is unknown
+     */
+    void invoke(int methodId, ByteBuffer arguments, RemoteOutput result);
+  }
+
+  private final Transport transport;
+  private final Skeleton skeleton;
+  private final Executor executor;
+
+  /**
+   * @param executor runs the calls, if null they run one after another on the transport's thread
+   */
+  public RemoteServer(Transport transport, Skeleton skeleton, Executor executor) {
+    this.transport = transport;
+    this.skeleton = skeleton;
+    this.executor = executor;
+    transport.setReceiver(this);
+  }
+
+  public void close() throws IOException {
+    transport.close();
+  }
+
+  @Override public void receive(final ByteBuffer frame) {
+    Runnable call = new Runnable() {
+      @Override public void run() {
+        handle(frame);
+      }
+    };
+    if (executor == null) {
+      call.run();
+      return;
+    }
+    try {
+      executor.execute(call);
+    } catch (RejectedExecutionException e) {
+      call.run();
+    }
+  }
+
+  private void handle(ByteBuffer frame) {
+    long callId = frame.getLong();
+    int methodId = frame.getInt();
+    RemoteOutput result = new RemoteOutput();
+    byte status = RemoteClient.STATUS_OK;
+    try {
+      skeleton.invoke(methodId, frame, result);
+    } catch (Throwable t) {
+      status = RemoteClient.STATUS_ERROR;
+      result = new RemoteOutput().putString(t.getClass().getName() + ": " + t.getMessage());
+    }
+
+    ByteBuffer[] buffers = result.toBuffers();
+    ByteBuffer[] response = new ByteBuffer[buffers.length + 1];
+    ByteBuffer header = ByteBuffer.allocate(9);
+    header.putLong(callId).put(status).flip();
+    response[0] = header;
+    System.arraycopy(buffers, 0, response, 1, buffers.length);
+    try {
+      transport.send(response);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Can not send the response of call " + callId, e);
+    }
+  }
+
+  @Override public void closed(IOException cause) {
+    if (cause != null) {
+      LOGGER.log(Level.WARNING, "The transport has been closed", cause);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@link MethodStats} of all exported methods of one service. Generated proxies of services
+ * annotated with {@code @Service(metrics = true)} expose an instance as their {@code STATS}
+ * constant and the generated bundle activator registers it in the {@code BundleContext} under
+ * {@link #SERVICE_NAME}, with the service name as {@link #PROPERTY_SERVICE} property.
+ */
+public final class ServiceStats {
+
+  public static final String SERVICE_NAME = ServiceStats.class.getName();
+
+  public static final String PROPERTY_SERVICE = "apkplug.service";
+
+  private final String serviceName;
+  private final MethodStats[] methods;
+
+  public ServiceStats(String serviceName, MethodStats... methods) {
+    this.serviceName = serviceName;
+    this.methods = methods;
+  }
+
+  /**
+   * The name as specified in {@code @Service(name = ...)}
+   */
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  /**
+   * @return a snapshot per exported method, in declaration order
+   */
+  public List<MethodStats.Snapshot> snapshot() {
+    List<MethodStats.Snapshot> snapshots = new ArrayList<MethodStats.Snapshot>(methods.length);
+    for (MethodStats method : methods) {
+      snapshots.add(method.snapshot());
+    }
+    return Collections.unmodifiableList(snapshots);
+  }
+
+  /**
+   * @param method the method signature, e.g. "add(int,int)"
+   * @return the snapshot of the given method or null if there is no such method
+   */
+  public MethodStats.Snapshot snapshot(String method) {
+    for (MethodStats stats : methods) {
+      if (stats.getName().equals(method)) {
+        return stats.snapshot();
+      }
+    }
+    return null;
+  }
+
+  @Override public String toString() {
+    StringBuilder builder = new StringBuilder(serviceName);
+    for (MethodStats method : methods) {
+      builder.append("\n  ").append(method.snapshot());
+    }
+    return builder.toString();
+  }
+}
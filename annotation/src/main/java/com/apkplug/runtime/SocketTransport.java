@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link Transport} over a socket, meant for processes on the same machine. Every frame is sent
+ * with its length in front and with a single gathering write, so the buffers of a frame are not
+ * copied. Frames are received by a daemon thread that hands them to the receiver.
+ */
+public final class SocketTransport implements Transport {
+
+  private final SocketChannel channel;
+  private final Object writeLock = new Object();
+  private volatile Receiver receiver;
+  private volatile boolean closing;
+
+  private SocketTransport(SocketChannel channel) throws IOException {
+    this.channel = channel;
+    channel.configureBlocking(true);
+    channel.socket().setTcpNoDelay(true);
+  }
+
+  /**
+   * Opens a server socket on the loopback interface
+   *
+   * @param port the port or 0 for any free port
+   */
+  public static ServerSocketChannel listen(int port) throws IOException {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+    return server;
+  }
+
+  /**
+   * Waits for the next client of the given server socket
+   */
+  public static SocketTransport accept(ServerSocketChannel server) throws IOException {
+    return new SocketTransport(server.accept());
+  }
+
+  /**
+   * Connects to a server socket on the loopback interface
+   */
+  public static SocketTransport connect(int port) throws IOException {
+    return connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+  }
+
+  public static SocketTransport connect(SocketAddress address) throws IOException {
+    return new SocketTransport(SocketChannel.open(address));
+  }
+
+  @Override public void send(ByteBuffer[] frame) throws IOException {
+    ByteBuffer[] buffers = new ByteBuffer[frame.length + 1];
+    int length = 0;
+    for (int i = 0; i < frame.length; i++) {
+      buffers[i + 1] = frame[i].duplicate();
+      length += frame[i].remaining();
+    }
+    ByteBuffer header = ByteBuffer.allocate(4);
+    header.putInt(length).flip();
+    buffers[0] = header;
+
+    synchronized (writeLock) {
+      long remaining = length + 4;
+      while (remaining > 0) {
+        remaining -= channel.write(buffers);
+      }
+    }
+  }
+
+  /**
+   * Sets the receiver and starts receiving frames
+   */
+  @Override public synchronized void setReceiver(Receiver receiver) {
+    boolean started = this.receiver != null;
+    this.receiver = receiver;
+    if (!started) {
+      Thread reader = new Thread(new Runnable() {
+        @Override public void run() {
+          receive();
+        }
+      }, "apkplug-transport");
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+  private void receive() {
+    IOException cause = null;
+    try {
+      ByteBuffer header = ByteBuffer.allocate(4);
+      while (true) {
+        header.clear();
+        if (!readFully(header)) {
+          break;
+        }
+        int length = header.getInt(0);
+        if (length < 0) {
+          throw new IOException("Invalid frame length " + length);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        if (!readFully(frame)) {
+          throw new EOFException("The connection has been closed in the middle of a frame");
+        }
+        frame.flip();
+        receiver.receive(frame);
+      }
+    } catch (IOException e) {
+      cause = closing ? null : e;
+    }
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // Already closed
+    }
+    receiver.closed(cause);
+  }
+
+  /**
+   * @return false if the connection has been closed before the first byte
+   */
+  private boolean readFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        if (buffer.position() == 0) {
+          return false;
+        }
+        throw new EOFException("The connection has been closed in the middle of a frame");
+      }
+    }
+    return true;
+  }
+
+  @Override public void close() throws IOException {
+    closing = true;
+    channel.close();
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timings of the steps a generated bundle activator runs in start() and stop(), recorded if the
+ * processor runs with {@code -Aapkplug.startupReport=true}. The activator registers the report
+ * as a service under {@link #SERVICE_NAME} and logs a summary line after each phase.
+ *
+ * Allocation deltas are only available on JVMs that count allocated bytes per thread, elsewhere
+ * (e.g. on Android) they are reported as -1.
+ */
+public final class StartupReport {
+
+  public static final String SERVICE_NAME = StartupReport.class.getName();
+
+  public static final String START = "start";
+  public static final String STOP = "stop";
+
+  private static final Logger LOGGER = Logger.getLogger(SERVICE_NAME);
+
+  private final String bundleName;
+  private final List<Entry> entries = new ArrayList<Entry>();
+
+  private final ThreadLocal<Step> currentStep = new ThreadLocal<Step>();
+
+  public StartupReport(String bundleName) {
+    this.bundleName = bundleName;
+  }
+
+  /**
+   * Starts timing a step, the activator calls this on the thread it runs on. Services started in
+   * parallel time their steps on their own threads.
+   */
+  public void begin(String phase, String service, String step) {
+    Step current = currentStep.get();
+    if (current == null) {
+      current = new Step();
+      currentStep.set(current);
+    }
+    current.phase = phase;
+    current.service = service;
+    current.step = step;
+    current.startBytes = AllocationCounter.allocatedBytes();
+    current.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Finishes the step started by the last call to {@link #begin(String, String, String)} on this
+   * thread
+   */
+  public void end() {
+    Step current = currentStep.get();
+    long nanos = System.nanoTime() - current.startNanos;
+    long bytes = AllocationCounter.allocatedBytes();
+    Entry entry = new Entry(current.phase, current.service, current.step, nanos,
+        bytes < 0 || current.startBytes < 0 ? -1 : bytes - current.startBytes);
+    synchronized (entries) {
+      entries.add(entry);
+    }
+  }
+
+  /**
+   * Logs a summary of the given phase
+   */
+  public void finish(String phase) {
+    if (LOGGER.isLoggable(Level.INFO)) {
+      LOGGER.info(summary(phase));
+    }
+  }
+
+  public String getBundleName() {
+    return bundleName;
+  }
+
+  public List<Entry> getEntries() {
+    synchronized (entries) {
+      return new ArrayList<Entry>(entries);
+    }
+  }
+
+  /**
+   * @return the time all steps of the given phase took
+   */
+  public long getTotalNanos(String phase) {
+    long total = 0;
+    for (Entry entry : getEntries()) {
+      if (entry.phase.equals(phase)) {
+        total += entry.nanos;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * @return a single line describing the steps of the given phase, slowest first
+   */
+  public String summary(String phase) {
+    List<Entry> phaseEntries = new ArrayList<Entry>();
+    for (Entry entry : getEntries()) {
+      if (entry.phase.equals(phase)) {
+        phaseEntries.add(entry);
+      }
+    }
+    // Few entries, a simple insertion sort keeps this free of Comparator classes
+    for (int i = 1; i < phaseEntries.size(); i++) {
+      Entry entry = phaseEntries.get(i);
+      int j = i - 1;
+      while (j >= 0 && phaseEntries.get(j).nanos < entry.nanos) {
+        phaseEntries.set(j + 1, phaseEntries.get(j));
+        j--;
+      }
+      phaseEntries.set(j + 1, entry);
+    }
+    StringBuilder summary = new StringBuilder()
+        .append(bundleName).append(' ').append(phase).append(" took ")
+        .append(getTotalNanos(phase) / 1000).append("us:");
+    for (Entry entry : phaseEntries) {
+      summary.append(' ').append(entry).append(';');
+    }
+    return summary.toString();
+  }
+
+  @Override public String toString() {
+    return summary(START) + " " + summary(STOP);
+  }
+
+  /**
+   * The step a thread is timing
+   */
+  private static final class Step {
+    String phase;
+    String service;
+    String step;
+    long startNanos;
+    long startBytes;
+  }
+
+  /**
+   * One timed step
+   */
+  public static final class Entry {
+    private final String phase;
+    private final String service;
+    private final String step;
+    private final long nanos;
+    private final long allocatedBytes;
+
+    Entry(String phase, String service, String step, long nanos, long allocatedBytes) {
+      this.phase = phase;
+      this.service = service;
+      this.step = step;
+      this.nanos = nanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+
+    public String getPhase() {
+      return phase;
+    }
+
+    public String getService() {
+      return service;
+    }
+
+    public String getStep() {
+      return step;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * @return the bytes allocated by the step's thread, -1 if the JVM doesn't count them
+     */
+    public long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+
+    @Override public String toString() {
+      return service + " " + step + " " + nanos / 1000 + "us"
+          + (allocatedBytes < 0 ? "" : " " + allocatedBytes + "B");
+    }
+  }
+
+  /**
+   * Reads com.sun.management.ThreadMXBean#getThreadAllocatedBytes through reflection, so that
+   * the class still loads on Android
+   */
+  private static final class AllocationCounter {
+    private static final Object BEAN;
+    private static final Method ALLOCATED_BYTES;
+
+    static {
+      Object bean = null;
+      Method allocatedBytes = null;
+      try {
+        bean = Class.forName("java.lang.management.ManagementFactory")
+            .getMethod("getThreadMXBean")
+            .invoke(null);
+        allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+            .getMethod("getThreadAllocatedBytes", long.class);
+      } catch (Throwable e) {
+        bean = null;
+        allocatedBytes = null;
+      }
+      BEAN = bean;
+      ALLOCATED_BYTES = allocatedBytes;
+    }
+
+    static long allocatedBytes() {
+      if (ALLOCATED_BYTES == null) {
+        return -1;
+      }
+      try {
+        return (Long) ALLOCATED_BYTES.invoke(BEAN, Thread.currentThread().getId());
+      } catch (Throwable e) {
+        return -1;
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Starts the services of a generated bundle activator in waves. The services of a wave only depend
+ * on services of earlier waves, so they are started in parallel on the given executor and the next
+ * wave begins once all of them have been started. Start latency then follows the longest chain of
+ * dependencies instead of the number of services.
+ *
+ * The activator numbers its services wave by wave, so a wave is described by the index after its
+ * last service and the size of the description only depends on the number of waves.
+ */
+public final class StartupWaves {
+
+  /**
+   * Starts a single service, implemented by the generated activator
+   */
+  public interface Starter {
+
+    /**
+     * @param service the index of the service, services of earlier waves have lower indexes
+     */
+    void start(int service);
+  }
+
+  private StartupWaves() {
+  }
+
+  /**
+   * Runs the waves one after another. The last service of a wave is started on the calling thread,
+   * if the executor is null or rejects a task the other services are started there as well.
+   *
+   * @param waveEnds the index after the last service of each wave, in ascending order
+   *
+   * @throws RuntimeException the first exception thrown while starting a service, once the
+   * services of its wave that are already running are done
+   */
+  public static void run(Executor executor, int[] waveEnds, final Starter starter) {
+    int waveStart = 0;
+    for (int waveEnd : waveEnds) {
+      int last = waveEnd - 1;
+      if (last < waveStart) {
+        continue;
+      }
+      final CountDownLatch done = new CountDownLatch(last - waveStart);
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      for (int i = waveStart; i < last; i++) {
+        final int service = i;
+        Runnable task = new Runnable() {
+          @Override public void run() {
+            try {
+              starter.start(service);
+            } catch (Throwable t) {
+              failure.compareAndSet(null, t);
+            } finally {
+              done.countDown();
+            }
+          }
+        };
+        if (executor == null) {
+          task.run();
+          continue;
+        }
+        try {
+          executor.execute(task);
+        } catch (RejectedExecutionException e) {
+          task.run();
+        }
+      }
+
+      try {
+        starter.start(last);
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+      }
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      rethrow(failure.get());
+      waveStart = waveEnd;
+    }
+  }
+
+  private static void rethrow(Throwable failure) {
+    if (failure == null) {
+      return;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    throw new RuntimeException(failure);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks, used by generated proxies of services annotated with
+ * {@code @Service(concurrency = Service.Concurrency.STRIPED)}. Calls whose stripe keys hash to
+ * different stripes run in parallel, calls without a stripe key hold all stripes.
+ */
+public final class StripedLock {
+
+  private final ReentrantLock[] locks;
+  private final int mask;
+
+  public StripedLock(int stripes) {
+    if (stripes <= 0) {
+      throw new IllegalArgumentException("stripes must be positive but was " + stripes);
+    }
+    int count = 1;
+    while (count < stripes && count < (1 << 16)) {
+      count <<= 1;
+    }
+    locks = new ReentrantLock[count];
+    for (int i = 0; i < count; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    mask = count - 1;
+  }
+
+  public Lock forKey(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return locks[(int) (hash >>> 32) & mask];
+  }
+
+  public Lock forKey(Object key) {
+    if (key == null) {
+      return locks[0];
+    }
+    int hash = key.hashCode() * 0x9E3779B9;
+    return locks[(hash ^ (hash >>> 16)) & mask];
+  }
+
+  /**
+   * Acquires all stripes, always in the same order so that two callers can't deadlock
+   */
+  public void lockAll() {
+    for (ReentrantLock lock : locks) {
+      lock.lock();
+    }
+  }
+
+  public void unlockAll() {
+    for (int i = locks.length - 1; i >= 0; i--) {
+      locks[i].unlock();
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries the frames of remote service calls between two processes, see
+ * {@link com.apkplug.Service#remote()}. A transport only delimits frames, {@link RemoteClient} and
+ * {@link RemoteServer} encode the calls.
+ */
+public interface Transport {
+
+  /**
+   * Sends one frame made of the remaining bytes of the given buffers, without changing their
+   * positions. Can be called by many threads at the same time, frames are never interleaved.
+   */
+  void send(ByteBuffer[] frame) throws IOException;
+
+  /**
+   * Sets the receiver of incoming frames. Must be called before frames arrive.
+   */
+  void setReceiver(Receiver receiver);
+
+  /**
+   * Closes the transport, the receiver is notified with {@link Receiver#closed(IOException)}
+   */
+  void close() throws IOException;
+
+  /**
+   * Gets the frames received by a transport, on the transport's thread
+   */
+  interface Receiver {
+
+    /**
+     * @param frame a frame that belongs to the receiver from now on
+     */
+    void receive(ByteBuffer frame);
+
+    /**
+     * @param cause why the transport has been closed or null if it has been closed normally
+     */
+    void closed(IOException cause);
+  }
+}
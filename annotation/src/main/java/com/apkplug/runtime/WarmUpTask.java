@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of a background warm-up started by the generated {@code warmUp(Executor)} methods of
+ * factories and bundle activators. The task loads and initializes the given classes with the given
+ * class loader and then runs the optional warm-up calls, so that the first real call on the
+ * caller's thread doesn't have to pay for class loading and static initialization anymore.
+ */
+public final class WarmUpTask implements Runnable {
+
+  private final ClassLoader classLoader;
+  private final String[] classNames;
+  private final Runnable calls;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile Throwable failure;
+
+  private WarmUpTask(ClassLoader classLoader, String[] classNames, Runnable calls) {
+    this.classLoader = classLoader;
+    this.classNames = classNames;
+    this.calls = calls;
+  }
+
+  /**
+   * Starts a warm-up on the given executor.
+   *
+   * @param classNames binary names of the classes to load and initialize
+   * @param calls the warm-up calls to run once all classes are loaded, can be null
+   */
+  public static WarmUpTask submit(Executor executor, ClassLoader classLoader, String[] classNames,
+      Runnable calls) {
+    if (executor == null) {
+      throw new IllegalArgumentException("executor is null!");
+    }
+    WarmUpTask task = new WarmUpTask(classLoader, classNames, calls);
+    executor.execute(task);
+    return task;
+  }
+
+  @Override public void run() {
+    try {
+      for (String className : classNames) {
+        Class.forName(className, true, classLoader);
+      }
+      if (calls != null) {
+        calls.run();
+      }
+    } catch (Throwable t) {
+      failure = t;
+    } finally {
+      done.countDown();
+    }
+  }
+
+  /**
+   * @return true once the warm-up has finished, no matter if it succeeded or not
+   */
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /**
+   * Blocks until the warm-up has finished.
+   */
+  public void await() throws InterruptedException {
+    done.await();
+  }
+
+  /**
+   * Blocks until the warm-up has finished or the timeout has elapsed.
+   *
+   * @return true if the warm-up has finished
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    return done.await(timeout, unit);
+  }
+
+  /**
+   * @return the error that aborted the warm-up or null if it succeeded (or is still running)
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+}
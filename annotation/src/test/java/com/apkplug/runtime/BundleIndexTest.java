@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BundleIndexTest {
+
+  @Test public void roundTripKeepsServicesAndFactories() throws IOException {
+    BundleIndex index = new BundleIndex();
+    index.addService(service("a.SimpleBundle", "a.Store", "a.StoreImpl",
+        BundleIndex.FLAG_LAZY, BundleIndex.FLAG_ASYNC));
+    index.addFactory(new BundleIndex.Factory("a.MealFactory", "a.Meal", Arrays.asList(
+        new BundleIndex.Product(0, "plain", "a.Plain"),
+        new BundleIndex.Product(1, "tab\there", "a.Tab"),
+        new BundleIndex.Product(2, "back\\slash\\t", "a.Backslash"),
+        new BundleIndex.Product(3, "line\nbreak\r", "a.LineBreak"),
+        new BundleIndex.Product(4, "trailing\\", "a.Trailing"))));
+
+    BundleIndex read = read(write(index));
+
+    assertEquals(index.getServices(), read.getServices());
+    assertEquals(index.getFactories(), read.getFactories());
+    BundleIndex.Factory factory = read.getFactory("a.MealFactory");
+    assertEquals("a.Tab", factory.getProduct("tab\there").getClassName());
+    assertEquals("a.Backslash", factory.getProduct("back\\slash\\t").getClassName());
+    assertEquals("a.LineBreak", factory.getProduct("line\nbreak\r").getClassName());
+    assertEquals("a.Trailing", factory.getProduct("trailing\\").getClassName());
+    assertNull(factory.getProduct("back\\slash\t"));
+    assertEquals(new LinkedHashSet<String>(Arrays.asList(BundleIndex.FLAG_LAZY,
+        BundleIndex.FLAG_ASYNC)), read.getService("a.Store").getFlags());
+  }
+
+  @Test public void concatenatedIndexesOfSeveralModulesAreMerged() throws IOException {
+    BundleIndex first = new BundleIndex();
+    first.addService(service("a.SimpleBundle", "a.Store", "a.StoreImpl"));
+    first.addFactory(new BundleIndex.Factory("a.MealFactory", "a.Meal",
+        Collections.singletonList(new BundleIndex.Product(0, "tab\tid", "a.Tab"))));
+    BundleIndex second = new BundleIndex();
+    second.addService(service("b.SimpleBundle", "b.Log", "b.LogImpl"));
+    second.addFactory(new BundleIndex.Factory("b.ToolFactory", "b.Tool",
+        Collections.singletonList(new BundleIndex.Product(0, "c:\\tools", "b.Tools"))));
+
+    // What gradle/apkplug-index.gradle writes to app.index
+    ByteArrayOutputStream appIndex = new ByteArrayOutputStream();
+    appIndex.write(write(first));
+    appIndex.write(write(second));
+    BundleIndex read = read(appIndex.toByteArray());
+
+    assertEquals(Arrays.asList(first.getService("a.Store"), second.getService("b.Log")),
+        read.getServices());
+    assertEquals(Arrays.asList(first.getFactory("a.MealFactory"),
+        second.getFactory("b.ToolFactory")), read.getFactories());
+    assertEquals(new LinkedHashSet<String>(Arrays.asList("a.SimpleBundle", "b.SimpleBundle")),
+        read.getActivators());
+    assertEquals("b.Tools",
+        read.getFactory("b.ToolFactory").getProduct("c:\\tools").getClassName());
+  }
+
+  @Test public void emptyIndexIsRejected() {
+    try {
+      read(new byte[0]);
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().contains("Empty index"));
+      return;
+    }
+    fail("An empty index should be rejected");
+  }
+
+  private static BundleIndex.Service service(String activator, String interfaceName,
+      String implementation, String... flags) {
+    return new BundleIndex.Service(activator, interfaceName.substring(2), interfaceName,
+        implementation, interfaceName + "Proxy", 0,
+        new LinkedHashSet<String>(Arrays.asList(flags)),
+        Collections.singletonList(new BundleIndex.Method("get(java.lang.String)", "int")));
+  }
+
+  private static byte[] write(BundleIndex index) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    index.write(out);
+    return out.toByteArray();
+  }
+
+  private static BundleIndex read(byte[] bytes) throws IOException {
+    return BundleIndex.read(new ByteArrayInputStream(bytes));
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import com.apkplug.Service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MailboxTest {
+
+  @Test public void runsCallsInPostingOrder() throws Exception {
+    Mailbox mailbox = new Mailbox("order", 16, Service.Overflow.BLOCK);
+    final List<Integer> calls = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 1000; i++) {
+      final int call = i;
+      expected.add(call);
+      mailbox.post(new Runnable() {
+        @Override public void run() {
+          calls.add(call);
+        }
+      });
+    }
+    mailbox.flush();
+
+    assertEquals(expected, calls);
+    assertEquals(1000, mailbox.getExecuted());
+    assertEquals(0, mailbox.getPending());
+    mailbox.shutdown();
+  }
+
+  @Test public void mailboxesShareTheExecutorThreads() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+    List<Mailbox> mailboxes = new ArrayList<Mailbox>();
+    List<List<Integer>> calls = new ArrayList<List<Integer>>();
+    for (int i = 0; i < 50; i++) {
+      mailboxes.add(new Mailbox("shared" + i, 8, Service.Overflow.BLOCK, executor));
+      calls.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+    for (int call = 0; call < 100; call++) {
+      for (int i = 0; i < mailboxes.size(); i++) {
+        final List<Integer> mailboxCalls = calls.get(i);
+        final int value = call;
+        mailboxes.get(i).post(new Runnable() {
+          @Override public void run() {
+            threads.add(Thread.currentThread());
+            mailboxCalls.add(value);
+          }
+        });
+      }
+    }
+    for (Mailbox mailbox : mailboxes) {
+      mailbox.shutdown();
+    }
+    executor.shutdown();
+
+    assertEquals(1, threads.size());
+    for (List<Integer> mailboxCalls : calls) {
+      assertEquals(100, mailboxCalls.size());
+      for (int call = 0; call < 100; call++) {
+        assertEquals(Integer.valueOf(call), mailboxCalls.get(call));
+      }
+    }
+  }
+
+  @Test public void shutdownRunsQueuedCalls() {
+    Mailbox mailbox = new Mailbox("shutdown", 1024, Service.Overflow.BLOCK);
+    final AtomicInteger calls = new AtomicInteger();
+    for (int i = 0; i < 500; i++) {
+      mailbox.post(new Runnable() {
+        @Override public void run() {
+          calls.incrementAndGet();
+        }
+      });
+    }
+    mailbox.shutdown();
+
+    assertEquals(500, calls.get());
+  }
+
+  @Test public void postAfterShutdownRunsOnTheCaller() {
+    Mailbox mailbox = new Mailbox("closed", 4, Service.Overflow.BLOCK);
+    mailbox.shutdown();
+    final Thread caller = Thread.currentThread();
+    final AtomicInteger inline = new AtomicInteger();
+    mailbox.post(new Runnable() {
+      @Override public void run() {
+        if (Thread.currentThread() == caller) {
+          inline.incrementAndGet();
+        }
+      }
+    });
+
+    assertEquals(1, inline.get());
+  }
+
+  @Test public void noCallIsLostWhenShutdownRacesWithProducers() throws Exception {
+    for (int round = 0; round < 50; round++) {
+      final Mailbox mailbox = new Mailbox("race" + round, 8, Service.Overflow.BLOCK);
+      final AtomicInteger calls = new AtomicInteger();
+      final Runnable increment = new Runnable() {
+        @Override public void run() {
+          calls.incrementAndGet();
+        }
+      };
+      int producers = 4;
+      final int perProducer = 200;
+      final CountDownLatch start = new CountDownLatch(1);
+      Thread[] threads = new Thread[producers];
+      for (int i = 0; i < producers; i++) {
+        threads[i] = new Thread(new Runnable() {
+          @Override public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            for (int j = 0; j < perProducer; j++) {
+              mailbox.post(increment);
+            }
+          }
+        });
+        threads[i].start();
+      }
+      start.countDown();
+      mailbox.shutdown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      assertEquals(producers * perProducer, calls.get());
+    }
+  }
+
+  @Test public void failingCallsAreCountedAndDoNotStopTheConsumer() throws Exception {
+    Mailbox mailbox = new Mailbox("failing", 4, Service.Overflow.BLOCK);
+    final AtomicInteger calls = new AtomicInteger();
+    mailbox.post(new Runnable() {
+      @Override public void run() {
+        throw new IllegalStateException("expected by the test");
+      }
+    });
+    mailbox.post(new Runnable() {
+      @Override public void run() {
+        calls.incrementAndGet();
+      }
+    });
+    mailbox.flush();
+
+    assertEquals(1, mailbox.getFailed());
+    assertEquals(1, calls.get());
+    mailbox.shutdown();
+  }
+
+  @Test public void fullMailboxAppliesOverflowPolicy() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable blocking = new Runnable() {
+      @Override public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    Runnable noop = new Runnable() {
+      @Override public void run() {
+      }
+    };
+
+    Mailbox dropping = new Mailbox("drop", 1, Service.Overflow.DROP);
+    Mailbox failing = new Mailbox("fail", 1, Service.Overflow.FAIL);
+    dropping.post(blocking);
+    failing.post(blocking);
+    // The blocking task may still be queued, so fill until the policy kicks in
+    for (int i = 0; i < 3; i++) {
+      dropping.post(noop);
+    }
+    try {
+      for (int i = 0; i < 3; i++) {
+        failing.post(noop);
+      }
+      fail();
+    } catch (RejectedExecutionException expected) {
+    }
+    release.countDown();
+    dropping.shutdown();
+    failing.shutdown();
+
+    assertEquals(true, dropping.getDropped() > 0);
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class MemoCacheTest {
+
+  @Test public void cachesLongAndObjectKeys() {
+    MemoCache<String> cache = new MemoCache<String>("test", 16, 0);
+    assertSame(MemoCache.MISS, cache.get(42L));
+    assertEquals("a", cache.load(42L, constant("a")));
+    assertEquals("a", cache.get(42L));
+
+    Object key = MemoCache.key("x", 1);
+    assertSame(MemoCache.MISS, cache.get(key));
+    assertEquals("b", cache.load(key, constant("b")));
+    assertEquals("b", cache.get(MemoCache.key("x", 1)));
+
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test public void cachesNullValuesAndNullKeys() {
+    MemoCache<String> cache = new MemoCache<String>("test", 4, 0);
+    assertNull(cache.load((Object) null, constant(null)));
+    assertNull(cache.get((Object) null));
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test public void concurrentMissesRunTheLoaderOnce() throws Exception {
+    final MemoCache<Integer> cache = new MemoCache<Integer>("test", 16, 0);
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final MemoCache.Loader<Integer> loader = new MemoCache.Loader<Integer>() {
+      @Override public Integer load() {
+        loads.incrementAndGet();
+        loading.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return 7;
+      }
+    };
+
+    final List<Integer> results = new ArrayList<Integer>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override public void run() {
+          Integer result = cache.load(1L, loader);
+          synchronized (results) {
+            results.add(result);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+      if (i == 0) {
+        // The first caller owns the flight, the others find it running
+        loading.await();
+      }
+    }
+    // Give the followers time to join the running flight before it completes
+    Thread.sleep(100);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, loads.get());
+    assertEquals(8, results.size());
+    for (Integer result : results) {
+      assertEquals(Integer.valueOf(7), result);
+    }
+  }
+
+  @Test public void failedLoadsAreRethrownAndNotCached() {
+    MemoCache<String> cache = new MemoCache<String>("test", 4, 0);
+    try {
+      cache.load(1L, new MemoCache.Loader<String>() {
+        @Override public String load() {
+          throw new IllegalStateException("boom");
+        }
+      });
+      fail();
+    } catch (IllegalStateException expected) {
+      assertEquals("boom", expected.getMessage());
+    }
+    assertSame(MemoCache.MISS, cache.get(1L));
+    assertEquals("ok", cache.load(1L, constant("ok")));
+  }
+
+  @Test public void expiredEntriesAreMisses() throws Exception {
+    MemoCache<String> cache = new MemoCache<String>("test", 4, 1);
+    cache.load(1L, constant("a"));
+    Thread.sleep(20);
+    assertSame(MemoCache.MISS, cache.get(1L));
+  }
+
+  @Test public void keysOfTheSameSetDontEvictEachOther() {
+    MemoCache<String> cache = new MemoCache<String>("test", 1, 0);
+    for (long key = 1; key <= MemoCache.WAYS; key++) {
+      cache.load(key, constant("v" + key));
+    }
+
+    for (long key = 1; key <= MemoCache.WAYS; key++) {
+      assertEquals("v" + key, cache.get(key));
+    }
+    assertEquals(0, cache.getEvictions());
+  }
+
+  @Test public void fullSetEvictsAnEntryThatWasNotHit() {
+    MemoCache<String> cache = new MemoCache<String>("test", 1, 0);
+    for (long key = 1; key <= MemoCache.WAYS; key++) {
+      cache.load(key, constant("v" + key));
+    }
+    for (long key = 1; key < MemoCache.WAYS; key++) {
+      cache.get(key);
+    }
+    cache.load(100L, constant("new"));
+
+    assertSame(MemoCache.MISS, cache.get((long) MemoCache.WAYS));
+    for (long key = 1; key < MemoCache.WAYS; key++) {
+      assertEquals("v" + key, cache.get(key));
+    }
+    assertEquals("new", cache.get(100L));
+    assertEquals(1, cache.getEvictions());
+  }
+
+  private static MemoCache.Loader<String> constant(final String value) {
+    return new MemoCache.Loader<String>() {
+      @Override public String load() {
+        return value;
+      }
+    };
+  }
+}
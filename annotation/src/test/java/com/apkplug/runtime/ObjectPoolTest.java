@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectPoolTest {
+
+  @Test public void emptyPoolReturnsNull() {
+    assertNull(new ObjectPool<Object>(4).acquire());
+  }
+
+  @Test public void releasedInstanceIsAcquiredAgain() {
+    ObjectPool<Object> pool = new ObjectPool<Object>(4);
+    Object item = new Object();
+    assertTrue(pool.release(item));
+    assertSame(item, pool.acquire());
+    assertNull(pool.acquire());
+  }
+
+  @Test public void fullPoolDropsReleasedInstances() {
+    ObjectPool<Object> pool = new ObjectPool<Object>(2);
+    assertTrue(pool.release(new Object()));
+    assertTrue(pool.release(new Object()));
+    assertFalse(pool.release(new Object()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void releasingNullFails() {
+    new ObjectPool<Object>(1).release(null);
+  }
+
+  @Test public void concurrentCallersNeverShareAnInstance() throws Exception {
+    final ObjectPool<Object> pool = new ObjectPool<Object>(4);
+    for (int i = 0; i < 4; i++) {
+      pool.release(new Object());
+    }
+    final Set<Object> inUse = Collections.synchronizedSet(
+        Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+    final AtomicBoolean shared = new AtomicBoolean();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < 10000; j++) {
+            Object item = pool.acquire();
+            if (item == null) {
+              continue;
+            }
+            if (!inUse.add(item)) {
+              shared.set(true);
+            }
+            inUse.remove(item);
+            pool.release(item);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertFalse(shared.get());
+    int idle = 0;
+    while (pool.acquire() != null) {
+      idle++;
+    }
+    assertTrue("instances lost: " + idle, idle == 4);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RemoteClientTest {
+
+  private static final int DOUBLE = 1;
+  private static final int FAIL = 2;
+
+  private final ExecutorService serverExecutor = Executors.newFixedThreadPool(4);
+
+  @After public void tearDown() {
+    serverExecutor.shutdownNow();
+  }
+
+  @Test public void responsesAreMatchedToTheirCalls() {
+    RemoteClient client = connect();
+    List<RemoteCall> calls = new ArrayList<RemoteCall>();
+    for (int i = 0; i < 100; i++) {
+      calls.add(client.send(DOUBLE, new RemoteOutput().putInt(i)));
+    }
+
+    // Calls finish out of order, every response still has to reach its own call
+    for (int i = 0; i < calls.size(); i++) {
+      assertEquals(i * 2, calls.get(i).await().getInt());
+    }
+  }
+
+  @Test public void serviceFailuresAreRethrown() {
+    RemoteClient client = connect();
+    try {
+      client.call(FAIL, null);
+      fail();
+    } catch (RemoteException expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().contains("service failed"));
+    }
+  }
+
+  @Test public void closingFailsCallsInFlightAndLaterCalls() throws Exception {
+    // Nobody answers on the other side
+    Loopback transport = new Loopback();
+    new Loopback().connect(transport);
+    RemoteClient client = new RemoteClient(transport);
+    RemoteCall inFlight = client.send(DOUBLE, new RemoteOutput().putInt(1));
+
+    client.close();
+
+    try {
+      inFlight.await();
+      fail();
+    } catch (RemoteException expected) {
+    }
+    RemoteCall late = client.send(DOUBLE, new RemoteOutput().putInt(2));
+    assertTrue(late.isDone());
+    try {
+      late.await();
+      fail();
+    } catch (RemoteException expected) {
+    }
+  }
+
+  private RemoteClient connect() {
+    Loopback clientSide = new Loopback();
+    Loopback serverSide = new Loopback();
+    clientSide.connect(serverSide);
+    new RemoteServer(serverSide, new RemoteServer.Skeleton() {
+      @Override public void invoke(int methodId, ByteBuffer arguments, RemoteOutput result) {
+        if (methodId == FAIL) {
+          throw new IllegalStateException("service failed");
+        }
+        int value = arguments.getInt();
+        try {
+          Thread.sleep(value % 5);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        result.putInt(value * 2);
+      }
+    }, serverExecutor);
+    return new RemoteClient(clientSide);
+  }
+
+  /**
+   * Delivers every frame to the peer on the sending thread
+   */
+  private static final class Loopback implements Transport {
+    private Loopback peer;
+    private volatile Receiver receiver;
+    private volatile boolean closed;
+
+    void connect(Loopback other) {
+      peer = other;
+      other.peer = this;
+    }
+
+    @Override public void send(ByteBuffer[] frame) throws IOException {
+      if (closed) {
+        throw new IOException("closed");
+      }
+      int length = 0;
+      for (ByteBuffer buffer : frame) {
+        length += buffer.remaining();
+      }
+      ByteBuffer copy = ByteBuffer.allocate(length);
+      for (ByteBuffer buffer : frame) {
+        copy.put(buffer.duplicate());
+      }
+      copy.flip();
+      Receiver peerReceiver = peer.receiver;
+      if (peerReceiver != null) {
+        peerReceiver.receive(copy);
+      }
+    }
+
+    @Override public void setReceiver(Receiver receiver) {
+      this.receiver = receiver;
+    }
+
+    @Override public void close() {
+      closed = true;
+      receiver.closed(null);
+    }
+  }
+}
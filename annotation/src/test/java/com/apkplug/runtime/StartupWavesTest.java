@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.runtime;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StartupWavesTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void wavesStartAfterThePreviousWaveIsDone() {
+    final List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+    StartupWaves.run(executor, new int[] { 3, 5, 6 }, new StartupWaves.Starter() {
+      @Override public void start(int service) {
+        if (service < 3) {
+          sleep(20);
+        }
+        started.add(service);
+      }
+    });
+
+    assertEquals(6, started.size());
+    for (int i = 0; i < started.size(); i++) {
+      int wave = started.get(i) < 3 ? 0 : started.get(i) < 5 ? 1 : 2;
+      for (int j = i + 1; j < started.size(); j++) {
+        int laterWave = started.get(j) < 3 ? 0 : started.get(j) < 5 ? 1 : 2;
+        assertTrue("service " + started.get(j) + " started before " + started.get(i),
+            laterWave >= wave);
+      }
+    }
+  }
+
+  @Test public void failureStopsLaterWavesOnceItsWaveIsDone() {
+    final List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+    try {
+      StartupWaves.run(executor, new int[] { 3, 4 }, new StartupWaves.Starter() {
+        @Override public void start(int service) {
+          if (service == 0) {
+            throw new IllegalStateException("service 0 failed");
+          }
+          sleep(20);
+          started.add(service);
+        }
+      });
+      fail();
+    } catch (IllegalStateException expected) {
+      assertEquals("service 0 failed", expected.getMessage());
+    }
+
+    // The rest of the failed wave has finished, the next wave never started
+    Collections.sort(started);
+    assertEquals(Arrays.asList(1, 2), started);
+  }
+
+  @Test public void checkedFailuresAreWrapped() {
+    try {
+      StartupWaves.run(null, new int[] { 1 }, new StartupWaves.Starter() {
+        @Override public void start(int service) {
+          throw sneaky(new Exception("checked"));
+        }
+      });
+      fail();
+    } catch (RuntimeException expected) {
+      assertEquals("checked", expected.getCause().getMessage());
+    }
+  }
+
+  @Test public void startsOnTheCallerWithoutOrWithARejectingExecutor() {
+    final Thread caller = Thread.currentThread();
+    final List<Integer> elsewhere = Collections.synchronizedList(new ArrayList<Integer>());
+    StartupWaves.Starter starter = new StartupWaves.Starter() {
+      @Override public void start(int service) {
+        if (Thread.currentThread() != caller) {
+          elsewhere.add(service);
+        }
+      }
+    };
+    StartupWaves.run(null, new int[] { 3 }, starter);
+    StartupWaves.run(new Executor() {
+      @Override public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    }, new int[] { 3 }, starter);
+
+    assertTrue(elsewhere.isEmpty());
+  }
+
+  @Test public void emptyWavesAreSkipped() {
+    final List<Integer> started = new ArrayList<Integer>();
+    StartupWaves.run(null, new int[] { 0, 1, 1, 2 }, new StartupWaves.Starter() {
+      @Override public void start(int service) {
+        started.add(service);
+      }
+    });
+
+    assertEquals(Arrays.asList(0, 1), started);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static RuntimeException sneaky(Throwable t) {
+    StartupWavesTest.<RuntimeException>throwUnchecked(t);
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends Throwable> void throwUnchecked(Throwable t) throws T {
+    throw (T) t;
+  }
+}
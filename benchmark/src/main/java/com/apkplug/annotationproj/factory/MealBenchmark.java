@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.annotationproj.factory;
+
+import com.apkplug.benchmark.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the generated {@link MealFactory} of the sample app with the hand written
+ * {@link PizzaStore_HandWritten}, reflection and a map of suppliers. The meals are ordered in
+ * turn, so that no lookup can be folded into a constant. It lives in the package of the meals
+ * because the generated factory is package private.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MealBenchmark {
+
+  private static final String[] MEALS = {"Margherita", "Calzone", "Tiramisu"};
+
+  private static final String[] CLASS_NAMES = {
+      MargheritaPizza.class.getName(), CalzonePizza.class.getName(), Tiramisu.class.getName()
+  };
+
+  private final MealFactory factory = new MealFactory();
+  private final PizzaStore_HandWritten handWritten = new PizzaStore_HandWritten();
+  private final Map<String, Supplier<Meal>> suppliers = new HashMap<String, Supplier<Meal>>();
+  private int next;
+
+  public MealBenchmark() {
+    suppliers.put("Margherita", new Supplier<Meal>() {
+      @Override public Meal get() {
+        return new MargheritaPizza();
+      }
+    });
+    suppliers.put("Calzone", new Supplier<Meal>() {
+      @Override public Meal get() {
+        return new CalzonePizza();
+      }
+    });
+    suppliers.put("Tiramisu", new Supplier<Meal>() {
+      @Override public Meal get() {
+        return new Tiramisu();
+      }
+    });
+  }
+
+  private int nextMeal() {
+    int meal = next;
+    next = meal == MEALS.length - 1 ? 0 : meal + 1;
+    return meal;
+  }
+
+  @Benchmark public Meal generatedFactory() {
+    return factory.create(MEALS[nextMeal()]);
+  }
+
+  @Benchmark public Meal handWritten() {
+    return handWritten.order(MEALS[nextMeal()]);
+  }
+
+  @Benchmark public Object reflection() throws Exception {
+    return Class.forName(CLASS_NAMES[nextMeal()]).newInstance();
+  }
+
+  @Benchmark public Meal supplierMap() {
+    Supplier<Meal> supplier = suppliers.get(MEALS[nextMeal()]);
+    if (supplier == null) {
+      throw new IllegalArgumentException("Unknown meal");
+    }
+    return supplier.get();
+  }
+}
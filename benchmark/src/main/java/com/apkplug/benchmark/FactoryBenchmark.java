@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.benchmark;
+
+import com.apkplug.benchmark.products.ProductSets;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how creating a product scales with the number of products of a factory. The factories
+ * and their products are generated by the build, see {@code productCounts} in build.gradle, and
+ * the products are created in turn.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class FactoryBenchmark {
+
+  @Param({"4", "16", "64", "256"})
+  public int products;
+
+  private ProductSet productSet;
+  private String[] ids;
+  private String[] classNames;
+  private int next;
+
+  @Setup public void setUp() {
+    productSet = ProductSets.get(products);
+    ids = productSet.ids();
+    classNames = productSet.classNames();
+  }
+
+  private int nextProduct() {
+    int product = next;
+    next = product == ids.length - 1 ? 0 : product + 1;
+    return product;
+  }
+
+  @Benchmark public Object generatedFactory() {
+    return productSet.create(ids[nextProduct()]);
+  }
+
+  @Benchmark public Object generatedFactoryByIndex() {
+    return productSet.create(nextProduct());
+  }
+
+  @Benchmark public Object handWritten() {
+    return productSet.createHandWritten(ids[nextProduct()]);
+  }
+
+  @Benchmark public Object reflection() throws Exception {
+    return Class.forName(classNames[nextProduct()]).newInstance();
+  }
+
+  @Benchmark public Object supplierMap() {
+    return productSet.createFromSupplier(ids[nextProduct()]);
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.benchmark;
+
+import com.apkplug.Export;
+import com.apkplug.Service;
+
+/**
+ * The service of the sample app's {@code Person}, without its Android log call, so that the
+ * processor generates the same {@code CallProxy} for {@link ProxyBenchmark}
+ */
+@Service(name = "Call")
+public class Person {
+
+  @Export public void call() {
+  }
+
+  @Export public int add(int a, int b) {
+    return a + b;
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.benchmark;
+
+/**
+ * The products of one of the synthetic factories generated by the build and every way to create
+ * them that {@link FactoryBenchmark} compares
+ */
+public interface ProductSet {
+
+  /**
+   * The ids of the products
+   */
+  String[] ids();
+
+  /**
+   * The binary names of the products, in the same order as {@link #ids()}
+   */
+  String[] classNames();
+
+  /**
+   * Calls {@code create(String)} of the generated factory
+   */
+  Object create(String id);
+
+  /**
+   * Calls {@code create(int)} of the generated factory, the index of a product is between 0 and
+   * the number of products but it is the generated factory that numbers them
+   */
+  Object create(int id);
+
+  /**
+   * A chain of equals() calls like {@code PizzaStore_HandWritten}
+   */
+  Object createHandWritten(String id);
+
+  /**
+   * Looks up a {@link Supplier} in a map
+   */
+  Object createFromSupplier(String id);
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a call through the generated {@link CallProxy} with a direct call and a call through
+ * a {@link Proxy}. The contended variants share the same service instances between threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProxyBenchmark {
+
+  private static final int CONTENDED_THREADS = 4;
+
+  /**
+   * The services, shared by all threads
+   */
+  @State(Scope.Benchmark)
+  public static class Services {
+
+    Person person;
+    Call generatedProxy;
+    Call reflectionProxy;
+
+    @Setup public void setUp() throws NoSuchMethodException {
+      person = new Person();
+      generatedProxy = new CallProxy(person);
+
+      // Resolved once, like a hand written invocation handler would
+      final Map<Method, Method> targets = new HashMap<Method, Method>();
+      for (Method method : Call.class.getMethods()) {
+        targets.put(method, Person.class.getMethod(method.getName(), method.getParameterTypes()));
+      }
+      reflectionProxy = (Call) Proxy.newProxyInstance(Call.class.getClassLoader(),
+          new Class<?>[] {Call.class}, new InvocationHandler() {
+            @Override public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+              try {
+                return targets.get(method).invoke(person, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            }
+          });
+    }
+  }
+
+  /**
+   * The arguments of a thread, fields keep the JIT from folding the calls
+   */
+  @State(Scope.Thread)
+  public static class Arguments {
+    int a = 1;
+    int b = 2;
+  }
+
+  @Benchmark public int direct(Services services, Arguments arguments) {
+    return services.person.add(arguments.a, arguments.b);
+  }
+
+  @Benchmark public int generatedProxy(Services services, Arguments arguments) {
+    return services.generatedProxy.add(arguments.a, arguments.b);
+  }
+
+  @Benchmark public int reflectionProxy(Services services, Arguments arguments) {
+    return services.reflectionProxy.add(arguments.a, arguments.b);
+  }
+
+  @Benchmark @Threads(CONTENDED_THREADS)
+  public int directContended(Services services, Arguments arguments) {
+    return services.person.add(arguments.a, arguments.b);
+  }
+
+  @Benchmark @Threads(CONTENDED_THREADS)
+  public int generatedProxyContended(Services services, Arguments arguments) {
+    return services.generatedProxy.add(arguments.a, arguments.b);
+  }
+
+  @Benchmark @Threads(CONTENDED_THREADS)
+  public int reflectionProxyContended(Services services, Arguments arguments) {
+    return services.reflectionProxy.add(arguments.a, arguments.b);
+  }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug.benchmark;
+
+import com.apkplug.FactoryProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Measures how {@link FactoryProcessor} scales with the number of annotated elements. For every
+ * scenario it writes synthetic sources with the given number of @Factory, @Service and @Export
+ * elements, runs the processor in-process through the compiler API ({@code -proc:only}) and
+ * reports wall time, rounds, allocated and generated bytes as JSON. Processor options can be passed
+ * with {@code --option}. The generated files are built on the compiling thread
+ * ({@code apkplug.parallel=false}) unless {@code --option apkplug.parallel=true} is given, because
+ * the allocated bytes can only be measured for the compiling thread: with parallel code generation
+ * they are reported as null.
+ *
+ * <pre>
+ * ProcessorBenchmark [--sizes 100,1000,5000,20000] [--warmup 1] [--iterations 3] [--out file]
+ *     [--option key=value]...
+ * </pre>
+ */
+public final class ProcessorBenchmark {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Products per @Factory group
+   */
+  private static final int PRODUCTS_PER_FACTORY = 20;
+
+  /**
+   * @Export methods per @Service class
+   */
+  private static final int EXPORTS_PER_SERVICE = 4;
+
+  private ProcessorBenchmark() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    int[] sizes = {100, 1000, 5000, 20000};
+    int warmup = 1;
+    int iterations = 3;
+    File out = null;
+    List<String> processorOptions = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      if ("--sizes".equals(args[i])) {
+        String[] parts = args[++i].split(",");
+        sizes = new int[parts.length];
+        for (int j = 0; j < parts.length; j++) {
+          sizes[j] = Integer.parseInt(parts[j].trim());
+        }
+      } else if ("--warmup".equals(args[i])) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if ("--iterations".equals(args[i])) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if ("--out".equals(args[i])) {
+        out = new File(args[++i]);
+      } else if ("--option".equals(args[i])) {
+        processorOptions.add("-A" + args[++i]);
+      } else {
+        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+      }
+    }
+
+    boolean parallel = false;
+    boolean parallelSet = false;
+    for (String option : processorOptions) {
+      if (option.startsWith("-A" + FactoryProcessor.OPTION_PARALLEL + "=")) {
+        parallelSet = true;
+        parallel = !option.endsWith("=false");
+      }
+    }
+    if (!parallelSet) {
+      processorOptions.add("-A" + FactoryProcessor.OPTION_PARALLEL + "=false");
+    }
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new IllegalStateException("The benchmark has to run on a JDK");
+    }
+
+    List<Result> results = new ArrayList<Result>();
+    for (int size : sizes) {
+      Scenario scenario = new Scenario(size);
+      File workDir = createTempDir("apkplug-benchmark-" + size);
+      try {
+        List<File> sources = scenario.writeSources(new File(workDir, "src"));
+        for (int i = 0; i < warmup; i++) {
+          run(compiler, sources, processorOptions, new File(workDir, "warmup" + i));
+        }
+        Result result = new Result(scenario, iterations, parallel);
+        for (int i = 0; i < iterations; i++) {
+          result.add(run(compiler, sources, processorOptions, new File(workDir, "run" + i)));
+        }
+        results.add(result);
+        System.err.println(result.toJson());
+      } finally {
+        delete(workDir);
+      }
+    }
+
+    String json = toJson(results);
+    if (out == null) {
+      System.out.println(json);
+    } else {
+      File parent = out.getAbsoluteFile().getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("Can't create " + parent);
+      }
+      write(out, json);
+      System.err.println("Wrote " + out);
+    }
+  }
+
+  /**
+   * Runs the processor once over the given sources
+   */
+  private static Run run(JavaCompiler compiler, List<File> sources,
+      List<String> processorOptions, File outDir) throws IOException {
+    File generatedDir = new File(outDir, "generated");
+    File classesDir = new File(outDir, "classes");
+    if (!generatedDir.mkdirs() || !classesDir.mkdirs()) {
+      throw new IOException("Can't create " + outDir);
+    }
+
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    StandardJavaFileManager fileManager =
+        compiler.getStandardFileManager(diagnostics, Locale.ROOT, UTF_8);
+    try {
+      List<String> options = new ArrayList<String>(Arrays.asList("-proc:only", "-nowarn",
+          "-classpath", System.getProperty("java.class.path"),
+          "-s", generatedDir.getPath(), "-d", classesDir.getPath()));
+      options.addAll(processorOptions);
+      CountingProcessor processor = new CountingProcessor(new FactoryProcessor());
+      JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options,
+          null, fileManager.getJavaFileObjectsFromFiles(sources));
+      task.setProcessors(Collections.singletonList(processor));
+
+      System.gc();
+      long startBytes = allocatedBytes();
+      long startNanos = System.nanoTime();
+      boolean success = task.call();
+      long nanos = System.nanoTime() - startNanos;
+      long bytes = allocatedBytes() - startBytes;
+      if (!success) {
+        throw new IllegalStateException("Processing failed: " + diagnostics.getDiagnostics());
+      }
+
+      long[] generated = sizeOf(generatedDir);
+      return new Run(nanos, processor.rounds, bytes, generated[0], generated[1]);
+    } finally {
+      fileManager.close();
+    }
+  }
+
+  /**
+   * Only counts the calling thread, the threads of parallel code generation are gone by the end of
+   * the run
+   */
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * @return the number of files and their total size
+   */
+  private static long[] sizeOf(File dir) {
+    long[] size = new long[2];
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return size;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        long[] children = sizeOf(file);
+        size[0] += children[0];
+        size[1] += children[1];
+      } else {
+        size[0]++;
+        size[1] += file.length();
+      }
+    }
+    return size;
+  }
+
+  private static File createTempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Can't create " + dir);
+    }
+    return dir;
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void write(File file, String content) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+    try {
+      writer.write(content);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static String toJson(List<Result> results) {
+    StringBuilder json = new StringBuilder()
+        .append("{\n  \"benchmark\": \"").append(FactoryProcessor.class.getName())
+        .append("\",\n  \"java\": \"").append(System.getProperty("java.version"))
+        .append("\",\n  \"scenarios\": [");
+    for (int i = 0; i < results.size(); i++) {
+      json.append(i == 0 ? "\n    " : ",\n    ").append(results.get(i).toJson());
+    }
+    return json.append("\n  ]\n}\n").toString();
+  }
+
+  /**
+   * The synthetic sources of one scenario. Half of the elements are @Factory products, the other
+   * half @Service classes with their @Export methods.
+   */
+  static final class Scenario {
+    final int elements;
+    final int products;
+    final int factories;
+    final int services;
+    final int exports;
+
+    Scenario(int elements) {
+      this.elements = elements;
+      products = Math.max(1, elements / 2);
+      factories = (products + PRODUCTS_PER_FACTORY - 1) / PRODUCTS_PER_FACTORY;
+      services = Math.max(1, (elements - products) / (EXPORTS_PER_SERVICE + 1));
+      exports = services * EXPORTS_PER_SERVICE;
+    }
+
+    List<File> writeSources(File dir) throws IOException {
+      List<File> files = new ArrayList<File>();
+      File factoryDir = new File(dir, "bench/factory");
+      File serviceDir = new File(dir, "bench/service");
+      if (!factoryDir.mkdirs() || !serviceDir.mkdirs()) {
+        throw new IOException("Can't create " + dir);
+      }
+
+      for (int f = 0; f < factories; f++) {
+        File base = new File(factoryDir, "Meal" + f + ".java");
+        write(base, "package bench.factory;\n\npublic interface Meal" + f + " {\n"
+            + "  float getPrice();\n}\n");
+        files.add(base);
+      }
+      for (int p = 0; p < products; p++) {
+        int f = p % factories;
+        File product = new File(factoryDir, "Dish" + p + ".java");
+        write(product, "package bench.factory;\n\nimport com.apkplug.Factory;\n\n"
+            + "@Factory(id = \"Dish" + p + "\", type = Meal" + f + ".class)\n"
+            + "public class Dish" + p + " implements Meal" + f + " {\n"
+            + "  @Override public float getPrice() {\n    return " + p + "f;\n  }\n}\n");
+        files.add(product);
+      }
+
+      for (int s = 0; s < services; s++) {
+        StringBuilder source = new StringBuilder()
+            .append("package bench.service;\n\nimport com.apkplug.Export;\nimport com.apkplug.Service;\n\n")
+            .append("@Service(name = \"Api").append(s).append("\")\n")
+            .append("public class Impl").append(s).append(" {\n");
+        for (int e = 0; e < EXPORTS_PER_SERVICE; e++) {
+          source.append("  @Export public int call").append(e).append("(int a, String b) {\n")
+              .append("    return a + b.length();\n  }\n");
+        }
+        source.append("}\n");
+        File service = new File(serviceDir, "Impl" + s + ".java");
+        write(service, source.toString());
+        files.add(service);
+      }
+      return files;
+    }
+  }
+
+  /**
+   * Measurements of one processor run
+   */
+  static final class Run {
+    final long nanos;
+    final int rounds;
+    final long allocatedBytes;
+    final long generatedFiles;
+    final long generatedBytes;
+
+    Run(long nanos, int rounds, long allocatedBytes, long generatedFiles, long generatedBytes) {
+      this.nanos = nanos;
+      this.rounds = rounds;
+      this.allocatedBytes = allocatedBytes;
+      this.generatedFiles = generatedFiles;
+      this.generatedBytes = generatedBytes;
+    }
+  }
+
+  /**
+   * All measured runs of a scenario
+   */
+  static final class Result {
+    final Scenario scenario;
+    final List<Run> runs;
+    final boolean parallel;
+
+    Result(Scenario scenario, int iterations, boolean parallel) {
+      this.scenario = scenario;
+      this.runs = new ArrayList<Run>(iterations);
+      this.parallel = parallel;
+    }
+
+    void add(Run run) {
+      runs.add(run);
+    }
+
+    String toJson() {
+      long minNanos = Long.MAX_VALUE;
+      long maxNanos = 0;
+      long totalNanos = 0;
+      long totalBytes = 0;
+      for (Run run : runs) {
+        minNanos = Math.min(minNanos, run.nanos);
+        maxNanos = Math.max(maxNanos, run.nanos);
+        totalNanos += run.nanos;
+        totalBytes += run.allocatedBytes;
+      }
+      Run last = runs.get(runs.size() - 1);
+      return "{\"elements\": " + scenario.elements
+          + ", \"factories\": " + scenario.factories
+          + ", \"products\": " + scenario.products
+          + ", \"services\": " + scenario.services
+          + ", \"exports\": " + scenario.exports
+          + ", \"iterations\": " + runs.size()
+          + ", \"wallMillis\": {\"min\": " + millis(minNanos) + ", \"mean\": "
+          + millis(totalNanos / runs.size()) + ", \"max\": " + millis(maxNanos) + "}"
+          + ", \"rounds\": " + last.rounds
+          + ", \"parallel\": " + parallel
+          + ", \"allocatedBytes\": " + (parallel ? "null" : String.valueOf(totalBytes / runs.size()))
+          + ", \"generatedFiles\": " + last.generatedFiles
+          + ", \"generatedBytes\": " + last.generatedBytes + "}";
+    }
+
+    private static String millis(long nanos) {
+      return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+  }
+
+  /**
+   * Counts the rounds the wrapped processor takes part in
+   */
+  static final class CountingProcessor implements Processor {
+    private final Processor delegate;
+    int rounds;
+
+    CountingProcessor(Processor delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public Set<String> getSupportedOptions() {
+      return delegate.getSupportedOptions();
+    }
+
+    @Override public Set<String> getSupportedAnnotationTypes() {
+      return delegate.getSupportedAnnotationTypes();
+    }
+
+    @Override public SourceVersion getSupportedSourceVersion() {
+      return delegate.getSupportedSourceVersion();
+    }
+
+    @Override public void init(ProcessingEnvironment processingEnv) {
+      delegate.init(processingEnv);
+    }
+
+    @Override public boolean process(Set<? extends TypeElement> annotations,
+        RoundEnvironment roundEnv) {
+      rounds++;
+      return delegate.process(annotations, roundEnv);
+    }
+
+    @Override public Iterable<? extends Completion> getCompletions(Element element,
+        AnnotationMirror annotation, ExecutableElement member, String userText) {
+      return delegate.getCompletions(element, annotation, member, userText);
+    }
+  }
+}
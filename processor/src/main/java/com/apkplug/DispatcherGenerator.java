@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.apkplug.runtime.Dispatcher;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Modifier;
+
+/**
+ * Generates the {@link Dispatcher} of a service annotated with {@code @Service(dispatcher = true)}.
+ * It switches over {@link ExportedMethod#getMethodId()}, so that a dynamic call costs a table
+ * lookup and the unboxing of its arguments instead of a reflective {@code Method.invoke()}.
+ */
+public class DispatcherGenerator {
+
+  public static final String SUFFIX = "Dispatcher";
+
+  private DispatcherGenerator() {
+  }
+
+  public static JavaFile generate(ServiceModel model, String packageName) {
+    ClassName interfaceClassName = ClassName.get(packageName, model.getName());
+    String serviceFieldName = "mService";
+    String methodIdsFieldName = "METHOD_IDS";
+    List<ExportedMethod> methods = model.getMethods();
+
+    TypeSpec.Builder dispatcher = TypeSpec.classBuilder(model.getName() + SUFFIX)
+        .addOriginatingElement(model.getTypeElement())
+        .addJavadoc("Calls the methods of the $N service by id.\n", model.getName())
+        .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+        .addSuperinterface(Dispatcher.class);
+
+    CodeBlock.Builder methodIds = CodeBlock.builder();
+    MethodSpec.Builder invoke = MethodSpec.methodBuilder("invoke")
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PUBLIC)
+        .returns(Object.class)
+        .addParameter(int.class, "methodId")
+        .addParameter(Object[].class, "args")
+        .beginControlFlow("switch (methodId)");
+    boolean unchecked = false;
+    for (ExportedMethod method : methods) {
+      String constant = model.getMethodIdConstant(method);
+      dispatcher.addField(FieldSpec.builder(int.class, constant)
+          .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+          .initializer("$L", method.getMethodId())
+          .build());
+      methodIds.addStatement("$N.put($S, $N)", methodIdsFieldName, method.getSignature(), constant);
+      if (!model.isOverloaded(method)) {
+        methodIds.addStatement("$N.put($S, $N)", methodIdsFieldName, method.getName(), constant);
+      }
+
+      int parameterCount = method.getParameters().size();
+      invoke.addCode("case $N:\n$>", constant);
+      if (parameterCount > 0) {
+        invoke.beginControlFlow("if (args.length != $L)", parameterCount)
+            .addStatement("throw new $T($S + args.length)", IllegalArgumentException.class,
+                method.getSignature() + " takes " + parameterCount
+                    + (parameterCount == 1 ? " argument, got " : " arguments, got "))
+            .endControlFlow();
+      }
+      CodeBlock.Builder call = CodeBlock.builder()
+          .add("$N.$N(", serviceFieldName, method.getName());
+      for (int i = 0; i < parameterCount; i++) {
+        TypeName type = method.getParameters().get(i).type;
+        unchecked |= type instanceof ParameterizedTypeName;
+        if (i > 0) {
+          call.add(", ");
+        }
+        if (type.equals(TypeName.OBJECT)) {
+          call.add("args[$L]", i);
+        } else {
+          call.add("($T) args[$L]", type.box(), i);
+        }
+      }
+      call.add(")");
+      if (method.returnsVoid()) {
+        invoke.addStatement("$L", call.build())
+            .addStatement("return null");
+      } else {
+        invoke.addStatement("return $L", call.build());
+      }
+      invoke.addCode("$<");
+    }
+    invoke.addCode("default:\n$>")
+        .addStatement("throw new $T($S + methodId)", IllegalArgumentException.class,
+            "Unknown method id: ")
+        .addCode("$<")
+        .endControlFlow();
+    if (unchecked) {
+      invoke.addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+          .addMember("value", "$S", "unchecked")
+          .build());
+    }
+
+    TypeName mapType = ParameterizedTypeName.get(Map.class, String.class, Integer.class);
+    return JavaFile.builder(packageName, dispatcher
+        .addField(FieldSpec.builder(mapType, methodIdsFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+            .initializer("new $T<$T, $T>()", HashMap.class, String.class, Integer.class)
+            .build())
+        .addStaticBlock(methodIds.build())
+        .addField(FieldSpec.builder(interfaceClassName, serviceFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+            .build())
+        .addMethod(MethodSpec.constructorBuilder()
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(interfaceClassName, "service")
+            .addStatement("$N = service", serviceFieldName)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("methodId")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(int.class)
+            .addParameter(String.class, "method")
+            .addStatement("$T id = $N.get(method)", Integer.class, methodIdsFieldName)
+            .beginControlFlow("if (id == null)")
+            .addStatement("throw new $T($S + method)", IllegalArgumentException.class,
+                "Unknown method: ")
+            .endControlFlow()
+            .addStatement("return id")
+            .build())
+        .addMethod(invoke.build())
+        .build())
+        .build();
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.VariableElement;
+
+/**
+ * Holds what the code generators need to know about a method annotated with @Export. Everything is
+ * read from the element when the method is scanned, so that the JavaPoet models of the generated
+ * classes can be built without touching the compiler's element and type utilities, which are not
+ * thread-safe.
+ */
+public class ExportedMethod {
+
+  private final String name;
+  private final List<ParameterSpec> parameters;
+  private final TypeName returnType;
+  private final Export export;
+  private final String signature;
+
+  public ExportedMethod(ExecutableElement methodElement) {
+    name = methodElement.getSimpleName().toString();
+    export = methodElement.getAnnotation(Export.class);
+    returnType = TypeName.get(methodElement.getReturnType());
+
+    List<ParameterSpec> parameterSpecs = new ArrayList<ParameterSpec>();
+    StringBuilder signatureBuilder = new StringBuilder(name).append('(');
+    for (VariableElement parameter : methodElement.getParameters()) {
+      TypeName parameterType = TypeName.get(parameter.asType());
+      if (!parameterSpecs.isEmpty()) {
+        signatureBuilder.append(',');
+      }
+      signatureBuilder.append(parameterType);
+      parameterSpecs.add(
+          ParameterSpec.builder(parameterType, parameter.getSimpleName().toString()).build());
+    }
+    parameters = Collections.unmodifiableList(parameterSpecs);
+    signature = signatureBuilder.append(')').toString();
+  }
+
+  /**
+   * The simple name of the method
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The parameters of the method, in declaration order
+   */
+  public List<ParameterSpec> getParameters() {
+    return parameters;
+  }
+
+  public TypeName getReturnType() {
+    return returnType;
+  }
+
+  public boolean returnsVoid() {
+    return returnType.equals(TypeName.VOID);
+  }
+
+  /**
+   * The @Export annotation of the method
+   */
+  public Export getExport() {
+    return export;
+  }
+
+  /**
+   * A readable signature like "add(int,int)"
+   */
+  public String getSignature() {
+    return signature;
+  }
+
+  /**
+   * An id that identifies the method within its service. It is derived from the signature, so it
+   * stays the same as long as the name and the parameter types of the method don't change, no
+   * matter which methods are added, removed or reordered.
+   */
+  public int getMethodId() {
+    return signature.hashCode();
+  }
+
+  /**
+   * The parameter names separated by commas, as they are passed on to the implementation
+   */
+  public String getArguments() {
+    StringBuilder arguments = new StringBuilder();
+    for (ParameterSpec parameter : parameters) {
+      if (arguments.length() > 0) {
+        arguments.append(',');
+      }
+      arguments.append(parameter.name);
+    }
+    return arguments.toString();
+  }
+
+  /**
+   * Whether the parameters are called arg0, arg1 and so on, which is what javac makes of a method
+   * that is read from a class file compiled without local variable tables ({@code -g})
+   */
+  public boolean hasSyntheticParameterNames() {
+    for (int i = 0; i < parameters.size(); i++) {
+      if (!parameters.get(i).name.equals("arg" + i)) {
+        return false;
+      }
+    }
+    return !parameters.isEmpty();
+  }
+
+  /**
+   * @return the name of the parameter named by {@link Export#stripeKey()} or null
+   */
+  public String getStripeKey() {
+    for (ParameterSpec parameter : parameters) {
+      if (parameter.name.equals(export.stripeKey())) {
+        return parameter.name;
+      }
+    }
+    return null;
+  }
+}
@@ -15,6 +15,8 @@
  */
 package com.apkplug;
 
+import com.squareup.javapoet.ClassName;
+
 import org.apache.commons.lang3.StringUtils;
 
 import javax.lang.model.element.TypeElement;
@@ -29,15 +31,21 @@ import javax.lang.model.type.MirroredTypeException;
 public class FactoryAnnotatedClass {
 
   private TypeElement annotatedClassElement;
+  private ClassName className;
   private String qualifiedGroupClassName;
   private String simpleFactoryGroupName;
   private String id;
+  private String constantName;
+  private Factory.Scope scope;
+  private int poolSize;
+  private String resetMethodName;
 
   /**
    * @throws ProcessingException if id() from annotation is null
    */
   public FactoryAnnotatedClass(TypeElement classElement) throws ProcessingException {
     this.annotatedClassElement = classElement;
+    this.className = ClassName.get(classElement);
     Factory annotation = classElement.getAnnotation(Factory.class);
     id = annotation.id();
 
@@ -47,6 +55,24 @@ public class FactoryAnnotatedClass {
           Factory.class.getSimpleName(), classElement.getQualifiedName().toString());
     }
 
+    constantName = NameUtils.toConstantName(id);
+    scope = annotation.scope();
+    poolSize = annotation.poolSize();
+    resetMethodName = annotation.reset();
+
+    if (scope == Factory.Scope.POOLED && poolSize <= 0) {
+      throw new ProcessingException(classElement,
+          "poolSize() in @%s for class %s must be greater than 0 but is %d",
+          Factory.class.getSimpleName(), classElement.getQualifiedName().toString(), poolSize);
+    }
+
+    if (scope != Factory.Scope.POOLED && !StringUtils.isEmpty(resetMethodName)) {
+      throw new ProcessingException(classElement,
+          "reset() in @%s for class %s is only allowed together with scope = %s",
+          Factory.class.getSimpleName(), classElement.getQualifiedName().toString(),
+          Factory.Scope.POOLED);
+    }
+
     // Get the full QualifiedTypeName
     try {
       Class<?> clazz = annotation.type();
@@ -68,6 +94,14 @@ public class FactoryAnnotatedClass {
     return id;
   }
 
+  /**
+   * Get the name of the int constant and enum constant that stand for the id in the generated
+   * factory, e.g. "DISH_A" for the id "DishA".
+   */
+  public String getConstantName() {
+    return constantName;
+  }
+
   /**
    * Get the full qualified name of the type specified in  {@link Factory#type()}.
    *
@@ -86,6 +120,36 @@ public class FactoryAnnotatedClass {
     return simpleFactoryGroupName;
   }
 
+  /**
+   * Get the scope as specified in {@link Factory#scope()}.
+   */
+  public Factory.Scope getScope() {
+    return scope;
+  }
+
+  /**
+   * Get the pool size as specified in {@link Factory#poolSize()}.
+   */
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * Get the name of the reset method as specified in {@link Factory#reset()}.
+   *
+   * @return the method name or null if no reset hook has been declared
+   */
+  public String getResetMethodName() {
+    return StringUtils.isEmpty(resetMethodName) ? null : resetMethodName;
+  }
+
+  /**
+   * The name of the annotated class, it can be used while the code is generated on another thread
+   */
+  public ClassName getClassName() {
+    return className;
+  }
+
   /**
    * The original element that was annotated with @Factory
    */
@@ -16,16 +16,31 @@
 
 package com.apkplug;
 
+import com.apkplug.runtime.BundleIndex;
+import com.apkplug.runtime.ObjectPool;
+import com.apkplug.runtime.WarmUpTask;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.WildcardTypeName;
 
-import java.io.IOException;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
-import javax.annotation.processing.Filer;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
@@ -45,11 +60,47 @@ public class FactoryGroupedClasses {
    */
   private static final String SUFFIX = "Factory";
 
+  /**
+   * Factories with fewer products than this keep the plain equals() chain, everything else is
+   * dispatched through a string switch (hashCode lookup followed by a single equals())
+   */
+  static final int SWITCH_THRESHOLD = 4;
+
+  /**
+   * Factories with more products than this split their lookups into helper methods of at most
+   * about this many cases each. That keeps every generated method far below the JVM's 64 KB limit
+   * and below HotSpot's 8000 bytecode bytes limit for methods it compiles.
+   */
+  static final int CHUNK_SIZE = 128;
+
+  /**
+   * Factories with more products than this don't get the {@code Id} enum. javac creates all enum
+   * constants in the enum's single static initializer, which exceeds the JVM's 64 KB method limit
+   * somewhere above 2,500 constants depending on the compiler version.
+   */
+  static final int ID_ENUM_LIMIT = 2000;
+
+  /**
+   * Name of the nested enum with one constant per id
+   */
+  private static final String ID_ENUM = "Id";
+
+  /**
+   * Name of the nested class that maps product classes to ids
+   */
+  private static final String TYPES_HOLDER = "TypesHolder";
+
   private String qualifiedClassName;
 
   private Map<String, FactoryAnnotatedClass> itemsMap =
       new LinkedHashMap<String, FactoryAnnotatedClass>();
 
+  private Map<FactoryAnnotatedClass, String> poolNames =
+      new HashMap<FactoryAnnotatedClass, String>();
+
+  private Map<FactoryAnnotatedClass, String> constantNames =
+      new HashMap<FactoryAnnotatedClass, String>();
+
   public FactoryGroupedClasses(String qualifiedClassName) {
     this.qualifiedClassName = qualifiedClassName;
   }
@@ -75,17 +126,92 @@ public class FactoryGroupedClasses {
     itemsMap.put(toInsert.getId(), toInsert);
   }
 
-  public void generateCode(Elements elementUtils, Filer filer) throws IOException {
+  /**
+   * Whether the generated factory gets the {@code Id} enum and {@code create(Id)}, which is only
+   * the case up to {@link #ID_ENUM_LIMIT} products
+   */
+  public boolean hasIdEnum() {
+    return itemsMap.size() <= ID_ENUM_LIMIT;
+  }
+
+  /**
+   * Reads what the factory needs from the elements and returns the builder of the factory's java
+   * file. The builder only uses JavaPoet, so it can run on any thread.
+   */
+  public Callable<JavaFile> generateCode(Elements elementUtils) {
+    final TypeElement superClassName = elementUtils.getTypeElement(qualifiedClassName);
+    final String factoryClassName = superClassName.getSimpleName() + SUFFIX;
+    PackageElement pkg = elementUtils.getPackageOf(superClassName);
+    final String packageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
+    final TypeName productType = TypeName.get(superClassName.asType());
+    final List<String> binaryNames = new ArrayList<String>();
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      binaryNames.add(elementUtils.getBinaryName(item.getTypeElement()).toString());
+    }
+
+    return new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return generateCode(superClassName, factoryClassName, packageName, productType,
+            binaryNames);
+      }
+    };
+  }
+
+  /**
+   * Describes the generated factory and its products for the {@link BundleIndex}, the products
+   * have the same indexes as the generated int constants
+   */
+  public BundleIndex.Factory toIndexEntry(Elements elementUtils) {
     TypeElement superClassName = elementUtils.getTypeElement(qualifiedClassName);
-    String factoryClassName = superClassName.getSimpleName() + SUFFIX;
-    String qualifiedFactoryClassName = qualifiedClassName + SUFFIX;
     PackageElement pkg = elementUtils.getPackageOf(superClassName);
-    String packageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
+    String factoryClassName = superClassName.getSimpleName() + SUFFIX;
+    if (!pkg.isUnnamed()) {
+      factoryClassName = pkg.getQualifiedName() + "." + factoryClassName;
+    }
+
+    List<BundleIndex.Product> products = new ArrayList<BundleIndex.Product>();
+    int index = 0;
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      products.add(new BundleIndex.Product(index++, item.getId(),
+          elementUtils.getBinaryName(item.getTypeElement()).toString()));
+    }
+    return new BundleIndex.Factory(factoryClassName,
+        elementUtils.getBinaryName(superClassName).toString(), products);
+  }
+
+  private JavaFile generateCode(TypeElement superClassName, String factoryClassName,
+      String packageName, TypeName productType, List<String> binaryNames) {
+    TypeSpec.Builder typeSpec = TypeSpec.classBuilder(factoryClassName);
+    poolNames.clear();
+    // The factory depends on every product, incremental builds regenerate it if one changes
+    typeSpec.addOriginatingElement(superClassName);
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      typeSpec.addOriginatingElement(item.getTypeElement());
+    }
+
+    // Singleton holders and pools of the scoped products
+    Map<FactoryAnnotatedClass, CodeBlock> instantiations =
+        new LinkedHashMap<FactoryAnnotatedClass, CodeBlock>();
+    List<FactoryAnnotatedClass> pooledItems = new ArrayList<FactoryAnnotatedClass>();
+    Set<String> memberNames = new HashSet<String>();
+    memberNames.add(ID_ENUM);
+    memberNames.add(TYPES_HOLDER);
+    // Ids like "dish-a" and "dish_a" map to the same constant, the later one gets a number
+    constantNames.clear();
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      constantNames.put(item, NameUtils.uniqueName(item.getConstantName(), memberNames));
+    }
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      instantiations.put(item, addScopeMembers(typeSpec, item, memberNames));
+      if (item.getScope() == Factory.Scope.POOLED) {
+        pooledItems.add(item);
+      }
+    }
 
     MethodSpec.Builder method = MethodSpec.methodBuilder("create")
         .addModifiers(Modifier.PUBLIC)
         .addParameter(String.class, "id")
-        .returns(TypeName.get(superClassName.asType()));
+        .returns(productType);
 
     // check if id is null
     method.beginControlFlow("if (id == null)")
@@ -93,21 +219,351 @@ public class FactoryGroupedClasses {
         .endControlFlow();
 
     // Generate items map
+    if (itemsMap.size() > CHUNK_SIZE) {
+      addChunkedCreateByName(typeSpec, method, productType, instantiations, memberNames);
+    } else if (itemsMap.size() < SWITCH_THRESHOLD) {
+      for (FactoryAnnotatedClass item : itemsMap.values()) {
+        method.beginControlFlow("if ($S.equals(id))", item.getId())
+            .addStatement("return $L", instantiations.get(item))
+            .endControlFlow();
+      }
+    } else {
+      method.beginControlFlow("switch (id)");
+      for (FactoryAnnotatedClass item : itemsMap.values()) {
+        method.addCode("case $S:\n$>", item.getId())
+            .addStatement("return $L", instantiations.get(item))
+            .addCode("$<");
+      }
+      method.endControlFlow();
+    }
+
+    method.addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ");
+    typeSpec.addMethod(method.build());
+
+    addTypedKeys(typeSpec, productType, instantiations, memberNames);
+    typeSpec.addMethod(generateWarmUp(typeSpec, binaryNames, factoryClassName, memberNames));
+
+    if (!pooledItems.isEmpty()) {
+      typeSpec.addMethod(generateRelease(productType, pooledItems));
+    }
+
+    return JavaFile.builder(packageName, typeSpec.build()).build();
+  }
 
+  /**
+   * Dispatches create(String) on the hash of the id to one of several helper methods, each of which
+   * switches over the ids of its bucket
+   */
+  private void addChunkedCreateByName(TypeSpec.Builder typeSpec, MethodSpec.Builder method,
+      TypeName productType, Map<FactoryAnnotatedClass, CodeBlock> instantiations,
+      Set<String> memberNames) {
+    int buckets = (itemsMap.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    List<List<FactoryAnnotatedClass>> bucketItems = new ArrayList<List<FactoryAnnotatedClass>>();
+    for (int i = 0; i < buckets; i++) {
+      bucketItems.add(new ArrayList<FactoryAnnotatedClass>());
+    }
     for (FactoryAnnotatedClass item : itemsMap.values()) {
-      method.beginControlFlow("if ($S.equals(id))", item.getId())
-          .addStatement("return new $L()", item.getTypeElement().getQualifiedName().toString())
-          .endControlFlow();
+      bucketItems.get((item.getId().hashCode() & 0x7FFFFFFF) % buckets).add(item);
     }
 
-    method.addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ");
+    method.beginControlFlow("switch ((id.hashCode() & 0x7FFFFFFF) % $L)", buckets);
+    for (int i = 0; i < buckets; i++) {
+      String bucketMethodName = NameUtils.uniqueName("createByName" + i, memberNames);
+      MethodSpec.Builder bucketMethod = MethodSpec.methodBuilder(bucketMethodName)
+          .addModifiers(Modifier.PRIVATE)
+          .addParameter(String.class, "id")
+          .returns(productType)
+          .beginControlFlow("switch (id)");
+      for (FactoryAnnotatedClass item : bucketItems.get(i)) {
+        bucketMethod.addCode("case $S:\n$>", item.getId())
+            .addStatement("return $L", instantiations.get(item))
+            .addCode("$<");
+      }
+      typeSpec.addMethod(bucketMethod.endControlFlow()
+          .addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ")
+          .build());
+      method.addCode("case $L:\n$>", i)
+          .addStatement("return $N(id)", bucketMethodName)
+          .addCode("$<");
+    }
+    method.endControlFlow();
+  }
 
-    TypeSpec typeSpec = TypeSpec.classBuilder(factoryClassName).addMethod(method.build()).build();
+  /**
+   * Adds an int constant and an {@code Id} enum constant for every id, plus create() overloads that
+   * take them or the product class, so that callers don't have to deal with strings at all. Both
+   * the int constants and the enum ordinals are the index of the product in the factory.
+   * Factories with more than ID_ENUM_LIMIT products only get the int constants.
+   */
+  private void addTypedKeys(TypeSpec.Builder typeSpec, TypeName productType,
+      Map<FactoryAnnotatedClass, CodeBlock> instantiations, Set<String> memberNames) {
+    boolean chunked = itemsMap.size() > CHUNK_SIZE;
+    boolean withEnum = hasIdEnum();
+    ClassName idClassName = withEnum ? ClassName.get("", ID_ENUM) : ClassName.get(Integer.class);
+    TypeSpec.Builder idEnum = TypeSpec.enumBuilder(ID_ENUM).addModifiers(Modifier.PUBLIC);
+    CodeBlock.Builder typesInitializer = CodeBlock.builder();
+    TypeSpec.Builder typesHolder = TypeSpec.classBuilder(TYPES_HOLDER)
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL);
+
+    MethodSpec.Builder createByIndex = MethodSpec.methodBuilder("create")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(int.class, "id")
+        .returns(productType)
+        .beginControlFlow(chunked ? "switch (id / $L)" : "switch (id)", CHUNK_SIZE);
+
+    // With many products the ids are split into ranges of CHUNK_SIZE, each with its own helpers
+    MethodSpec.Builder chunkCreate = createByIndex;
+    CodeBlock.Builder chunkInitializer = typesInitializer;
+    int index = 0;
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      if (chunked && index % CHUNK_SIZE == 0) {
+        int chunk = index / CHUNK_SIZE;
+        String chunkCreateName = NameUtils.uniqueName("createByIndex" + chunk, memberNames);
+        chunkCreate = MethodSpec.methodBuilder(chunkCreateName)
+            .addModifiers(Modifier.PRIVATE)
+            .addParameter(int.class, "id")
+            .returns(productType)
+            .beginControlFlow("switch (id)");
+        createByIndex.addCode("case $L:\n$>", chunk)
+            .addStatement("return $N(id)", chunkCreateName)
+            .addCode("$<");
+        chunkInitializer = CodeBlock.builder();
+        typesInitializer.addStatement("put$L()", chunk);
+      }
+
+      String constantName = constantNames.get(item);
+      typeSpec.addField(FieldSpec.builder(int.class, constantName, Modifier.PUBLIC,
+          Modifier.STATIC, Modifier.FINAL).initializer("$L", index++).build());
+      if (withEnum) {
+        idEnum.addEnumConstant(constantName);
+        chunkInitializer.addStatement("MAP.put($T.class, $T.$N)",
+            item.getClassName(), idClassName, constantName);
+      } else {
+        chunkInitializer.addStatement("MAP.put($T.class, $N)", item.getClassName(),
+            constantName);
+      }
+      chunkCreate.addCode("case $N:\n$>", constantName)
+          .addStatement("return $L", instantiations.get(item))
+          .addCode("$<");
+
+      if (chunked && (index % CHUNK_SIZE == 0 || index == itemsMap.size())) {
+        typeSpec.addMethod(chunkCreate.endControlFlow()
+            .addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ")
+            .build());
+        typesHolder.addMethod(MethodSpec.methodBuilder("put" + (index - 1) / CHUNK_SIZE)
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+            .addCode(chunkInitializer.build())
+            .build());
+      }
+    }
 
-    // Write file
-    JavaFile.builder(packageName, typeSpec).build().writeTo(filer);
+    createByIndex.endControlFlow()
+        .addStatement("throw new IllegalArgumentException($S + id)", "Unknown id = ");
+
+    // The class -> id table lives in its own holder, so that the product classes are only loaded
+    // once somebody actually asks for a product by its class
+    TypeName classType = ParameterizedTypeName.get(ClassName.get(Class.class),
+        WildcardTypeName.subtypeOf(Object.class));
+    typeSpec.addType(typesHolder
+        .addField(FieldSpec.builder(
+            ParameterizedTypeName.get(ClassName.get(Map.class), classType, idClassName), "MAP",
+            Modifier.STATIC, Modifier.FINAL)
+            .initializer("new $T<$T, $T>($L)", HashMap.class, classType, idClassName,
+                itemsMap.size() * 2)
+            .build())
+        .addStaticBlock(typesInitializer.build())
+        .build());
+
+    MethodSpec createByType = MethodSpec.methodBuilder("create")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(ParameterizedTypeName.get(ClassName.get(Class.class),
+            WildcardTypeName.subtypeOf(productType)), "type")
+        .returns(productType)
+        .beginControlFlow("if (type == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "type is null!")
+        .endControlFlow()
+        .addStatement("$T id = $N.MAP.get(type)", idClassName, TYPES_HOLDER)
+        .beginControlFlow("if (id == null)")
+        .addStatement("throw new IllegalArgumentException($S + type.getName())", "Unknown type = ")
+        .endControlFlow()
+        .addStatement(withEnum ? "return create(id.ordinal())" : "return create(id.intValue())")
+        .build();
+
+    if (!withEnum) {
+      typeSpec.addMethod(createByIndex.build())
+          .addMethod(createByType);
+      return;
+    }
+    MethodSpec createById = MethodSpec.methodBuilder("create")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(idClassName, "id")
+        .returns(productType)
+        .beginControlFlow("if (id == null)")
+        .addStatement("throw new IllegalArgumentException($S)", "id is null!")
+        .endControlFlow()
+        .addStatement("return create(id.ordinal())")
+        .build();
+
+    typeSpec.addType(idEnum.build())
+        .addMethod(createByIndex.build())
+        .addMethod(createById)
+        .addMethod(createByType);
   }
 
+  /**
+   * Generates warmUp(Executor), which loads and initializes all product classes in the background
+   * and creates the singletons up front.
+   */
+  private MethodSpec generateWarmUp(TypeSpec.Builder typeSpec, List<String> binaryNames,
+      String factoryClassName, Set<String> memberNames) {
+    CodeBlock.Builder singletons = CodeBlock.builder();
+    boolean hasSingletons = false;
+    for (FactoryAnnotatedClass item : itemsMap.values()) {
+      if (item.getScope() == Factory.Scope.SINGLETON) {
+        singletons.addStatement("create($N)", constantNames.get(item));
+        hasSingletons = true;
+      }
+    }
+
+    CodeBlock calls;
+    if (!hasSingletons) {
+      calls = CodeBlock.builder().add("null").build();
+    } else {
+      calls = CodeBlock.builder()
+          .add("$L", TypeSpec.anonymousClassBuilder("")
+              .addSuperinterface(Runnable.class)
+              .addMethod(MethodSpec.methodBuilder("run")
+                  .addAnnotation(Override.class)
+                  .addModifiers(Modifier.PUBLIC)
+                  .addCode(singletons.build())
+                  .build())
+              .build())
+          .build();
+    }
+
+    return MethodSpec.methodBuilder("warmUp")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(Executor.class, "executor")
+        .returns(WarmUpTask.class)
+        .addStatement("return $T.submit(executor, $N.class.getClassLoader(), $L, $L)",
+            WarmUpTask.class, factoryClassName,
+            classNamesArray(typeSpec, binaryNames, memberNames), calls)
+        .build();
+  }
+
+  /**
+   * Returns the expression for an array with the given class names. Long arrays are filled by
+   * static helpers of CHUNK_SIZE names each, array initializers compile to a few bytes per element.
+   */
+  static CodeBlock classNamesArray(TypeSpec.Builder typeSpec, List<String> names,
+      Set<String> memberNames) {
+    if (names.size() <= CHUNK_SIZE) {
+      CodeBlock.Builder initializer = CodeBlock.builder();
+      for (int i = 0; i < names.size(); i++) {
+        initializer.add(i == 0 ? "$S" : ", $S", names.get(i));
+      }
+      return CodeBlock.builder().add("new $T[] {$L}", String.class, initializer.build()).build();
+    }
+
+    String methodName = NameUtils.uniqueName("classNames", memberNames);
+    MethodSpec.Builder method = MethodSpec.methodBuilder(methodName)
+        .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+        .returns(String[].class)
+        .addStatement("$T[] names = new $T[$L]", String.class, String.class, names.size());
+    for (int start = 0; start < names.size(); start += CHUNK_SIZE) {
+      String chunkName = NameUtils.uniqueName(methodName + start / CHUNK_SIZE, memberNames);
+      MethodSpec.Builder chunk = MethodSpec.methodBuilder(chunkName)
+          .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+          .addParameter(String[].class, "names");
+      for (int i = start; i < Math.min(start + CHUNK_SIZE, names.size()); i++) {
+        chunk.addStatement("names[$L] = $S", i, names.get(i));
+      }
+      typeSpec.addMethod(chunk.build());
+      method.addStatement("$N(names)", chunkName);
+    }
+    typeSpec.addMethod(method.addStatement("return names").build());
+    return CodeBlock.builder().add("$N()", methodName).build();
+  }
+
+  /**
+   * Adds the fields and helpers the scope of the given item needs to the factory class.
+   *
+   * @return the expression that hands out an instance of the item
+   */
+  private CodeBlock addScopeMembers(TypeSpec.Builder typeSpec, FactoryAnnotatedClass item,
+      Set<String> memberNames) {
+    ClassName itemClassName = item.getClassName();
+
+    switch (item.getScope()) {
+      case SINGLETON: {
+        // Lazy and thread-safe thanks to the class initialization guarantees of the JVM
+        String holderName = NameUtils.uniqueName(itemClassName.simpleName() + "Holder", memberNames);
+        typeSpec.addType(TypeSpec.classBuilder(holderName)
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+            .addField(FieldSpec.builder(itemClassName, "INSTANCE", Modifier.STATIC,
+                Modifier.FINAL).initializer("new $T()", itemClassName).build())
+            .build());
+        return CodeBlock.builder().add("$N.INSTANCE", holderName).build();
+      }
+
+      case POOLED: {
+        String poolName = NameUtils.uniqueName(
+            StringUtils.uncapitalize(itemClassName.simpleName()) + "Pool", memberNames);
+        typeSpec.addField(FieldSpec.builder(
+            ParameterizedTypeName.get(ClassName.get(ObjectPool.class), itemClassName), poolName,
+            Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+            .initializer("new $T<$T>($L)", ObjectPool.class, itemClassName, item.getPoolSize())
+            .build());
+
+        String acquireName = NameUtils.uniqueName("acquire" + itemClassName.simpleName(), memberNames);
+        typeSpec.addMethod(MethodSpec.methodBuilder(acquireName)
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+            .returns(itemClassName)
+            .addStatement("$T instance = $N.acquire()", itemClassName, poolName)
+            .addStatement("return instance != null ? instance : new $T()", itemClassName)
+            .build());
+        poolNames.put(item, poolName);
+        return CodeBlock.builder().add("$N()", acquireName).build();
+      }
+
+      default:
+        return CodeBlock.builder()
+            .add("new $L()", item.getClassName().toString())
+            .build();
+    }
+  }
+
+  /**
+   * Generates release(), which hands pooled products back to their pool. Products of any other
+   * scope are ignored.
+   */
+  private MethodSpec generateRelease(TypeName productType,
+      List<FactoryAnnotatedClass> pooledItems) {
+    MethodSpec.Builder method = MethodSpec.methodBuilder("release")
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(productType, "product")
+        .returns(TypeName.VOID);
+
+    method.beginControlFlow("if (product == null)")
+        .addStatement("return")
+        .endControlFlow();
+
+    method.addStatement("$T<?> type = product.getClass()", Class.class);
+    for (FactoryAnnotatedClass item : pooledItems) {
+      ClassName itemClassName = item.getClassName();
+      method.beginControlFlow("if (type == $T.class)", itemClassName)
+          .addStatement("$T instance = ($T) product", itemClassName, itemClassName);
+      if (item.getResetMethodName() != null) {
+        method.addStatement("instance.$N()", item.getResetMethodName());
+      }
+      method.addStatement("$N.release(instance)", poolNames.get(item))
+          .addStatement("return")
+          .endControlFlow();
+    }
+    return method.build();
+  }
+
+
   /**
    * Generate the java code
    *
@@ -16,26 +16,66 @@
 
 package com.apkplug;
 
+import com.apkplug.runtime.AsyncExecutors;
+import com.apkplug.runtime.BundleIndex;
+import com.apkplug.runtime.CachingProxy;
+import com.apkplug.runtime.Mailbox;
+import com.apkplug.runtime.MailboxProxy;
+import com.apkplug.runtime.MemoCache;
+import com.apkplug.runtime.MethodStats;
+import com.apkplug.runtime.ServiceStats;
+import com.apkplug.runtime.StartupReport;
+import com.apkplug.runtime.StartupWaves;
+import com.apkplug.runtime.StripedLock;
+import com.apkplug.runtime.WarmUpTask;
 import com.google.auto.service.AutoService;
 import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.MethodSpec;
 import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.WildcardTypeName;
 
+import org.apache.commons.lang3.StringUtils;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Filer;
@@ -50,12 +90,11 @@ import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
-import javax.lang.model.element.VariableElement;
-import javax.lang.model.type.TypeKind;
-import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
 
 import static javax.lang.model.util.ElementFilter.methodsIn;
 /**
@@ -68,7 +107,79 @@ import static javax.lang.model.util.ElementFilter.methodsIn;
   public static final String PACKAGE_NAME = "com.apkplug";
   public static final String SIMPLE_BUNDLE = "SimpleBundle";
   public static final String PROXY_SUFFIX = "Proxy";
+  public static final String STATS_FIELD = "STATS";
+  public static final String ASYNC_SUFFIX = "Async";
+  public static final String MAILBOX_FIELD = "mMailbox";
+  public static final String LOCK_FIELD = "mLock";
+  public static final String BULKHEAD_FIELD = "mBulkhead";
+  public static final String SERVICE_FACTORY_SUFFIX = "ServiceFactory";
+  public static final String LOCATOR_SUFFIX = "Locator";
+  public static final String STARTUP_REPORT_FIELD = "mStartupReport";
+
+  /**
+   * Activators with more services than this start and stop them in helper methods of this many
+   * services each, so that start() and stop() stay small at any number of services
+   */
+  static final int SERVICES_PER_CHUNK = 16;
+
+  /**
+   * Processor option, if true the generated bundle activator records a {@link StartupReport}
+   */
+  public static final String OPTION_STARTUP_REPORT = "apkplug.startupReport";
+
+  /**
+   * What has been generated for a service so far. Every file is generated exactly once, so that a
+   * compilation always takes the same rounds: the interfaces are generated in the first round, the
+   * proxies in the second and the bundle activator in the third.
+   */
+  private enum Stage {
+    /**
+     * The interface has been generated, it will be compiled in the next round
+     */
+    INTERFACE,
+    /**
+     * The proxy has been generated, it will be compiled in the next round
+     */
+    PROXY,
+    /**
+     * The proxy has been compiled, the activator can start the service
+     */
+    READY
+  }
+
+  /**
+   * Processor option, if false the generated classes are built one after another on the processor
+   * thread instead of on all cores
+   */
+  public static final String OPTION_PARALLEL = "apkplug.parallel";
+
+  /**
+   * Processor option, the name of the module's {@link BundleIndex} resource. It has to be unique in
+   * the app, modules with the same name overwrite each other's index when the app is packaged. If
+   * it isn't set the processor warns and uses the package of the services or, without services, of
+   * the first factory.
+   */
+  public static final String OPTION_MODULE = "apkplug.module";
+
+  /**
+   * Processor option, comma separated names of modules on the classpath whose indexes are merged
+   * with the index of this module into {@link BundleIndex#APP_INDEX}.
+   * <p>
+   * Reading the other indexes means reading classpath resources through the {@link Filer}, which
+   * Gradle doesn't allow aggregating processors to do incrementally: with this option every change
+   * recompiles the whole module. Prefer merging the indexes in the build with
+   * {@code gradle/apkplug-index.gradle}, which adds app.index to the Java resources of every
+   * variant of an Android application module and to the jar of a Java module.
+   */
+  public static final String OPTION_MERGE_INDEXES = "apkplug.mergeIndexes";
+
+  /**
+   * Processor option, the path of a JSON file the processor writes a {@link ProcessorReport} to:
+   * the time spent per round and per annotation type and the files and classes generated
+   */
+  public static final String OPTION_REPORT = "apkplug.report";
   private Types typeUtils;
+  private TypeHierarchy typeHierarchy;
   private Elements elementUtils;
   private Filer filer;
   private Messager messager;
@@ -77,18 +188,40 @@ import static javax.lang.model.util.ElementFilter.methodsIn;
 
   private Map<String,TypeElement> proxyMap = new LinkedHashMap<String, TypeElement>();
   private Map<String,TypeElement> interfaceMap = new LinkedHashMap<String, TypeElement>();
-  private Map<String,TypeElement> serviceMap = new LinkedHashMap<String, TypeElement>();
-  private Map<String,ArrayList<ExecutableElement>> methodMap = new LinkedHashMap<String, ArrayList<ExecutableElement>>();
-  private boolean serviceInterfaceGenerated =false;
+  private Map<String,ServiceModel> serviceMap = new LinkedHashMap<String, ServiceModel>();
+  private Map<String,Stage> stageMap = new LinkedHashMap<String, Stage>();
+  private boolean activatorGenerated;
   private String mPackageName;
   private boolean isFirst =true;
+  private boolean startupReport;
+  private JavaFileBatch files;
+  private ProcessorReport report;
+  private BundleIndex index = new BundleIndex();
+  private String defaultModule;
+  private List<Element> indexedElements = new ArrayList<Element>();
 
   @Override public synchronized void init(ProcessingEnvironment processingEnv) {
     super.init(processingEnv);
     typeUtils = processingEnv.getTypeUtils();
+    typeHierarchy = new TypeHierarchy(typeUtils);
     elementUtils = processingEnv.getElementUtils();
     filer = processingEnv.getFiler();
     messager = processingEnv.getMessager();
+    startupReport = Boolean.parseBoolean(processingEnv.getOptions().get(OPTION_STARTUP_REPORT));
+    String reportPath = processingEnv.getOptions().get(OPTION_REPORT);
+    report = new ProcessorReport(StringUtils.isBlank(reportPath) ? null : new File(reportPath));
+    files = new JavaFileBatch(!"false".equalsIgnoreCase(processingEnv.getOptions().get(OPTION_PARALLEL)),
+        report);
+  }
+
+  @Override public Set<String> getSupportedOptions() {
+    Set<String> options = new LinkedHashSet<String>();
+    options.add(OPTION_STARTUP_REPORT);
+    options.add(OPTION_PARALLEL);
+    options.add(OPTION_MODULE);
+    options.add(OPTION_MERGE_INDEXES);
+    options.add(OPTION_REPORT);
+    return options;
   }
 
   @Override public Set<String> getSupportedAnnotationTypes() {
@@ -98,6 +231,7 @@ import static javax.lang.model.util.ElementFilter.methodsIn;
     annotataions.add(Export.class.getCanonicalName());
     annotataions.add(ServiceInterface.class.getCanonicalName());
     annotataions.add(Proxy.class.getCanonicalName());
+    annotataions.add(Provided.class.getCanonicalName());
     return annotataions;
   }
 
@@ -128,36 +262,26 @@ import static javax.lang.model.util.ElementFilter.methodsIn;
     // Check inheritance: Class must be childclass as specified in @Factory.type();
     TypeElement superClassElement =
         elementUtils.getTypeElement(item.getQualifiedFactoryGroupName());
-    if (superClassElement.getKind() == ElementKind.INTERFACE) {
-      // Check interface implemented
-      if (!classElement.getInterfaces().contains(superClassElement.asType())) {
+    if (!typeHierarchy.isSubtype(classElement, superClassElement)) {
+      if (superClassElement.getKind() == ElementKind.INTERFACE) {
         throw new ProcessingException(classElement,
             "The class %s annotated with @%s must implement the interface %s",
             classElement.getQualifiedName().toString(), Factory.class.getSimpleName(),
             item.getQualifiedFactoryGroupName());
       }
-    } else {
-      // Check subclassing
-      TypeElement currentClass = classElement;
-      while (true) {
-        TypeMirror superClassType = currentClass.getSuperclass();
-
-        if (superClassType.getKind() == TypeKind.NONE) {
-          // Basis class (java.lang.Object) reached, so exit
-          throw new ProcessingException(classElement,
-              "The class %s annotated with @%s must inherit from %s",
-              classElement.getQualifiedName().toString(), Factory.class.getSimpleName(),
-              item.getQualifiedFactoryGroupName());
-        }
-
-        if (superClassType.toString().equals(item.getQualifiedFactoryGroupName())) {
-          // Required super class found
-          break;
-        }
+      throw new ProcessingException(classElement,
+          "The class %s annotated with @%s must inherit from %s",
+          classElement.getQualifiedName().toString(), Factory.class.getSimpleName(),
+          item.getQualifiedFactoryGroupName());
+    }
 
-        // Moving up in inheritance tree
-        currentClass = (TypeElement) typeUtils.asElement(superClassType);
-      }
+    // Check if the reset hook of a pooled product can be invoked
+    String resetMethodName = item.getResetMethodName();
+    if (resetMethodName != null && !hasResetMethod(classElement, resetMethodName)) {
+      throw new ProcessingException(classElement,
+          "The class %s annotated with @%s must provide a public non-static method %s() without parameters",
+          classElement.getQualifiedName().toString(), Factory.class.getSimpleName(),
+          resetMethodName);
     }
 
     // Check if an empty public constructor is given
@@ -178,23 +302,58 @@ import static javax.lang.model.util.ElementFilter.methodsIn;
         classElement.getQualifiedName().toString());
   }
 
+  /**
+   * Checks if the class (or one of its super classes) declares the given reset method
+   */
+  private boolean hasResetMethod(TypeElement classElement, String methodName) {
+    for (ExecutableElement method : methodsIn(elementUtils.getAllMembers(classElement))) {
+      if (method.getSimpleName().contentEquals(methodName)
+          && method.getParameters().isEmpty()
+          && method.getModifiers().contains(Modifier.PUBLIC)
+          && !method.getModifiers().contains(Modifier.STATIC)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
 
+    report.roundStarted(roundEnv.getRootElements().size());
+    if (roundEnv.processingOver()) {
+      // Nothing is generated in the last round, forget everything for the next compilation
+      if (!roundEnv.errorRaised()) {
+        writeIndex();
+      }
+      report.roundFinished();
+      writeReport();
+      resetState();
+      files.shutdown();
+      return true;
+    }
+
     try {
 
+      // One pass over the classes of this round finds everything we are interested in
+      List<TypeElement> factoryElements = new ArrayList<>();
+      List<TypeElement> serviceElements = new ArrayList<>();
+      List<TypeElement> interfaceElements = new ArrayList<>();
+      List<TypeElement> proxyElements = new ArrayList<>();
+      for (Element rootElement : roundEnv.getRootElements()) {
+        scan(rootElement, factoryElements, serviceElements, interfaceElements, proxyElements);
+      }
+
       // Scan classes
-      for (Element annotatedElement : roundEnv.getElementsAnnotatedWith(Factory.class)) {
+      long start = System.nanoTime();
+      for (TypeElement typeElement : factoryElements) {
 
         // Check if a class has been annotated with @Factory
-        if (annotatedElement.getKind() != ElementKind.CLASS) {
-          throw new ProcessingException(annotatedElement, "Only classes can be annotated with @%s",
+        if (typeElement.getKind() != ElementKind.CLASS) {
+          throw new ProcessingException(typeElement, "Only classes can be annotated with @%s",
               Factory.class.getSimpleName());
         }
 
-        // We can cast it, because we know that it of ElementKind.CLASS
-        TypeElement typeElement = (TypeElement) annotatedElement;
-
         FactoryAnnotatedClass annotatedClass = new FactoryAnnotatedClass(typeElement);
 
         checkValidClass(annotatedClass);
@@ -211,344 +370,1862 @@ import static javax.lang.model.util.ElementFilter.methodsIn;
         // Checks if id is conflicting with another @Factory annotated class with the same id
         factoryClass.add(annotatedClass);
       }
+      report.annotationProcessed(Factory.class, factoryElements.size(), start);
+      report.elementsValidated(factoryElements.size());
 
-      for (Element annotatedElement : roundEnv.getElementsAnnotatedWith(Service.class)) {
+      // Round 1: @Service classes are analyzed once, their interfaces are generated
+      start = System.nanoTime();
+      for (TypeElement typeElement : serviceElements) {
 
         // Check if a class has been annotated with @Factory
-        if (annotatedElement.getKind() != ElementKind.CLASS) {
-          throw new ProcessingException(annotatedElement, "Only classes can be annotated with @%s",
+        if (typeElement.getKind() != ElementKind.CLASS) {
+          throw new ProcessingException(typeElement, "Only classes can be annotated with @%s",
                   Service.class.getSimpleName());
         }
 
         if (isFirst) {
-          PackageElement pkg = elementUtils.getPackageOf(annotatedElement);
+          PackageElement pkg = elementUtils.getPackageOf(typeElement);
           mPackageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
           isFirst =false;
         }else {
-          PackageElement pkg = elementUtils.getPackageOf(annotatedElement);
+          PackageElement pkg = elementUtils.getPackageOf(typeElement);
           String packageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
-          if (packageName != mPackageName){
-            throw new ProcessingException(annotatedElement, "all classes  be annotated with @%s shoud in same package",
+          if (!StringUtils.equals(packageName, mPackageName)){
+            throw new ProcessingException(typeElement, "all classes  be annotated with @%s shoud in same package",
                     Service.class.getSimpleName());
           }
         }
 
-
-        String name = annotatedElement.getAnnotation(Service.class).name();
-
-        // We can cast it, because we know that it of ElementKind.CLASS
-        TypeElement typeElement = (TypeElement) annotatedElement;
-
-        serviceMap.put(name,typeElement);
-
-        List<? extends Element> enclosedElements = typeElement.getEnclosedElements();
-        List<ExecutableElement> executableElements = methodsIn(enclosedElements);
-        if (enclosedElements.size() == 0){
-          throw new ProcessingException(annotatedElement, "no methods be annotated with @%s",
-                  Export.class.getSimpleName());
+        ServiceModel model = new ServiceModel(typeElement, elementUtils);
+        ServiceModel existing = serviceMap.get(model.getName());
+        if (existing != null) {
+          throw new ProcessingException(typeElement,
+              "Conflict: The class %s is annotated with @%s with name ='%s' but %s already uses the same name",
+              model.getQualifiedName(), Service.class.getSimpleName(), model.getName(),
+              existing.getQualifiedName());
+        }
+        if (activatorGenerated) {
+          throw new ProcessingException(typeElement,
+              "The class %s annotated with @%s has been found after %s has been generated",
+              model.getQualifiedName(), Service.class.getSimpleName(), SIMPLE_BUNDLE);
         }
 
-        ArrayList<ExecutableElement> exportMethods = new ArrayList<>();
-
-        for (ExecutableElement executableElement : executableElements) {
-          if (executableElement.getAnnotation(Export.class) !=null) {
-            if (executableElement.getKind() != ElementKind.METHOD){
-              throw new ProcessingException(annotatedElement, "Only methods can be annotated with @%s",
-                      Export.class.getSimpleName());
-            }
-            exportMethods.add(executableElement);
+        serviceMap.put(model.getName(), model);
+        for (ExportedMethod exportedMethod : model.getMethods()) {
+          if (exportedMethod.hasSyntheticParameterNames()) {
+            // Gradle hands unchanged classes to an aggregating processor as class files
+            messager.printMessage(Diagnostic.Kind.WARNING, String.format(
+                "The parameter names of %s are missing from its class file, the generated %s"
+                    + " calls them arg0, arg1 and so on. Compile the module with -g to keep them.",
+                model.getQualifiedName(), model.getName()), typeElement);
+            break;
           }
         }
-        if (exportMethods.size() ==0) {
-          throw new ProcessingException(annotatedElement, "no methods be annotated with @%s",
-                  Export.class.getSimpleName());
-        }
-
-
-        methodMap.put(name,exportMethods);
+        generateSerivesInterface(model);
+        stageMap.put(model.getName(), Stage.INTERFACE);
+        report.elementsValidated(1 + model.getMethods().size());
       }
+      report.annotationProcessed(Service.class, serviceElements.size(), start);
 
-      if (serviceMap.size() > 0 &&methodMap.size() > 0)
-        generateSerivesInterface();
-
-
-      for (Element annotatedElement : roundEnv.getElementsAnnotatedWith(ServiceInterface.class)) {
+      // Round 2: the interfaces generated in round 1 are compiled, their proxies are generated
+      start = System.nanoTime();
+      for (TypeElement typeElement : interfaceElements) {
 
         // Check if a class has been annotated with @Factory
-        if (annotatedElement.getKind() != ElementKind.INTERFACE) {
-          throw new ProcessingException(annotatedElement, "Only interfaces can be annotated with @%s",
+        if (typeElement.getKind() != ElementKind.INTERFACE) {
+          throw new ProcessingException(typeElement, "Only interfaces can be annotated with @%s",
                   ServiceInterface.class.getSimpleName());
         }
-        String name = annotatedElement.getAnnotation(ServiceInterface.class).name();
-        // We can cast it, because we know that it of ElementKind.CLASS
-        TypeElement typeElement = (TypeElement) annotatedElement;
+        String name = typeElement.getAnnotation(ServiceInterface.class).name();
+        if (stageMap.get(name) != Stage.INTERFACE) {
+          // Not one of ours or already done
+          continue;
+        }
 
         interfaceMap.put(name,typeElement);
-
-      }
-
-      if (interfaceMap.size() > 0) {
-        generateSerivesProxy();
+        generateSerivesProxy(serviceMap.get(name), typeElement);
+        stageMap.put(name, Stage.PROXY);
       }
+      report.annotationProcessed(ServiceInterface.class, interfaceElements.size(), start);
 
-
-      for (Element annotatedElement : roundEnv.getElementsAnnotatedWith(Proxy.class)) {
+      // Round 3: once the proxies of all services are compiled the activator is generated
+      start = System.nanoTime();
+      for (TypeElement typeElement : proxyElements) {
 
         // Check if a class has been annotated with @Factory
-        if (annotatedElement.getKind() != ElementKind.CLASS) {
-          throw new ProcessingException(annotatedElement, "Only classes can be annotated with @%s",
+        if (typeElement.getKind() != ElementKind.CLASS) {
+          throw new ProcessingException(typeElement, "Only classes can be annotated with @%s",
                   Proxy.class.getSimpleName());
         }
-        String name = annotatedElement.getAnnotation(Proxy.class).name();
-        // We can cast it, because we know that it of ElementKind.CLASS
-        TypeElement typeElement = (TypeElement) annotatedElement;
+        String name = typeElement.getAnnotation(Proxy.class).name();
+        if (stageMap.get(name) != Stage.PROXY) {
+          continue;
+        }
 
         proxyMap.put(name,typeElement);
-
+        stageMap.put(name, Stage.READY);
       }
-      if (proxyMap.size() > 0) {
+      if (!activatorGenerated && !stageMap.isEmpty() && !stageMap.containsValue(Stage.INTERFACE)
+          && !stageMap.containsValue(Stage.PROXY)) {
         generateBundleActivator();
-
-        serviceMap.clear();
-        methodMap.clear();
-        interfaceMap.clear();
-        proxyMap.clear();
+        indexServices();
+        activatorGenerated = true;
       }
-
-
-
-
+      report.annotationProcessed(Proxy.class, proxyElements.size(), start);
 
       // Generate code
+      start = System.nanoTime();
       for (FactoryGroupedClasses factoryClass : factoryClasses.values()) {
-        factoryClass.generateCode(elementUtils, filer);
+        files.add(factoryClass.generateCode(elementUtils));
+        BundleIndex.Factory entry = factoryClass.toIndexEntry(elementUtils);
+        index.addFactory(entry);
+        TypeElement productElement = elementUtils.getTypeElement(entry.getProductType());
+        indexedElements.add(productElement);
+        if (!factoryClass.hasIdEnum()) {
+          messager.printMessage(Diagnostic.Kind.WARNING, String.format(
+              "%s has %d products, more than the %d an Id enum can hold. It only gets the int"
+                  + " constants, create(Id) and the Id enum are not generated.",
+              entry.getClassName(), entry.getProducts().size(),
+              FactoryGroupedClasses.ID_ENUM_LIMIT), productElement);
+        }
+        if (defaultModule == null) {
+          String factoryClassName = entry.getClassName();
+          defaultModule = factoryClassName.substring(0, Math.max(0, factoryClassName.lastIndexOf('.')));
+        }
       }
+      report.annotationProcessed(Factory.class, 0, start);
       factoryClasses.clear();
+
+      // The classes have been built in parallel, write them in the order they have been added
+      start = System.nanoTime();
+      files.writeTo(filer);
+      report.filesWritten(start);
     } catch (ProcessingException e) {
       error(e.getElement(), e.getMessage());
     } catch (IOException e) {
       error(null, e.getMessage());
     }
 
+    report.roundFinished();
     return true;
   }
 
-  private void generateBundleActivator() {
+  /**
+   * Sorts the given class and the classes nested in it by the annotations we process
+   */
+  private void scan(Element element, List<TypeElement> factoryElements,
+      List<TypeElement> serviceElements, List<TypeElement> interfaceElements,
+      List<TypeElement> proxyElements) {
+    if (!(element instanceof TypeElement)) {
+      return;
+    }
+    TypeElement typeElement = (TypeElement) element;
+    if (typeElement.getAnnotation(Factory.class) != null) {
+      factoryElements.add(typeElement);
+    }
+    if (typeElement.getAnnotation(Service.class) != null) {
+      serviceElements.add(typeElement);
+    }
+    if (typeElement.getAnnotation(ServiceInterface.class) != null) {
+      interfaceElements.add(typeElement);
+    }
+    if (typeElement.getAnnotation(Proxy.class) != null) {
+      proxyElements.add(typeElement);
+    }
+    for (Element enclosed : typeElement.getEnclosedElements()) {
+      scan(enclosed, factoryElements, serviceElements, interfaceElements, proxyElements);
+    }
+  }
+
+  /**
+   * Clears everything collected about the annotated elements, so that a processor instance that
+   * is reused, e.g. by an incremental build, starts over
+   */
+  private void resetState() {
+    factoryClasses.clear();
+    serviceMap.clear();
+    stageMap.clear();
+    interfaceMap.clear();
+    proxyMap.clear();
+    mPackageName = null;
+    isFirst = true;
+    activatorGenerated = false;
+    files.clear();
+    index = new BundleIndex();
+    defaultModule = null;
+    indexedElements.clear();
+    typeHierarchy.clear();
+  }
+
+  /**
+   * Adds the services started by the generated bundle activator to the {@link BundleIndex}
+   */
+  private void indexServices() {
+    String activator = mPackageName == null ? SIMPLE_BUNDLE : mPackageName + "." + SIMPLE_BUNDLE;
+    for (Map.Entry<String,TypeElement> entry : proxyMap.entrySet()) {
+      ServiceModel model = serviceMap.get(entry.getKey());
+      Service service = model.getService();
+
+      Set<String> flags = new LinkedHashSet<String>();
+      if (service.lazy()) {
+        flags.add(BundleIndex.FLAG_LAZY);
+      }
+      if (service.scope() == Service.Scope.BUNDLE) {
+        flags.add(BundleIndex.FLAG_BUNDLE_SCOPE);
+      }
+      if (service.async()) {
+        flags.add(BundleIndex.FLAG_ASYNC);
+      }
+      if (service.metrics()) {
+        flags.add(BundleIndex.FLAG_METRICS);
+      }
+      if (service.remote()) {
+        flags.add(BundleIndex.FLAG_REMOTE);
+      }
+      if (service.dispatcher()) {
+        flags.add(BundleIndex.FLAG_DISPATCHER);
+      }
+      List<BundleIndex.Method> methods = new ArrayList<BundleIndex.Method>();
+      for (ExportedMethod method : model.getMethods()) {
+        methods.add(new BundleIndex.Method(method.getSignature(), method.getReturnType().toString()));
+      }
+
+      index.addService(new BundleIndex.Service(activator, model.getName(),
+          elementUtils.getBinaryName(interfaceMap.get(model.getName())).toString(),
+          model.getBinaryName(), elementUtils.getBinaryName(entry.getValue()).toString(),
+          service.ranking(), flags, methods));
+      indexedElements.add(model.getTypeElement());
+    }
+    if (defaultModule == null || mPackageName != null) {
+      defaultModule = mPackageName;
+    }
+  }
+
+  /**
+   * Writes the {@link BundleIndex} of this module and, if {@link #OPTION_MERGE_INDEXES} is set, the
+   * app index merged from the indexes of the given modules. Hosts read them with
+   * {@link BundleIndex#load(ClassLoader)} instead of starting the bundles to see what they contain.
+   */
+  private void writeIndex() {
+    String module = processingEnv.getOptions().get(OPTION_MODULE);
+    if (StringUtils.isBlank(module)) {
+      module = StringUtils.isBlank(defaultModule) ? "default" : defaultModule;
+      if (!index.isEmpty()) {
+        messager.printMessage(Diagnostic.Kind.WARNING, String.format(
+            "-A%s is not set, the index is written as %s. Set it to a name that is unique in the"
+                + " app, the indexes of modules with the same name collide when the app is packaged.",
+            OPTION_MODULE, BundleIndex.DIRECTORY + module + BundleIndex.SUFFIX));
+      }
+    }
+    Element[] originatingElements = indexedElements.toArray(new Element[indexedElements.size()]);
+    try {
+      if (!index.isEmpty()) {
+        writeIndex(index, BundleIndex.DIRECTORY + module + BundleIndex.SUFFIX, originatingElements);
+      }
+
+      String mergeIndexes = processingEnv.getOptions().get(OPTION_MERGE_INDEXES);
+      if (StringUtils.isBlank(mergeIndexes)) {
+        return;
+      }
+      BundleIndex appIndex = new BundleIndex();
+      appIndex.merge(index);
+      for (String other : StringUtils.split(mergeIndexes, ',')) {
+        other = other.trim();
+        if (other.isEmpty() || other.equals(module)) {
+          continue;
+        }
+        String resourceName = BundleIndex.DIRECTORY + other + BundleIndex.SUFFIX;
+        InputStream in;
+        try {
+          in = filer.getResource(StandardLocation.CLASS_PATH, "", resourceName).openInputStream();
+        } catch (IOException e) {
+          error(null, String.format("The index %s of module '%s' has not been found on the classpath",
+              resourceName, other));
+          continue;
+        }
+        try {
+          appIndex.merge(BundleIndex.read(in));
+        } catch (IllegalArgumentException e) {
+          error(null, String.format("Can not merge the index of module '%s': %s", other,
+              e.getMessage()));
+        } finally {
+          in.close();
+        }
+      }
+      writeIndex(appIndex, BundleIndex.APP_INDEX, originatingElements);
+    } catch (IOException e) {
+      error(null, e.getMessage());
+    }
+  }
+
+  private void writeIndex(BundleIndex index, String resourceName, Element[] originatingElements)
+      throws IOException {
+    FileObject resource = filer.createResource(StandardLocation.CLASS_OUTPUT, "", resourceName,
+        originatingElements);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    index.write(bytes);
+    OutputStream out = resource.openOutputStream();
+    try {
+      bytes.writeTo(out);
+    } finally {
+      out.close();
+    }
+    report.resourceWritten(resourceName, bytes.size());
+  }
+
+  /**
+   * Writes the {@link ProcessorReport} if {@link #OPTION_REPORT} is set. A report that can't be
+   * written doesn't fail the compilation.
+   */
+  private void writeReport() {
+    try {
+      report.write();
+    } catch (IOException e) {
+      messager.printMessage(Diagnostic.Kind.WARNING,
+          "Can not write the processor report: " + e.getMessage());
+    }
+  }
+
+  private void generateBundleActivator() throws ProcessingException {
     ArrayList<FieldSpec> proxyFieldSpecList =new ArrayList<>();
-    String regFieldName = "mServiceRegistration";
     String bundleContextParamName = "bundleContext";
-    String body = "";
+    CodeBlock.Builder body = CodeBlock.builder();
+    CodeBlock.Builder statsStart = CodeBlock.builder();
+    CodeBlock.Builder statsStop = CodeBlock.builder();
+    ArrayList<FieldSpec> statsRegFieldSpecList = new ArrayList<>();
+    CodeBlock.Builder mailboxStop = CodeBlock.builder();
+    CodeBlock.Builder unregister = CodeBlock.builder();
+    CodeBlock.Builder asyncStart = CodeBlock.builder();
+    CodeBlock.Builder asyncStop = CodeBlock.builder();
+    ArrayList<FieldSpec> asyncFieldSpecList = new ArrayList<>();
+    CodeBlock.Builder rankingStart = CodeBlock.builder();
+    ArrayList<CodeBlock> serviceStarts = new ArrayList<>();
+    ArrayList<CodeBlock> serviceStops = new ArrayList<>();
+    ArrayList<FieldSpec> serviceRegFieldSpecList = new ArrayList<>();
+    List<ServiceModel> models = new ArrayList<>();
+    for (String name : proxyMap.keySet()) {
+      models.add(serviceMap.get(name));
+    }
+    ServiceGraph serviceGraph = new ServiceGraph(models);
+    boolean startInWaves = serviceGraph.hasDependencies();
     for (Map.Entry<String,TypeElement> entry : proxyMap.entrySet()) {
       String name = entry.getKey();
       TypeElement proxyTypeElement = entry.getValue();
-      TypeElement rawTypeElement = serviceMap.get(name);
+      ServiceModel model = serviceMap.get(name);
+
+      CodeBlock.Builder serviceRanking = CodeBlock.builder();
+      CodeBlock.Builder serviceBody = CodeBlock.builder();
+      CodeBlock.Builder serviceAsyncStart = CodeBlock.builder();
+      CodeBlock.Builder serviceStatsStart = CodeBlock.builder();
+      CodeBlock.Builder serviceAsyncStop = CodeBlock.builder();
+      CodeBlock.Builder serviceStatsStop = CodeBlock.builder();
+      CodeBlock.Builder serviceMailboxStop = CodeBlock.builder();
+      CodeBlock.Builder serviceUnregister = CodeBlock.builder();
+
+      Service service = model.getService();
+      String asyncName = name + ASYNC_SUFFIX;
+      String asyncRegFieldName = "m" + asyncName + "Registration";
+      String registrationProperties = "null";
+      // Every service keeps its own registration, stop() unregisters each of them
+      String serviceRegFieldName = "m" + name + "ServiceRegistration";
+      serviceRegFieldSpecList.add(
+          FieldSpec.builder(ServiceRegistration.class, serviceRegFieldName).build());
+      beginStep(serviceUnregister, StartupReport.STOP, name, "unregister");
+      serviceUnregister.addStatement("$N.unregister()", serviceRegFieldName);
+      endStep(serviceUnregister);
+      if (service.ranking() != 0) {
+        // Lookups and the generated locators prefer the service with the highest ranking
+        registrationProperties = StringUtils.uncapitalize(name) + "Properties";
+        TypeName propertiesType = ParameterizedTypeName.get(Hashtable.class, String.class, Object.class);
+        serviceRanking.addStatement("$T $N = new $T()", propertiesType, registrationProperties, propertiesType)
+            .addStatement("$N.put($T.SERVICE_RANKING, $L)", registrationProperties, Constants.class,
+                service.ranking());
+      }
+      if (model.isFactoryRegistered()) {
+        // Register a factory, the implementation and the proxy are created on first use
+        ClassName factoryClassName = ClassName.get(mPackageName, name + SERVICE_FACTORY_SUFFIX);
+        String factoryFieldName = "m" + name + SERVICE_FACTORY_SUFFIX;
+        proxyFieldSpecList.add(FieldSpec.builder(factoryClassName, factoryFieldName).build());
+        beginStep(serviceBody, StartupReport.START, name, "new " + factoryClassName.simpleName() + "()");
+        serviceBody.add("$L", factoryFieldName + "= new " + factoryClassName.simpleName() + "();\n");
+        endStep(serviceBody);
+        beginStep(serviceBody, StartupReport.START, name, "registerService");
+        serviceBody.add(startupReport ? "$L\n" : "$L", serviceRegFieldName + "=" + bundleContextParamName + "." + "registerService(" + "\"" + model.getQualifiedName() + "\"" + "," + factoryFieldName + "," + registrationProperties + ");");
+        endStep(serviceBody);
+        generateServiceFactory(model, proxyTypeElement);
+
+        if (service.async()) {
+          asyncFieldSpecList.add(FieldSpec.builder(ServiceRegistration.class, asyncRegFieldName).build());
+          beginStep(serviceAsyncStart, StartupReport.START, asyncName, "registerService");
+          serviceAsyncStart.addStatement("$N = $N.registerService($S, $N.asyncFactory(asyncExecutor()), null)",
+                  asyncRegFieldName, bundleContextParamName, mPackageName + "." + asyncName,
+                  factoryFieldName);
+          endStep(serviceAsyncStart);
+          beginStep(serviceAsyncStop, StartupReport.STOP, asyncName, "unregister");
+          serviceAsyncStop.addStatement("$N.unregister()", asyncRegFieldName);
+          endStep(serviceAsyncStop);
+        }
+      } else {
+        String proxyFieldName = "m" + name + PROXY_SUFFIX;
+        FieldSpec proxyFeildSpec = FieldSpec.builder(TypeName.get(proxyTypeElement.asType()), proxyFieldName).build();
+        proxyFieldSpecList.add(proxyFeildSpec);
+
+        String createProxy = proxyFieldName + "= new " + proxyTypeElement.getSimpleName() + "(new " + model.getClassName().simpleName() + "());\n";
+        String reg = serviceRegFieldName + "=" + bundleContextParamName + "." + "registerService(" +"\""+ model.getQualifiedName() + "\""+ "," + proxyFieldName + "," + registrationProperties + ");";
+        if (startupReport) {
+          // Time the implementation and the proxy separately
+          String implName = StringUtils.uncapitalize(name) + "Impl";
+          beginStep(serviceBody, StartupReport.START, name, "new " + model.getClassName().simpleName() + "()");
+          serviceBody.addStatement("$T $N = new $T()", model.getClassName(), implName, model.getClassName());
+          endStep(serviceBody);
+          beginStep(serviceBody, StartupReport.START, name, "new " + proxyTypeElement.getSimpleName() + "()");
+          serviceBody.addStatement("$N = new $T($N)", proxyFieldName, proxyTypeElement, implName);
+          endStep(serviceBody);
+          beginStep(serviceBody, StartupReport.START, name, "registerService");
+          serviceBody.add("$L\n", reg);
+          endStep(serviceBody);
+        } else {
+          serviceBody.add("$L", createProxy);
+          serviceBody.add("$L", reg);
+        }
 
+        if (service.mailboxCapacity() > 0) {
+          // Run the calls that are still queued before the bundle goes away
+          beginStep(serviceMailboxStop, StartupReport.STOP, name, "shutdown");
+          serviceMailboxStop.addStatement("$N.shutdown()", proxyFieldName);
+          endStep(serviceMailboxStop);
+        }
 
+        if (service.async()) {
+          // Register the asynchronous variant, it delegates to the blocking proxy
+          String asyncProxyFieldName = "m" + asyncName + PROXY_SUFFIX;
+          ClassName asyncProxyClassName = ClassName.get(mPackageName, asyncName + PROXY_SUFFIX);
+          asyncFieldSpecList.add(FieldSpec.builder(asyncProxyClassName, asyncProxyFieldName).build());
+          asyncFieldSpecList.add(FieldSpec.builder(ServiceRegistration.class, asyncRegFieldName).build());
+          beginStep(serviceAsyncStart, StartupReport.START, asyncName, "registerService");
+          serviceAsyncStart.addStatement("$N = new $T($N, asyncExecutor())", asyncProxyFieldName,
+                  asyncProxyClassName, proxyFieldName)
+              .addStatement("$N = $N.registerService($S, $N, null)", asyncRegFieldName,
+                  bundleContextParamName, mPackageName + "." + asyncName, asyncProxyFieldName);
+          endStep(serviceAsyncStart);
+          beginStep(serviceAsyncStop, StartupReport.STOP, asyncName, "unregister");
+          serviceAsyncStop.addStatement("$N.unregister()", asyncRegFieldName);
+          endStep(serviceAsyncStop);
+        }
+      }
+
+      if (service.metrics()) {
+        // Publish the call statistics of the proxy next to the service itself
+        String statsRegFieldName = "m" + name + "StatsRegistration";
+        String statsPropertiesName = StringUtils.uncapitalize(name) + "StatsProperties";
+        TypeName propertiesType = ParameterizedTypeName.get(Hashtable.class, String.class, Object.class);
+        statsRegFieldSpecList.add(FieldSpec.builder(ServiceRegistration.class, statsRegFieldName).build());
+        beginStep(serviceStatsStart, StartupReport.START, name, "registerService(stats)");
+        serviceStatsStart.addStatement("$T $N = new $T()", propertiesType, statsPropertiesName, propertiesType)
+            .addStatement("$N.put($T.PROPERTY_SERVICE, $S)", statsPropertiesName, ServiceStats.class, name)
+            .addStatement("$N = $N.registerService($T.SERVICE_NAME, $T.$N, $N)", statsRegFieldName,
+                bundleContextParamName, ServiceStats.class, proxyTypeElement, STATS_FIELD,
+                statsPropertiesName);
+        endStep(serviceStatsStart);
+        beginStep(serviceStatsStop, StartupReport.STOP, name, "unregister(stats)");
+        serviceStatsStop.addStatement("$N.unregister()", statsRegFieldName);
+        endStep(serviceStatsStop);
+      }
+
+      rankingStart.add("$L", serviceRanking.build());
+      body.add("$L", serviceBody.build());
+      unregister.add("$L", serviceUnregister.build());
+      asyncStart.add("$L", serviceAsyncStart.build());
+      statsStart.add("$L", serviceStatsStart.build());
+      asyncStop.add("$L", serviceAsyncStop.build());
+      statsStop.add("$L", serviceStatsStop.build());
+      mailboxStop.add("$L", serviceMailboxStop.build());
+
+      // Chunked activators keep all the statements of a service together
+      CodeBlock serviceBodyBlock = serviceBody.build();
+      serviceStarts.add(CodeBlock.builder()
+          .add("$L", serviceRanking.build())
+          .add(serviceBodyBlock.toString().endsWith("\n") ? "$L" : "$L\n", serviceBodyBlock)
+          .add("$L", serviceAsyncStart.build())
+          .add("$L", serviceStatsStart.build())
+          .build());
+      serviceStops.add(CodeBlock.builder()
+          .add("$L", serviceUnregister.build())
+          .add("$L", serviceAsyncStop.build())
+          .add("$L", serviceStatsStop.build())
+          .add("$L", serviceMailboxStop.build())
+          .build());
+    }
+
+    TypeSpec.Builder bundleTypeSpecBuilder = TypeSpec.classBuilder(SIMPLE_BUNDLE);
+    Set<String> bundleMemberNames = new HashSet<>(Arrays.asList("start", "stop", "warmUp",
+        "setAsyncExecutor", "asyncExecutor", "setStartExecutor", "startExecutor",
+        "getStartupReport"));
+
+    // Classes to load and calls to run during warmUp()
+    List<String> warmUpClassNames = new ArrayList<>();
+    CodeBlock.Builder warmUpCalls = CodeBlock.builder();
+    boolean hasWarmUpCalls = false;
+    for (Map.Entry<String,TypeElement> entry : proxyMap.entrySet()) {
+      String name = entry.getKey();
       String proxyFieldName = "m" + name + PROXY_SUFFIX;
-      FieldSpec proxyFeildSpec = FieldSpec.builder(TypeName.get(proxyTypeElement.asType()), proxyFieldName).build();
-      proxyFieldSpecList.add(proxyFeildSpec);
+      ServiceModel model = serviceMap.get(name);
+      warmUpClassNames.add(model.getBinaryName());
+      warmUpClassNames.add(elementUtils.getBinaryName(interfaceMap.get(name)).toString());
+      warmUpClassNames.add(elementUtils.getBinaryName(entry.getValue()).toString());
+
+      if (model.isFactoryRegistered()) {
+        // Warm-up calls would defeat the lazy creation, only the classes are loaded
+        continue;
+      }
+      for (ExportedMethod exportMethod : model.getMethods()) {
+        if (exportMethod.getExport().warmUp()) {
+          warmUpCalls.beginControlFlow("if ($N != null)", proxyFieldName)
+              .addStatement("$N.$N()", proxyFieldName, exportMethod.getName())
+              .endControlFlow();
+          hasWarmUpCalls = true;
+        }
+      }
+    }
 
-      String createProxy = proxyFieldName + "= new " + proxyTypeElement.getSimpleName() + "(new " + rawTypeElement.getSimpleName() + "());\n";
-      String reg = regFieldName + "=" + bundleContextParamName + "." + "registerService(" +"\""+ rawTypeElement.getQualifiedName().toString() + "\""+ "," + proxyFieldName + ",null);";
-      body = body + createProxy;
-      body = body + reg;
+    CodeBlock warmUpRunnable = CodeBlock.builder().add("null").build();
+    if (hasWarmUpCalls) {
+      warmUpRunnable = CodeBlock.builder()
+          .add("$L", TypeSpec.anonymousClassBuilder("")
+              .addSuperinterface(Runnable.class)
+              .addMethod(MethodSpec.methodBuilder("run")
+                  .addAnnotation(Override.class)
+                  .addModifiers(Modifier.PUBLIC)
+                  .addCode(warmUpCalls.build())
+                  .build())
+              .build())
+          .build();
     }
 
+    MethodSpec warmUpMethodSpec = MethodSpec.methodBuilder("warmUp")
+            .addJavadoc("Loads the service classes and runs the warm-up calls in the background.\n"
+                + "Meant to be called right after {@link #start(BundleContext)}.\n")
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(Executor.class, "executor")
+            .returns(WarmUpTask.class)
+            .addStatement("return $T.submit(executor, $N.class.getClassLoader(), $L, $L)",
+                WarmUpTask.class, SIMPLE_BUNDLE,
+                FactoryGroupedClasses.classNamesArray(bundleTypeSpecBuilder, warmUpClassNames,
+                    bundleMemberNames),
+                warmUpRunnable)
+            .build();
 
 
-    FieldSpec regFeildSpec = FieldSpec.builder(ServiceRegistration.class, regFieldName).build();
+    String reportRegFieldName = "mStartupReportRegistration";
+    CodeBlock.Builder reportStart = CodeBlock.builder();
+    CodeBlock.Builder reportFinish = CodeBlock.builder();
+    CodeBlock.Builder reportStop = CodeBlock.builder();
+    CodeBlock.Builder reportStopFinish = CodeBlock.builder();
+    if (startupReport) {
+      reportStart.addStatement("$N = new $T($S)", STARTUP_REPORT_FIELD, StartupReport.class,
+          mPackageName == null ? SIMPLE_BUNDLE : mPackageName + "." + SIMPLE_BUNDLE);
+      reportFinish.addStatement("$N.finish($T.START)", STARTUP_REPORT_FIELD, StartupReport.class)
+          .addStatement("$N = $N.registerService($T.SERVICE_NAME, $N, null)", reportRegFieldName,
+              bundleContextParamName, StartupReport.class, STARTUP_REPORT_FIELD);
+      reportStop.addStatement("$N.unregister()", reportRegFieldName);
+      reportStopFinish.addStatement("$N.finish($T.STOP)", STARTUP_REPORT_FIELD, StartupReport.class);
+    }
 
+    ArrayList<MethodSpec> chunkMethodSpecList = new ArrayList<>();
+    if (startInWaves) {
+      // Services start in waves of services that don't depend on each other, dependents stop first
+      List<CodeBlock> waveStarts = new ArrayList<>();
+      List<CodeBlock> waveStops = new ArrayList<>();
+      Map<String, Integer> serviceIndexes = new HashMap<>();
+      for (int i = 0; i < models.size(); i++) {
+        serviceIndexes.put(models.get(i).getName(), i);
+      }
+      CodeBlock.Builder waveEnds = CodeBlock.builder().add("{");
+      List<List<ServiceModel>> waves = serviceGraph.waves();
+      for (int wave = 0; wave < waves.size(); wave++) {
+        for (ServiceModel model : waves.get(wave)) {
+          int index = serviceIndexes.get(model.getName());
+          waveStarts.add(serviceStarts.get(index));
+          waveStops.add(0, serviceStops.get(index));
+        }
+        waveEnds.add(wave == 0 ? "$L" : ", $L", waveStarts.size());
+      }
+      String wavesFieldName = NameUtils.uniqueName("START_WAVES", bundleMemberNames);
+      bundleTypeSpecBuilder.addField(FieldSpec.builder(int[].class, wavesFieldName)
+          .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+          .initializer(waveEnds.add("}").build())
+          .build());
+
+      String startServiceName = NameUtils.uniqueName("startService", bundleMemberNames);
+      chunkMethodSpecList.addAll(generateStartService(startServiceName, waveStarts,
+          bundleContextParamName, bundleMemberNames));
+      addStartExecutorConfig(bundleTypeSpecBuilder);
+
+      CodeBlock.Builder stops = CodeBlock.builder();
+      if (waveStops.size() > SERVICES_PER_CHUNK) {
+        for (int start = 0; start < waveStops.size(); start += SERVICES_PER_CHUNK) {
+          String stopName = NameUtils.uniqueName("stopServices" + start / SERVICES_PER_CHUNK,
+              bundleMemberNames);
+          MethodSpec.Builder stopChunk = MethodSpec.methodBuilder(stopName)
+              .addModifiers(Modifier.PRIVATE);
+          for (int i = start; i < Math.min(start + SERVICES_PER_CHUNK, waveStops.size()); i++) {
+            stopChunk.addCode(waveStops.get(i));
+          }
+          chunkMethodSpecList.add(stopChunk.build());
+          stops.addStatement("$N()", stopName);
+        }
+      } else {
+        for (CodeBlock stop : waveStops) {
+          stops.add(stop);
+        }
+      }
 
+      rankingStart = CodeBlock.builder();
+      body = CodeBlock.builder().addStatement("$T.run(startExecutor(), $N, $L)",
+          StartupWaves.class, wavesFieldName, TypeSpec.anonymousClassBuilder("")
+              .addSuperinterface(StartupWaves.Starter.class)
+              .addMethod(MethodSpec.methodBuilder("start")
+                  .addAnnotation(Override.class)
+                  .addModifiers(Modifier.PUBLIC)
+                  .addParameter(int.class, "service")
+                  .addStatement("$N(service, $N)", startServiceName, bundleContextParamName)
+                  .build())
+              .build());
+      asyncStart = CodeBlock.builder();
+      statsStart = CodeBlock.builder();
+      unregister = CodeBlock.builder();
+      asyncStop = stops;
+      statsStop = CodeBlock.builder();
+      mailboxStop = CodeBlock.builder();
+    } else if (serviceStarts.size() > SERVICES_PER_CHUNK) {
+      // Too many services for one method, start() and stop() only call the helpers
+      CodeBlock.Builder chunkStarts = CodeBlock.builder();
+      CodeBlock.Builder chunkStops = CodeBlock.builder();
+      for (int start = 0; start < serviceStarts.size(); start += SERVICES_PER_CHUNK) {
+        int chunk = start / SERVICES_PER_CHUNK;
+        String startName = NameUtils.uniqueName("startServices" + chunk, bundleMemberNames);
+        String stopName = NameUtils.uniqueName("stopServices" + chunk, bundleMemberNames);
+        MethodSpec.Builder startChunk = MethodSpec.methodBuilder(startName)
+            .addModifiers(Modifier.PRIVATE)
+            .addParameter(BundleContext.class, bundleContextParamName);
+        MethodSpec.Builder stopChunk = MethodSpec.methodBuilder(stopName)
+            .addModifiers(Modifier.PRIVATE);
+        for (int i = start; i < Math.min(start + SERVICES_PER_CHUNK, serviceStarts.size()); i++) {
+          startChunk.addCode(serviceStarts.get(i));
+          stopChunk.addCode(serviceStops.get(i));
+        }
+        chunkMethodSpecList.add(startChunk.build());
+        chunkMethodSpecList.add(stopChunk.build());
+        chunkStarts.addStatement("$N($N)", startName, bundleContextParamName);
+        chunkStops.addStatement("$N()", stopName);
+      }
+      rankingStart = CodeBlock.builder();
+      body = chunkStarts;
+      asyncStart = CodeBlock.builder();
+      statsStart = CodeBlock.builder();
+      unregister = CodeBlock.builder();
+      asyncStop = chunkStops;
+      statsStop = CodeBlock.builder();
+      mailboxStop = CodeBlock.builder();
+    }
+
+    ParameterSpec.Builder bundleContextParam =
+        ParameterSpec.builder(BundleContext.class, bundleContextParamName);
+    if (startInWaves) {
+      // The services are started by an anonymous class
+      bundleContextParam.addModifiers(Modifier.FINAL);
+    }
     MethodSpec startMethodSpec = MethodSpec.methodBuilder("start")
             .addModifiers(Modifier.PUBLIC)
-            .addCode(body)
-            .addParameter(BundleContext.class, bundleContextParamName)
+            .addCode(reportStart.build())
+            .addCode(rankingStart.build())
+            .addCode(body.build())
+            .addCode(startInWaves || serviceStarts.size() > SERVICES_PER_CHUNK
+                || statsRegFieldSpecList.isEmpty() && asyncFieldSpecList.isEmpty() ? "" : "\n")
+            .addCode(asyncStart.build())
+            .addCode(statsStart.build())
+            .addCode(reportFinish.build())
+            .addParameter(bundleContextParam.build())
             .returns(TypeName.VOID)
             .build();
 
     MethodSpec stopMethodSpec = MethodSpec.methodBuilder("stop")
             .addModifiers(Modifier.PUBLIC)
             .addParameter(BundleContext.class, bundleContextParamName)
-            .addStatement("$N.unregister()",regFeildSpec)
+            .addCode(reportStop.build())
+            .addCode(unregister.build())
+            .addCode(asyncStop.build())
+            .addCode(statsStop.build())
+            .addCode(mailboxStop.build())
+            .addCode(reportStopFinish.build())
             .returns(TypeName.VOID)
             .build();
 
-    TypeSpec bundleTypeSpec = TypeSpec.classBuilder(SIMPLE_BUNDLE)
+    bundleTypeSpecBuilder
             .addSuperinterface(BundleActivator.class)
             .addModifiers(Modifier.PUBLIC)
-            .addField(regFeildSpec)
+            .addFields(serviceRegFieldSpecList)
             .addFields(proxyFieldSpecList)
+            .addFields(asyncFieldSpecList)
+            .addFields(statsRegFieldSpecList)
             .addMethod(startMethodSpec)
             .addMethod(stopMethodSpec)
-            .build();
+            .addMethod(warmUpMethodSpec)
+            .addMethods(chunkMethodSpecList);
 
-    try {
-      JavaFile.builder(mPackageName, bundleTypeSpec).build().writeTo(filer);
+    if (!asyncFieldSpecList.isEmpty()) {
+      addAsyncExecutorConfig(bundleTypeSpecBuilder);
+    }
+    for (Map.Entry<String,TypeElement> entry : proxyMap.entrySet()) {
+      bundleTypeSpecBuilder.addOriginatingElement(serviceMap.get(entry.getKey()).getTypeElement())
+          .addOriginatingElement(entry.getValue());
+    }
+    if (startupReport) {
+      bundleTypeSpecBuilder.addField(StartupReport.class, STARTUP_REPORT_FIELD)
+          .addField(ServiceRegistration.class, reportRegFieldName)
+          .addMethod(MethodSpec.methodBuilder("getStartupReport")
+              .addJavadoc("Returns the timings of the last start() and stop().\n")
+              .addModifiers(Modifier.PUBLIC)
+              .returns(StartupReport.class)
+              .addStatement("return $N", STARTUP_REPORT_FIELD)
+              .build());
+    }
 
-    } catch (IOException e) {
-      e.printStackTrace();
+    TypeSpec bundleTypeSpec = bundleTypeSpecBuilder.build();
+
+    files.add(JavaFile.builder(mPackageName, bundleTypeSpec).build());
+  }
+
+
+  /**
+   * Generates the method that starts the service with the given index for
+   * {@link StartupWaves.Starter}. With many services it only picks the helper method that starts
+   * the service, so that every method stays small.
+   */
+  private List<MethodSpec> generateStartService(String methodName, List<CodeBlock> serviceStarts,
+      String bundleContextParamName, Set<String> bundleMemberNames) {
+    List<MethodSpec> methodSpecs = new ArrayList<>();
+    MethodSpec.Builder startService = MethodSpec.methodBuilder(methodName)
+        .addModifiers(Modifier.PRIVATE)
+        .addParameter(int.class, "service")
+        .addParameter(BundleContext.class, bundleContextParamName);
+    if (serviceStarts.size() > SERVICES_PER_CHUNK) {
+      startService.beginControlFlow("switch (service / $L)", SERVICES_PER_CHUNK);
+      for (int start = 0; start < serviceStarts.size(); start += SERVICES_PER_CHUNK) {
+        int chunk = start / SERVICES_PER_CHUNK;
+        String chunkName = NameUtils.uniqueName("startServices" + chunk, bundleMemberNames);
+        methodSpecs.add(generateStartServiceSwitch(chunkName,
+            serviceStarts.subList(start, Math.min(start + SERVICES_PER_CHUNK, serviceStarts.size())),
+            start, bundleContextParamName));
+        startService.addCode("case $L:\n$>", chunk)
+            .addStatement("$N(service, $N)", chunkName, bundleContextParamName)
+            .addStatement("break")
+            .addCode("$<");
+      }
+      startService.addCode("default:\n$>")
+          .addStatement("throw new $T($S + service)", IllegalArgumentException.class,
+              "Unknown service: ")
+          .addCode("$<")
+          .endControlFlow();
+      methodSpecs.add(0, startService.build());
+      return methodSpecs;
     }
+    methodSpecs.add(generateStartServiceSwitch(methodName, serviceStarts, 0,
+        bundleContextParamName));
+    return methodSpecs;
   }
 
+  private MethodSpec generateStartServiceSwitch(String methodName, List<CodeBlock> serviceStarts,
+      int firstService, String bundleContextParamName) {
+    MethodSpec.Builder startService = MethodSpec.methodBuilder(methodName)
+        .addModifiers(Modifier.PRIVATE)
+        .addParameter(int.class, "service")
+        .addParameter(BundleContext.class, bundleContextParamName)
+        .beginControlFlow("switch (service)");
+    for (int i = 0; i < serviceStarts.size(); i++) {
+      startService.addCode("case $L: {\n$>", firstService + i)
+          .addCode(serviceStarts.get(i))
+          .addStatement("break")
+          .addCode("$<}\n");
+    }
+    startService.addCode("default:\n$>")
+        .addStatement("throw new $T($S + service)", IllegalArgumentException.class,
+            "Unknown service: ")
+        .addCode("$<")
+        .endControlFlow();
+    return startService.build();
+  }
 
-  private void generateSerivesInterface() throws ProcessingException {
+  /**
+   * Adds the executor the services of a bundle with dependencies between its services are started
+   * on
+   */
+  private void addStartExecutorConfig(TypeSpec.Builder bundleTypeSpecBuilder) {
+    String executorFieldName = "sStartExecutor";
+    bundleTypeSpecBuilder.addField(FieldSpec.builder(Executor.class, executorFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("setStartExecutor")
+            .addJavadoc("Sets the executor services that don't depend on each other are started on\n"
+                + "in parallel. {@link #start(BundleContext)} uses the shared executor of\n"
+                + "{@link $T} if none has been set.\n", AsyncExecutors.class)
+            .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+            .addParameter(Executor.class, "executor")
+            .addStatement("$N = executor", executorFieldName)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("startExecutor")
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+            .returns(Executor.class)
+            .addStatement("$T executor = $N", Executor.class, executorFieldName)
+            .addStatement("return executor != null ? executor : $T.shared()", AsyncExecutors.class)
+            .build());
+  }
 
+  /**
+   * Starts timing a step of the generated activator, if the startup report is enabled
+   */
+  private void beginStep(CodeBlock.Builder code, String phase, String service, String step) {
+    if (startupReport) {
+      code.addStatement("$N.begin($T.$L, $S, $S)", STARTUP_REPORT_FIELD, StartupReport.class,
+          phase.toUpperCase(), service, step);
+    }
+  }
 
-    for (Map.Entry<String,ArrayList<ExecutableElement>> entry : methodMap.entrySet()) {
-      String name = entry.getKey();
-      TypeElement typeElement = serviceMap.get(name);
+  private void endStep(CodeBlock.Builder code) {
+    if (startupReport) {
+      code.addStatement("$N.end()", STARTUP_REPORT_FIELD);
+    }
+  }
 
+  /**
+   * Generates the {@link ServiceFactory} a lazy or bundle scoped service is registered with. It
+   * creates the implementation and the proxy when the first consumer gets the service and drops
+   * them when the last consumer ungets it. Bundle scoped services get one instance per consuming
+   * bundle.
+   */
+  private void generateServiceFactory(final ServiceModel model,
+      final TypeElement proxyTypeElement) {
+    final TypeName proxyType = TypeName.get(proxyTypeElement.asType());
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return generateServiceFactory(model, proxyTypeElement, proxyType);
+      }
+    });
+  }
 
-      ArrayList<ExecutableElement> exportMethods = entry.getValue();
+  private JavaFile generateServiceFactory(ServiceModel model, TypeElement proxyTypeElement,
+      TypeName proxyType) {
+    String name = model.getName();
+    Service service = model.getService();
+    TypeName rawType = model.getTypeName();
+    boolean bundleScope = service.scope() == Service.Scope.BUNDLE;
+    String acquireArguments = bundleScope ? "bundle" : "";
+
+    MethodSpec.Builder acquireMethod = MethodSpec.methodBuilder("acquire")
+        .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+        .returns(proxyType);
+    MethodSpec.Builder releaseMethod = MethodSpec.methodBuilder("release")
+        .addModifiers(Modifier.PUBLIC);
+    ArrayList<FieldSpec> factoryFieldSpecList = new ArrayList<>();
+    if (bundleScope) {
+      String proxiesFieldName = "mProxies";
+      String usersFieldName = "mUsers";
+      TypeName proxiesType = ParameterizedTypeName.get(ClassName.get(Map.class),
+          ClassName.get(Bundle.class), proxyType);
+      TypeName usersType = ParameterizedTypeName.get(Map.class, Bundle.class, Integer.class);
+      factoryFieldSpecList.add(FieldSpec.builder(proxiesType, proxiesFieldName)
+          .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+          .initializer("new $T()", ParameterizedTypeName.get(ClassName.get(HashMap.class),
+              ClassName.get(Bundle.class), proxyType))
+          .build());
+      factoryFieldSpecList.add(FieldSpec.builder(usersType, usersFieldName)
+          .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+          .initializer("new $T()", ParameterizedTypeName.get(HashMap.class, Bundle.class, Integer.class))
+          .build());
+
+      acquireMethod.addJavadoc("Returns the proxy of the given bundle, creating it and the implementation if\n"
+              + "needed. Every call has to be paired with a call to {@link #release(Bundle)}.\n")
+          .addParameter(Bundle.class, "bundle")
+          .addStatement("$T proxy = $N.get(bundle)", proxyType, proxiesFieldName)
+          .beginControlFlow("if (proxy == null)")
+          .addStatement("proxy = new $T(new $T())", proxyType, rawType)
+          .addStatement("$N.put(bundle, proxy)", proxiesFieldName)
+          .endControlFlow()
+          .addStatement("$T users = $N.get(bundle)", Integer.class, usersFieldName)
+          .addStatement("$N.put(bundle, users == null ? 1 : users + 1)", usersFieldName)
+          .addStatement("return proxy");
+
+      releaseMethod.addJavadoc("Drops the proxy of the given bundle after it has released it as often as it\n"
+              + "has acquired it.\n")
+          .addParameter(Bundle.class, "bundle")
+          .addStatement("$T proxy", proxyType)
+          .beginControlFlow("synchronized (this)")
+          .addStatement("$T users = $N.get(bundle)", Integer.class, usersFieldName)
+          .beginControlFlow("if (users == null)")
+          .addStatement("return")
+          .endControlFlow()
+          .beginControlFlow("if (users > 1)")
+          .addStatement("$N.put(bundle, users - 1)", usersFieldName)
+          .addStatement("return")
+          .endControlFlow()
+          .addStatement("$N.remove(bundle)", usersFieldName)
+          .addStatement("proxy = $N.remove(bundle)", proxiesFieldName)
+          .endControlFlow();
+      if (service.mailboxCapacity() > 0) {
+        // Drain the mailbox outside of the lock, queued calls may take a while
+        releaseMethod.addStatement("proxy.shutdown()");
+      }
+    } else {
+      String proxyFieldName = "m" + name + PROXY_SUFFIX;
+      String usersFieldName = "mUsers";
+      factoryFieldSpecList.add(FieldSpec.builder(proxyType, proxyFieldName, Modifier.PRIVATE).build());
+      factoryFieldSpecList.add(FieldSpec.builder(int.class, usersFieldName, Modifier.PRIVATE).build());
+
+      acquireMethod.addJavadoc("Returns the proxy, creating it and the implementation if needed.\n"
+              + "Every call has to be paired with a call to {@link #release()}.\n")
+          .beginControlFlow("if ($N == null)", proxyFieldName)
+          .addStatement("$N = new $T(new $T())", proxyFieldName, proxyType, rawType)
+          .endControlFlow()
+          .addStatement("$N++", usersFieldName)
+          .addStatement("return $N", proxyFieldName);
+
+      releaseMethod.addJavadoc("Drops the proxy after the last consumer has released it.\n");
+      if (service.mailboxCapacity() > 0) {
+        // Drain the mailbox outside of the lock, queued calls may take a while
+        releaseMethod.addStatement("$T proxy", proxyType)
+            .beginControlFlow("synchronized (this)")
+            .beginControlFlow("if ($N == 0 || --$N > 0)", usersFieldName, usersFieldName)
+            .addStatement("return")
+            .endControlFlow()
+            .addStatement("proxy = $N", proxyFieldName)
+            .addStatement("$N = null", proxyFieldName)
+            .endControlFlow()
+            .addStatement("proxy.shutdown()");
+      } else {
+        releaseMethod.addModifiers(Modifier.SYNCHRONIZED)
+            .beginControlFlow("if ($N > 0 && --$N == 0)", usersFieldName, usersFieldName)
+            .addStatement("$N = null", proxyFieldName)
+            .endControlFlow();
+      }
+    }
 
-      ArrayList<MethodSpec> interMethodSpecList = new ArrayList<>();
+    TypeSpec.Builder factoryTypeSpecBuilder = TypeSpec.classBuilder(name + SERVICE_FACTORY_SUFFIX)
+        .addOriginatingElement(model.getTypeElement())
+        .addOriginatingElement(proxyTypeElement)
+        .addJavadoc(bundleScope ? "Creates the $N service for every consuming bundle.\n"
+            : "Creates the $N service on first use.\n", name)
+        .addSuperinterface(ServiceFactory.class)
+        .addModifiers(Modifier.PUBLIC)
+        .addFields(factoryFieldSpecList)
+        .addMethod(acquireMethod.build())
+        .addMethod(releaseMethod.build())
+        .addMethod(MethodSpec.methodBuilder("getService")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(Bundle.class, "bundle")
+            .addParameter(ServiceRegistration.class, "registration")
+            .returns(Object.class)
+            .addStatement("return acquire($L)", acquireArguments)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("ungetService")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(Bundle.class, "bundle")
+            .addParameter(ServiceRegistration.class, "registration")
+            .addParameter(Object.class, "service")
+            .addStatement("release($L)", acquireArguments)
+            .build());
+
+    if (service.async()) {
+      ClassName asyncProxyClassName = ClassName.get(mPackageName, name + ASYNC_SUFFIX + PROXY_SUFFIX);
+      factoryTypeSpecBuilder.addMethod(MethodSpec.methodBuilder("asyncFactory")
+          .addJavadoc("Returns a factory for the asynchronous variant of the service, it shares\n"
+              + "the proxies with this factory.\n")
+          .addModifiers(Modifier.PUBLIC)
+          .addParameter(Executor.class, "executor", Modifier.FINAL)
+          .returns(ServiceFactory.class)
+          .addStatement("return $L", TypeSpec.anonymousClassBuilder("")
+              .addSuperinterface(ServiceFactory.class)
+              .addMethod(MethodSpec.methodBuilder("getService")
+                  .addAnnotation(Override.class)
+                  .addModifiers(Modifier.PUBLIC)
+                  .addParameter(Bundle.class, "bundle")
+                  .addParameter(ServiceRegistration.class, "registration")
+                  .returns(Object.class)
+                  .addStatement("return new $T(acquire($L), executor)", asyncProxyClassName,
+                      acquireArguments)
+                  .build())
+              .addMethod(MethodSpec.methodBuilder("ungetService")
+                  .addAnnotation(Override.class)
+                  .addModifiers(Modifier.PUBLIC)
+                  .addParameter(Bundle.class, "bundle")
+                  .addParameter(ServiceRegistration.class, "registration")
+                  .addParameter(Object.class, "service")
+                  .addStatement("release($L)", acquireArguments)
+                  .build())
+              .build())
+          .build());
+    }
 
-      for (ExecutableElement exportMethod : exportMethods) {
+    return JavaFile.builder(mPackageName, factoryTypeSpecBuilder.build()).build();
+  }
 
-        String methodName = exportMethod.getSimpleName().toString();
+  /**
+   * Adds a static setter for the executor of the asynchronous proxies to the bundle activator,
+   * {@link AsyncExecutors#shared()} is used if none has been set
+   */
+  private void addAsyncExecutorConfig(TypeSpec.Builder bundleTypeSpecBuilder) {
+    String executorFieldName = "sAsyncExecutor";
+    bundleTypeSpecBuilder.addField(FieldSpec.builder(Executor.class, executorFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("setAsyncExecutor")
+            .addJavadoc("Sets the executor the asynchronous service proxies run their calls on.\n"
+                + "Only affects proxies created by later calls to {@link #start(BundleContext)}.\n")
+            .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+            .addParameter(Executor.class, "executor")
+            .addStatement("$N = executor", executorFieldName)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("asyncExecutor")
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+            .returns(Executor.class)
+            .addStatement("$T executor = $N", Executor.class, executorFieldName)
+            .addStatement("return executor != null ? executor : $T.shared()", AsyncExecutors.class)
+            .build());
+  }
 
-        List<? extends VariableElement> parameters = exportMethod.getParameters();
+  private void generateSerivesInterface(final ServiceModel model) {
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        String name = model.getName();
+        ArrayList<MethodSpec> interMethodSpecList = new ArrayList<>();
 
+        for (ExportedMethod exportMethod : model.getMethods()) {
 
-        ArrayList<ParameterSpec> paraSpecList = new ArrayList<>();
+          MethodSpec interMethodSpec = MethodSpec.methodBuilder(exportMethod.getName())
+                  .addModifiers(Modifier.PUBLIC,Modifier.ABSTRACT)
+                  .addParameters(exportMethod.getParameters())
+                  .returns(exportMethod.getReturnType())
+                  .build();
 
-        for (int i = 0; i < parameters.size(); i++) {
-          VariableElement parameter = parameters.get(i);
 
-          String paraName = parameter.getSimpleName().toString();
-          TypeMirror paraTypeMirror = parameter.asType();
+          interMethodSpecList.add(interMethodSpec);
 
-          ParameterSpec parameterSpec = ParameterSpec.builder(TypeName.get(paraTypeMirror),paraName).build();
-          paraSpecList.add(parameterSpec);
         }
-//
-
-        TypeMirror returnType = exportMethod.getReturnType();
 
-        MethodSpec interMethodSpec = MethodSpec.methodBuilder(methodName)
-                .addModifiers(Modifier.PUBLIC,Modifier.ABSTRACT)
-                .addParameters(paraSpecList)
-                .returns(TypeName.get(returnType))
+        TypeSpec interTypeSpec = TypeSpec.interfaceBuilder(name)
+                .addOriginatingElement(model.getTypeElement())
+                .addAnnotation(AnnotationSpec.builder(ServiceInterface.class)
+                        .addMember("name", "$S", name)
+                        .build())
+                .addModifiers(Modifier.PUBLIC)
+                .addMethods(interMethodSpecList)
                 .build();
 
+        return JavaFile.builder(mPackageName, interTypeSpec).build();
+      }
+    });
 
-        interMethodSpecList.add(interMethodSpec);
+    if (model.getService().async()) {
+      generateAsyncService(model);
+    }
+    generateLocator(model);
+    if (model.getService().remote()) {
+      generateRemoteStubs(model);
+    }
+    if (model.getService().dispatcher()) {
+      generateDispatcher(model);
+    }
+  }
 
+  /**
+   * Generates the dispatcher that invokes the exported methods of a service by id
+   */
+  private void generateDispatcher(final ServiceModel model) {
+    final String packageName = mPackageName;
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return DispatcherGenerator.generate(model, packageName);
       }
+    });
+  }
 
-      TypeSpec interTypeSpec = TypeSpec.interfaceBuilder(name)
-              .addAnnotation(AnnotationSpec.builder(ServiceInterface.class)
-                      .addMember("name", "$S", name)
-                      .build())
-              .addModifiers(Modifier.PUBLIC)
-              .addMethods(interMethodSpecList)
-              .build();
-
-      // Write file
-      try {
-        JavaFile.builder(mPackageName, interTypeSpec).build().writeTo(filer);
+  /**
+   * Generates the client and the server stub that call the service from another process
+   */
+  private void generateRemoteStubs(final ServiceModel model) {
+    final String packageName = mPackageName;
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return RemoteStubs.generateClient(model, packageName);
+      }
+    });
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return RemoteStubs.generateServer(model, packageName);
+      }
+    });
+  }
 
-      } catch (IOException e) {
-        e.printStackTrace();
+  /**
+   * Generates a typed locator for a service. It looks the service up once and keeps it, or the
+   * fact that there is none, in volatile fields until a {@link ServiceListener} sees a matching
+   * service change.
+   */
+  private void generateLocator(final ServiceModel model) {
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return generateLocatorFile(model);
       }
+    });
+  }
 
-      serviceInterfaceGenerated = true;
+  private JavaFile generateLocatorFile(ServiceModel model) {
+    String name = model.getName();
+    String serviceName = model.getQualifiedName();
+    ClassName interfaceClassName = ClassName.get(mPackageName, name);
+    String contextFieldName = "mContext";
+    String serviceFieldName = "mService";
+    String missingFieldName = "mMissing";
+    String referenceFieldName = "mReference";
+
+    TypeSpec locatorTypeSpec = TypeSpec.classBuilder(name + LOCATOR_SUFFIX)
+        .addOriginatingElement(model.getTypeElement())
+        .addJavadoc("Looks up the $N service and caches it until it changes.\n"
+            + "{@link #close()} has to be called when the locator isn't needed anymore.\n", name)
+        .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+        .addSuperinterface(ServiceListener.class)
+        .addField(FieldSpec.builder(String.class, "SERVICE_NAME")
+            .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+            .initializer("$S", serviceName)
+            .build())
+        .addField(FieldSpec.builder(String.class, "FILTER")
+            .addJavadoc("Selects the registrations the locator looks up and listens to.\n")
+            .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+            .initializer("$S", "(" + Constants.OBJECTCLASS + "=" + serviceName + ")")
+            .build())
+        .addField(FieldSpec.builder(int.class, "RANKING")
+            .addJavadoc("The service.ranking the generated activator registers the service with.\n")
+            .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+            .initializer("$L", model.getService().ranking())
+            .build())
+        .addField(FieldSpec.builder(BundleContext.class, contextFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+            .build())
+        .addField(FieldSpec.builder(interfaceClassName, serviceFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.VOLATILE)
+            .build())
+        .addField(FieldSpec.builder(boolean.class, missingFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.VOLATILE)
+            .build())
+        .addField(FieldSpec.builder(ServiceReference.class, referenceFieldName)
+            .addModifiers(Modifier.PRIVATE)
+            .build())
+        .addMethod(MethodSpec.constructorBuilder()
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(BundleContext.class, "context")
+            .addStatement("$N = context", contextFieldName)
+            .beginControlFlow("try")
+            .addStatement("context.addServiceListener(this, FILTER)")
+            .nextControlFlow("catch ($T e)", InvalidSyntaxException.class)
+            .addStatement("throw new $T(e)", IllegalStateException.class)
+            .endControlFlow()
+            .build())
+        .addMethod(MethodSpec.methodBuilder("get")
+            .addJavadoc("Returns the service or null if none is registered.\n")
+            .addModifiers(Modifier.PUBLIC)
+            .returns(interfaceClassName)
+            .addStatement("$T service = $N", interfaceClassName, serviceFieldName)
+            .addStatement("return service != null || $N ? service : lookUp()", missingFieldName)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("lookUp")
+            .addModifiers(Modifier.PRIVATE, Modifier.SYNCHRONIZED)
+            .returns(interfaceClassName)
+            .beginControlFlow("if ($N == null && !$N)", serviceFieldName, missingFieldName)
+            .addStatement("$T[] references", ServiceReference.class)
+            .beginControlFlow("try")
+            .addStatement("references = $N.getServiceReferences(SERVICE_NAME, FILTER)",
+                contextFieldName)
+            .nextControlFlow("catch ($T e)", InvalidSyntaxException.class)
+            .addStatement("throw new $T(e)", IllegalStateException.class)
+            .endControlFlow()
+            .addStatement("$T best = null", ServiceReference.class)
+            .beginControlFlow("if (references != null)")
+            .beginControlFlow("for ($T reference : references)", ServiceReference.class)
+            .beginControlFlow("if (best == null || ranksAbove(reference, best))")
+            .addStatement("best = reference")
+            .endControlFlow()
+            .endControlFlow()
+            .endControlFlow()
+            .addStatement("$T service = best != null ? $N.getService(best) : null", Object.class,
+                contextFieldName)
+            .beginControlFlow("if (service != null)")
+            .addStatement("$N = best", referenceFieldName)
+            .addStatement("$N = ($T) service", serviceFieldName, interfaceClassName)
+            .nextControlFlow("else")
+            .addCode("// Remembered until the next service event, so get() doesn't lock meanwhile\n")
+            .addStatement("$N = true", missingFieldName)
+            .endControlFlow()
+            .endControlFlow()
+            .addStatement("return $N", serviceFieldName)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("ranksAbove")
+            .addJavadoc("Orders registrations like the framework does: the highest service.ranking,\n"
+                + "then the lowest service.id.\n")
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+            .returns(boolean.class)
+            .addParameter(ServiceReference.class, "a")
+            .addParameter(ServiceReference.class, "b")
+            .addStatement("$T rankingA = a.getProperty($T.SERVICE_RANKING)", Object.class,
+                Constants.class)
+            .addStatement("$T rankingB = b.getProperty($T.SERVICE_RANKING)", Object.class,
+                Constants.class)
+            .addStatement("int rankA = rankingA instanceof $T ? ($T) rankingA : 0", Integer.class,
+                Integer.class)
+            .addStatement("int rankB = rankingB instanceof $T ? ($T) rankingB : 0", Integer.class,
+                Integer.class)
+            .beginControlFlow("if (rankA != rankB)")
+            .addStatement("return rankA > rankB")
+            .endControlFlow()
+            .addStatement("$T idA = a.getProperty($T.SERVICE_ID)", Object.class, Constants.class)
+            .addStatement("$T idB = b.getProperty($T.SERVICE_ID)", Object.class, Constants.class)
+            .addStatement("return idA instanceof $T && idB instanceof $T && ($T) idA < ($T) idB",
+                Long.class, Long.class, Long.class, Long.class)
+            .build())
+        .addMethod(MethodSpec.methodBuilder("serviceChanged")
+            .addJavadoc("Drops the cached service, a new or modified registration may rank higher.\n")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+            .addParameter(ServiceEvent.class, "event")
+            .beginControlFlow("if (event.getType() == $T.UNREGISTERING\n"
+                + "    && !event.getServiceReference().equals($N))", ServiceEvent.class,
+                referenceFieldName)
+            .addStatement("return")
+            .endControlFlow()
+            .addStatement("release()")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("close")
+            .addModifiers(Modifier.PUBLIC, Modifier.SYNCHRONIZED)
+            .addStatement("$N.removeServiceListener(this)", contextFieldName)
+            .addStatement("release()")
+            .build())
+        .addMethod(MethodSpec.methodBuilder("release")
+            .addModifiers(Modifier.PRIVATE)
+            .addStatement("$N = false", missingFieldName)
+            .beginControlFlow("if ($N != null)", referenceFieldName)
+            .addStatement("$N = null", serviceFieldName)
+            .addStatement("$N.ungetService($N)", contextFieldName, referenceFieldName)
+            .addStatement("$N = null", referenceFieldName)
+            .endControlFlow()
+            .build())
+        .build();
+
+    return JavaFile.builder(mPackageName, locatorTypeSpec).build();
+  }
 
-    }
+  /**
+   * Generates the asynchronous variant of a service interface, in which every method returns a
+   * {@link Future}, and a proxy that runs the calls of the blocking interface on an executor
+   */
+  private void generateAsyncService(final ServiceModel model) {
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        TypeSpec.Builder asyncInterface = TypeSpec.interfaceBuilder(model.getName() + ASYNC_SUFFIX)
+                .addOriginatingElement(model.getTypeElement())
+                .addModifiers(Modifier.PUBLIC);
+        for (ExportedMethod exportMethod : model.getMethods()) {
+          asyncInterface.addMethod(MethodSpec.methodBuilder(exportMethod.getName())
+                  .addModifiers(Modifier.PUBLIC, Modifier.ABSTRACT)
+                  .addParameters(exportMethod.getParameters())
+                  .returns(futureTypeOf(exportMethod))
+                  .build());
+        }
+        return JavaFile.builder(mPackageName, asyncInterface.build()).build();
+      }
+    });
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return generateAsyncProxy(model);
+      }
+    });
   }
 
+  /**
+   * @return the Future type an asynchronous method returns in place of the method's return type
+   */
+  private static TypeName futureTypeOf(ExportedMethod exportMethod) {
+    TypeName resultType = exportMethod.returnsVoid() ? ClassName.get(Void.class)
+        : exportMethod.getReturnType().box();
+    return ParameterizedTypeName.get(ClassName.get(Future.class), resultType);
+  }
 
-  private void generateSerivesProxy() throws ProcessingException {
-    for (Map.Entry<String,ArrayList<ExecutableElement>> entry : methodMap.entrySet()) {
-      String name = entry.getKey();
-      TypeElement serviceTypeElement = serviceMap.get(name);
-      TypeElement interfaceTypeElement = interfaceMap.get(name);
+  private JavaFile generateAsyncProxy(ServiceModel model) {
+    String name = model.getName();
+    String asyncName = name + ASYNC_SUFFIX;
+    String delegateFieldName = "m" + name;
+    String executorFieldName = "mExecutor";
+    ClassName interfaceClassName = ClassName.get(mPackageName, name);
 
-      ArrayList<ExecutableElement> exportMethods = entry.getValue();
+    TypeSpec.Builder asyncProxy = TypeSpec.classBuilder(asyncName + PROXY_SUFFIX)
+            .addOriginatingElement(model.getTypeElement())
+            .addSuperinterface(ClassName.get(mPackageName, asyncName))
+            .addModifiers(Modifier.PUBLIC)
+            .addField(interfaceClassName, delegateFieldName, Modifier.PRIVATE, Modifier.FINAL)
+            .addField(Executor.class, executorFieldName, Modifier.PRIVATE, Modifier.FINAL)
+            .addMethod(MethodSpec.constructorBuilder()
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(interfaceClassName, "delegate")
+                    .addParameter(Executor.class, "executor")
+                    .addStatement("this.$N = delegate", delegateFieldName)
+                    .addStatement("this.$N = executor", executorFieldName)
+                    .build());
+
+    for (ExportedMethod exportMethod : model.getMethods()) {
+      boolean returnsVoid = exportMethod.returnsVoid();
+      TypeName resultType = returnsVoid ? ClassName.get(Void.class) : exportMethod.getReturnType().box();
+      TypeName futureType = futureTypeOf(exportMethod);
+
+      MethodSpec.Builder asyncMethod = MethodSpec.methodBuilder(exportMethod.getName())
+              .addModifiers(Modifier.PUBLIC)
+              .returns(futureType);
+      Set<String> localNames = new HashSet<>();
+      CodeBlock.Builder arguments = CodeBlock.builder();
+      for (ParameterSpec parameter : exportMethod.getParameters()) {
+        asyncMethod.addParameter(parameter.type, parameter.name, Modifier.FINAL);
+        arguments.add(localNames.isEmpty() ? "$N" : ", $N", parameter.name);
+        localNames.add(parameter.name);
+      }
+      String taskName = NameUtils.uniqueName("task", localNames);
 
-      ArrayList<MethodSpec> proxyMethodSpecList = new ArrayList<>();
+      MethodSpec.Builder callMethod = MethodSpec.methodBuilder("call")
+              .addAnnotation(Override.class)
+              .addModifiers(Modifier.PUBLIC)
+              .returns(resultType);
+      if (returnsVoid) {
+        callMethod.addStatement("$N.$N($L)", delegateFieldName, exportMethod.getName(), arguments.build())
+                .addStatement("return null");
+      } else {
+        callMethod.addStatement("return $N.$N($L)", delegateFieldName, exportMethod.getName(),
+                arguments.build());
+      }
+      TypeSpec callable = TypeSpec.anonymousClassBuilder("")
+              .addSuperinterface(ParameterizedTypeName.get(ClassName.get(Callable.class), resultType))
+              .addMethod(callMethod.build())
+              .build();
 
-      for (ExecutableElement exportMethod : exportMethods) {
+      TypeName taskType = ParameterizedTypeName.get(ClassName.get(FutureTask.class), resultType);
+      asyncProxy.addMethod(asyncMethod
+              .addStatement("$T $N = new $T($L)", taskType, taskName, taskType, callable)
+              .addStatement("$N.execute($N)", executorFieldName, taskName)
+              .addStatement("return $N", taskName)
+              .build());
+    }
 
-        String methodName = exportMethod.getSimpleName().toString();
+    return JavaFile.builder(mPackageName, asyncProxy.build()).build();
+  }
 
-        List<? extends VariableElement> parameters = exportMethod.getParameters();
 
+  private void generateSerivesProxy(final ServiceModel model,
+      final TypeElement interfaceTypeElement) {
+    final TypeName interfaceType = TypeName.get(interfaceTypeElement.asType());
+    files.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return generateSerivesProxy(model, interfaceTypeElement, interfaceType);
+      }
+    });
+  }
 
-        ArrayList<ParameterSpec> paraSpecList = new ArrayList<>();
+  private JavaFile generateSerivesProxy(ServiceModel model, TypeElement interfaceTypeElement,
+      TypeName interfaceType) {
+    String name = model.getName();
+    Service service = model.getService();
+    List<ExportedMethod> exportMethods = model.getMethods();
+    ArrayList<MethodSpec> proxyMethodSpecList = new ArrayList<>();
+
+    boolean metrics = service.metrics();
+    boolean mailbox = service.mailboxCapacity() > 0;
+    Set<String> proxyMemberNames = new HashSet<>();
+    proxyMemberNames.add(STATS_FIELD);
+    proxyMemberNames.add(MAILBOX_FIELD);
+    proxyMemberNames.add(LOCK_FIELD);
+    proxyMemberNames.add(BULKHEAD_FIELD);
+    proxyMemberNames.add("m" + name);
+    for (ExportedMethod exportMethod : exportMethods) {
+      proxyMemberNames.add(exportMethod.getName());
+    }
+    ArrayList<FieldSpec> statsFieldSpecList = new ArrayList<>();
+    ArrayList<String> statsFieldNames = new ArrayList<>();
+    ArrayList<FieldSpec> cacheFieldSpecList = new ArrayList<>();
+    ArrayList<String> cacheFieldNames = new ArrayList<>();
+    ArrayList<MethodSpec> proxyHelperMethodSpecList = new ArrayList<>();
+    ArrayList<FieldSpec> bulkheadFieldSpecList = new ArrayList<>();
+    boolean serviceBulkheadUsed = false;
 
-        for (int i = 0; i < parameters.size(); i++) {
-          VariableElement parameter = parameters.get(i);
+    for (ExportedMethod exportMethod : exportMethods) {
 
-          String paraName = parameter.getSimpleName().toString();
-          TypeMirror paraTypeMirror = parameter.asType();
+      String methodName = exportMethod.getName();
 
-          ParameterSpec parameterSpec = ParameterSpec.builder(TypeName.get(paraTypeMirror),paraName).build();
-          paraSpecList.add(parameterSpec);
-        }
-//
+      List<ParameterSpec> paraSpecList = exportMethod.getParameters();
 
-        TypeMirror returnType = exportMethod.getReturnType();
-        String body = "return m" + name + "." + methodName +"(";
+      TypeName returnType = exportMethod.getReturnType();
+      String arguments = exportMethod.getArguments();
+      String call = "m" + name + "." + methodName + "(" + arguments + ")";
 
-        if (paraSpecList.size() == 0) {
-          body = "m" + name + "." + methodName +"()";
-        }else {
+      Export export = exportMethod.getExport();
+      String statsFieldName = null;
+      if (metrics) {
+        statsFieldName = NameUtils.uniqueName(
+            NameUtils.toConstantName(methodName) + "_STATS", proxyMemberNames);
+      }
 
-          for (int i = 0; i < paraSpecList.size(); i++) {
-            ParameterSpec parameterSpec = paraSpecList.get(i);
-            body= body + parameterSpec.name;
-            if (i < paraSpecList.size() -1) {
-              body = body +",";
-            }else {
-              body = body +")";
-            }
-          }
+      // Locks and bulkheads only guard the implementation, cache hits don't need them
+      String bulkheadFieldName = null;
+      if (export.maxConcurrent() > 0) {
+        bulkheadFieldName = NameUtils.uniqueName(methodName + "Bulkhead", proxyMemberNames);
+        bulkheadFieldSpecList.add(FieldSpec.builder(Semaphore.class, bulkheadFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+            .initializer("new $T($L)", Semaphore.class, export.maxConcurrent())
+            .build());
+      } else if (service.maxConcurrent() > 0) {
+        bulkheadFieldName = BULKHEAD_FIELD;
+        serviceBulkheadUsed = true;
+      }
+      if (bulkheadFieldName != null || service.concurrency() != Service.Concurrency.NONE) {
+        String guardedMethodName = NameUtils.uniqueName(methodName + "Guarded", proxyMemberNames);
+        proxyHelperMethodSpecList.add(generateGuardedCall(guardedMethodName, service,
+            exportMethod, call, bulkheadFieldName, statsFieldName));
+        call = guardedMethodName + "(" + arguments + ")";
+      }
 
+      if (export.cacheSize() > 0) {
+        // Memoize in a helper method, the exported method then calls the helper
+        String cacheFieldName = NameUtils.uniqueName(methodName + "Cache", proxyMemberNames);
+        String cachedMethodName = NameUtils.uniqueName(methodName + "Cached", proxyMemberNames);
+        TypeName boxedReturnType = returnType.box();
+        TypeName cacheType = ParameterizedTypeName.get(ClassName.get(MemoCache.class), boxedReturnType);
+        cacheFieldNames.add(cacheFieldName);
+        cacheFieldSpecList.add(FieldSpec.builder(cacheType, cacheFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+            .initializer("new $T($S, $L, $LL)", cacheType, exportMethod.getSignature(),
+                export.cacheSize(), export.cacheTtlMillis())
+            .build());
+        proxyHelperMethodSpecList.add(
+            generateCachedCall(cachedMethodName, exportMethod, call, cacheFieldName));
+        call = cachedMethodName + "(" + arguments + ")";
+      }
+
+      MethodSpec.Builder proxyMethodBuilder = MethodSpec.methodBuilder(methodName)
+              .addModifiers(Modifier.PUBLIC)
+              .addParameters(paraSpecList)
+              .returns(returnType);
+
+      MethodSpec.Builder bodyBuilder = proxyMethodBuilder;
+      if (mailbox && exportMethod.returnsVoid()) {
+        // The exported method only posts the call, a helper runs it on the consumer thread
+        String nowMethodName = NameUtils.uniqueName(methodName + "Now", proxyMemberNames);
+        bodyBuilder = MethodSpec.methodBuilder(nowMethodName)
+            .addModifiers(Modifier.PRIVATE)
+            .addParameters(paraSpecList)
+            .returns(TypeName.VOID);
+        proxyMethodBuilder = MethodSpec.methodBuilder(methodName)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(TypeName.VOID);
+        for (ParameterSpec parameterSpec : paraSpecList) {
+          proxyMethodBuilder.addParameter(parameterSpec.type, parameterSpec.name, Modifier.FINAL);
         }
+        proxyMethodBuilder.addStatement("$N.post($L)", MAILBOX_FIELD,
+            TypeSpec.anonymousClassBuilder("")
+                .addSuperinterface(Runnable.class)
+                .addMethod(MethodSpec.methodBuilder("run")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addStatement("$N($L)", nowMethodName, arguments)
+                    .build())
+                .build());
+      }
 
+      if (metrics) {
+        String policy = policyOf(service, exportMethod);
+        statsFieldNames.add(statsFieldName);
+        statsFieldSpecList.add(FieldSpec.builder(MethodStats.class, statsFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+            .initializer(policy == null ? CodeBlock.builder()
+                    .add("new $T($S)", MethodStats.class, exportMethod.getSignature()).build()
+                : CodeBlock.builder().add("new $T($S, $S)", MethodStats.class,
+                    exportMethod.getSignature(), policy).build())
+            .build());
+        addMeteredCall(bodyBuilder, exportMethod, call, statsFieldName);
+      } else if (exportMethod.returnsVoid()) {
+        bodyBuilder.addStatement("$L", call);
+      } else {
+        bodyBuilder.addStatement("return $L", call);
+      }
 
+      if (bodyBuilder != proxyMethodBuilder) {
+        proxyHelperMethodSpecList.add(bodyBuilder.build());
+      }
+      MethodSpec proxyMethodSpec = proxyMethodBuilder.build();
+
+      proxyMethodSpecList.add(proxyMethodSpec);
+    }
+
+    FieldSpec impFieldSpec = FieldSpec.builder(model.getTypeName(),"m" + name).addModifiers(Modifier.PRIVATE).build();
+    MethodSpec proxyCons = MethodSpec.constructorBuilder()
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(model.getTypeName(),name.toLowerCase())
+            .addStatement("this.$N = $N","m" + name,name.toLowerCase())
+            .build();
 
-        MethodSpec proxyMethodSpec = MethodSpec.methodBuilder(methodName)
-                .addModifiers(Modifier.PUBLIC)
-                .addStatement(body)
-                .addParameters(paraSpecList)
-                .returns(TypeName.get(returnType))
-                .build();
 
 
-        proxyMethodSpecList.add(proxyMethodSpec);
+    TypeSpec.Builder proxyTypeSpecBuilder = TypeSpec.classBuilder(name + PROXY_SUFFIX)
+            .addOriginatingElement(model.getTypeElement())
+            .addOriginatingElement(interfaceTypeElement)
+            .addSuperinterface(interfaceType)
+            .addAnnotation(AnnotationSpec.builder(Proxy.class)
+                    .addMember("name", "$S", name)
+                    .build())
+            .addMethods(proxyMethodSpecList)
+            .addModifiers(Modifier.PUBLIC)
+            .addField(impFieldSpec)
+            .addMethod(proxyCons);
+
+    if (metrics) {
+      CodeBlock.Builder statsArgs = CodeBlock.builder().add("$S", name);
+      for (String statsFieldName : statsFieldNames) {
+        statsArgs.add(", $N", statsFieldName);
       }
+      proxyTypeSpecBuilder.addFields(statsFieldSpecList)
+          .addField(FieldSpec.builder(ServiceStats.class, STATS_FIELD)
+              .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+              .initializer("new $T($L)", ServiceStats.class, statsArgs.build())
+              .build());
+    }
 
-      FieldSpec impFieldSpec = FieldSpec.builder(TypeName.get(serviceTypeElement.asType()),"m" + name).addModifiers(Modifier.PRIVATE).build();
-      MethodSpec proxyCons = MethodSpec.constructorBuilder()
+    switch (service.concurrency()) {
+      case READ_WRITE:
+        proxyTypeSpecBuilder.addField(FieldSpec.builder(ReentrantReadWriteLock.class, LOCK_FIELD)
+            .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+            .initializer("new $T()", ReentrantReadWriteLock.class)
+            .build());
+        break;
+      case STRIPED:
+        proxyTypeSpecBuilder.addField(FieldSpec.builder(StripedLock.class, LOCK_FIELD)
+            .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+            .initializer("new $T($L)", StripedLock.class, service.stripes())
+            .build());
+        break;
+      default:
+        break;
+    }
+    if (serviceBulkheadUsed) {
+      proxyTypeSpecBuilder.addField(FieldSpec.builder(Semaphore.class, BULKHEAD_FIELD)
+          .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+          .initializer("new $T($L)", Semaphore.class, service.maxConcurrent())
+          .build());
+    }
+    proxyTypeSpecBuilder.addFields(bulkheadFieldSpecList);
+
+    if (!cacheFieldNames.isEmpty()) {
+      TypeName cacheListType = ParameterizedTypeName.get(ClassName.get(List.class),
+          ParameterizedTypeName.get(ClassName.get(MemoCache.class), WildcardTypeName.subtypeOf(Object.class)));
+      CodeBlock.Builder caches = CodeBlock.builder();
+      for (int i = 0; i < cacheFieldNames.size(); i++) {
+        caches.add(i == 0 ? "$N" : ", $N", cacheFieldNames.get(i));
+      }
+      proxyTypeSpecBuilder.addSuperinterface(CachingProxy.class)
+          .addFields(cacheFieldSpecList)
+          .addMethod(MethodSpec.methodBuilder("getCaches")
+              .addAnnotation(Override.class)
               .addModifiers(Modifier.PUBLIC)
-              .addParameter(TypeName.get(serviceTypeElement.asType()),name.toLowerCase())
-              .addStatement("this.$N = $N","m" + name,name.toLowerCase())
-              .build();
+              .returns(cacheListType)
+              .addStatement("return $T.<$T<?>>asList($L)", Arrays.class, MemoCache.class,
+                  caches.build())
+              .build());
+    }
+    if (mailbox) {
+      proxyTypeSpecBuilder.addSuperinterface(MailboxProxy.class)
+          .addField(FieldSpec.builder(Mailbox.class, MAILBOX_FIELD)
+              .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+              .initializer("new $T($S, $L, $T.$L)", Mailbox.class, name,
+                  service.mailboxCapacity(), Service.Overflow.class, service.overflow().name())
+              .build())
+          .addMethod(MethodSpec.methodBuilder("flush")
+              .addAnnotation(Override.class)
+              .addModifiers(Modifier.PUBLIC)
+              .addException(InterruptedException.class)
+              .addStatement("$N.flush()", MAILBOX_FIELD)
+              .build())
+          .addMethod(MethodSpec.methodBuilder("shutdown")
+              .addAnnotation(Override.class)
+              .addModifiers(Modifier.PUBLIC)
+              .addStatement("$N.shutdown()", MAILBOX_FIELD)
+              .build())
+          .addMethod(MethodSpec.methodBuilder("getMailbox")
+              .addAnnotation(Override.class)
+              .addModifiers(Modifier.PUBLIC)
+              .returns(Mailbox.class)
+              .addStatement("return $N", MAILBOX_FIELD)
+              .build());
+    }
+    proxyTypeSpecBuilder.addMethods(proxyHelperMethodSpecList);
 
+    TypeSpec proxyTypeSpec = proxyTypeSpecBuilder.build();
 
+    return JavaFile.builder(mPackageName, proxyTypeSpec).build();
+  }
 
-      TypeSpec proxyTypeSpec = TypeSpec.classBuilder(name + PROXY_SUFFIX)
-              .addSuperinterface(TypeName.get(interfaceTypeElement.asType()))
-              .addAnnotation(AnnotationSpec.builder(Proxy.class)
-                      .addMember("name", "$S", name)
-                      .build())
-              .addMethods(proxyMethodSpecList)
-              .addModifiers(Modifier.PUBLIC)
-              .addField(impFieldSpec)
-              .addMethod(proxyCons)
-              .build();
+  /**
+   * Describes the locking and bulkhead policy of a method for its {@link MethodStats}
+   *
+   * @return the description or null if calls are passed through unguarded
+   */
+  private static String policyOf(Service service, ExportedMethod exportMethod) {
+    Export export = exportMethod.getExport();
+    ArrayList<String> parts = new ArrayList<>();
+    switch (service.concurrency()) {
+      case READ_WRITE:
+        parts.add(export.readOnly() ? "read-lock" : "write-lock");
+        break;
+      case STRIPED:
+        parts.add(export.stripeKey().isEmpty() ? "all-stripes"
+            : "striped(" + export.stripeKey() + ")");
+        break;
+      default:
+        break;
+    }
+    if (export.maxConcurrent() > 0) {
+      parts.add("bulkhead(" + export.maxConcurrent() + ")");
+    } else if (service.maxConcurrent() > 0) {
+      parts.add("shared-bulkhead(" + service.maxConcurrent() + ")");
+    }
+    return parts.isEmpty() ? null : StringUtils.join(parts, ", ");
+  }
 
-      // Write file
-      try {
-        JavaFile.builder(mPackageName, proxyTypeSpec).build().writeTo(filer);
-      } catch (IOException e) {
-        e.printStackTrace();
+  /**
+   * Generates the helper that enters the bulkhead and takes the lock the service's
+   * {@link Service.Concurrency} policy asks for before calling the service implementation
+   */
+  private MethodSpec generateGuardedCall(String guardedMethodName, Service service,
+      ExportedMethod exportMethod, String call, String bulkheadFieldName,
+      String statsFieldName) {
+    MethodSpec.Builder guardedMethod = MethodSpec.methodBuilder(guardedMethodName)
+        .addModifiers(Modifier.PRIVATE)
+        .returns(exportMethod.getReturnType());
+    Set<String> localNames = new HashSet<>();
+    for (ParameterSpec parameter : exportMethod.getParameters()) {
+      localNames.add(parameter.name);
+      guardedMethod.addParameter(parameter);
+    }
+    String lockName = NameUtils.uniqueName("lock", localNames);
+    String waitStartName = NameUtils.uniqueName("waitStart", localNames);
+
+    if (bulkheadFieldName != null) {
+      guardedMethod.beginControlFlow("if (!$N.tryAcquire())", bulkheadFieldName);
+      if (statsFieldName != null) {
+        guardedMethod.addStatement("$N.recordRejected()", statsFieldName);
       }
+      guardedMethod.addStatement("throw new $T($S)", RejectedExecutionException.class,
+              "Too many concurrent calls of " + exportMethod.getSignature())
+          .endControlFlow()
+          .beginControlFlow("try");
+    }
+
+    Export export = exportMethod.getExport();
+    CodeBlock lock = null;
+    switch (service.concurrency()) {
+      case READ_WRITE:
+        lock = CodeBlock.builder().add(export.readOnly() ? "$N.readLock()" : "$N.writeLock()",
+            LOCK_FIELD).build();
+        break;
+      case STRIPED:
+        String stripeKey = exportMethod.getStripeKey();
+        if (stripeKey != null) {
+          lock = CodeBlock.builder().add("$N.forKey($N)", LOCK_FIELD, stripeKey).build();
+        }
+        break;
+      default:
+        break;
+    }
+    boolean allStripes = service.concurrency() == Service.Concurrency.STRIPED && lock == null;
+    boolean locked = lock != null || allStripes;
 
+    if (locked) {
+      if (statsFieldName != null) {
+        guardedMethod.addStatement("long $N = $T.nanoTime()", waitStartName, System.class);
+      }
+      if (allStripes) {
+        guardedMethod.addStatement("$N.lockAll()", LOCK_FIELD);
+      } else {
+        guardedMethod.addStatement("$T $N = $L", Lock.class, lockName, lock)
+            .addStatement("$N.lock()", lockName);
+      }
+      if (statsFieldName != null) {
+        guardedMethod.addStatement("$N.recordWait($T.nanoTime() - $N)", statsFieldName,
+            System.class, waitStartName);
+      }
+      guardedMethod.beginControlFlow("try");
+    }
+    if (exportMethod.returnsVoid()) {
+      guardedMethod.addStatement("$L", call);
+    } else {
+      guardedMethod.addStatement("return $L", call);
+    }
+    if (locked) {
+      guardedMethod.nextControlFlow("finally");
+      if (allStripes) {
+        guardedMethod.addStatement("$N.unlockAll()", LOCK_FIELD);
+      } else {
+        guardedMethod.addStatement("$N.unlock()", lockName);
+      }
+      guardedMethod.endControlFlow();
+    }
+    if (bulkheadFieldName != null) {
+      guardedMethod.nextControlFlow("finally")
+          .addStatement("$N.release()", bulkheadFieldName)
+          .endControlFlow();
+    }
+    return guardedMethod.build();
+  }
+
+  /**
+   * Adds a call to the service implementation that is timed and recorded in the given
+   * {@link MethodStats} field, whether it returns normally or not
+   */
+  private void addMeteredCall(MethodSpec.Builder proxyMethod, ExportedMethod exportMethod,
+      String call, String statsFieldName) {
+    Set<String> localNames = new HashSet<>();
+    for (ParameterSpec parameter : exportMethod.getParameters()) {
+      localNames.add(parameter.name);
+    }
+    String startName = NameUtils.uniqueName("startNanos", localNames);
+    String failedName = NameUtils.uniqueName("failed", localNames);
+    String resultName = NameUtils.uniqueName("result", localNames);
+
+    proxyMethod.addStatement("long $N = $T.nanoTime()", startName, System.class)
+        .addStatement("boolean $N = true", failedName)
+        .beginControlFlow("try");
+    if (exportMethod.returnsVoid()) {
+      proxyMethod.addStatement("$L", call)
+          .addStatement("$N = false", failedName);
+    } else {
+      proxyMethod.addStatement("$T $N = $L", exportMethod.getReturnType(), resultName, call)
+          .addStatement("$N = false", failedName)
+          .addStatement("return $N", resultName);
     }
+    proxyMethod.nextControlFlow("finally")
+        .addStatement("$N.record($T.nanoTime() - $N, $N)", statsFieldName, System.class,
+            startName, failedName)
+        .endControlFlow();
   }
+
+  /**
+   * Generates the helper that looks the arguments up in the method's {@link MemoCache} and only
+   * calls the service implementation on a miss
+   */
+  private MethodSpec generateCachedCall(String cachedMethodName, ExportedMethod exportMethod,
+      String call, String cacheFieldName) {
+    TypeName returnType = exportMethod.getReturnType();
+    TypeName boxedReturnType = returnType.box();
+    MethodSpec.Builder cachedMethod = MethodSpec.methodBuilder(cachedMethodName)
+        .addModifiers(Modifier.PRIVATE)
+        .returns(returnType);
+
+    Set<String> localNames = new HashSet<>();
+    for (ParameterSpec parameter : exportMethod.getParameters()) {
+      localNames.add(parameter.name);
+      cachedMethod.addParameter(parameter.type, parameter.name, Modifier.FINAL);
+    }
+    String keyName = NameUtils.uniqueName("key", localNames);
+    String cachedName = NameUtils.uniqueName("cached", localNames);
+
+    CodeBlock packedKey = packedCacheKey(exportMethod.getParameters());
+    if (packedKey != null) {
+      cachedMethod.addStatement("long $N = $L", keyName, packedKey);
+    } else if (exportMethod.getParameters().size() == 1) {
+      cachedMethod.addStatement("$T $N = $N", Object.class, keyName,
+          exportMethod.getParameters().get(0).name);
+    } else {
+      CodeBlock.Builder keyArguments = CodeBlock.builder();
+      for (ParameterSpec parameter : exportMethod.getParameters()) {
+        keyArguments.add(keyArguments.build().isEmpty() ? "$N" : ", $N", parameter.name);
+      }
+      cachedMethod.addStatement("$T $N = $T.key($L)", Object.class, keyName, MemoCache.class,
+          keyArguments.build());
+    }
+
+    TypeSpec loader = TypeSpec.anonymousClassBuilder("")
+        .addSuperinterface(ParameterizedTypeName.get(ClassName.get(MemoCache.Loader.class),
+            boxedReturnType))
+        .addMethod(MethodSpec.methodBuilder("load")
+            .addAnnotation(Override.class)
+            .addModifiers(Modifier.PUBLIC)
+            .returns(boxedReturnType)
+            .addStatement("return $L", call)
+            .build())
+        .build();
+
+    return cachedMethod.addStatement("$T $N = $N.get($N)", Object.class, cachedName, cacheFieldName,
+            keyName)
+        .beginControlFlow("if ($N != $T.MISS)", cachedName, MemoCache.class)
+        .addStatement("return ($T) $N", boxedReturnType, cachedName)
+        .endControlFlow()
+        .addStatement("return $N.load($N, $L)", cacheFieldName, keyName, loader)
+        .build();
+  }
+
+  /**
+   * Packs primitive arguments into a single long cache key, so that looking them up doesn't box.
+   *
+   * @return the key expression or null if the arguments don't fit into 64 bits
+   */
+  private static CodeBlock packedCacheKey(List<ParameterSpec> parameters) {
+    CodeBlock key = CodeBlock.builder().add("0L").build();
+    int usedBits = 0;
+    for (ParameterSpec parameter : parameters) {
+      String paraName = parameter.name;
+      TypeName type = parameter.type;
+      int bits;
+      CodeBlock part;
+      if (type.equals(TypeName.BOOLEAN)) {
+        bits = 1;
+        part = CodeBlock.builder().add("($N ? 1L : 0L)", paraName).build();
+      } else if (type.equals(TypeName.BYTE)) {
+        bits = 8;
+        part = CodeBlock.builder().add("($N & 0xFFL)", paraName).build();
+      } else if (type.equals(TypeName.SHORT)) {
+        bits = 16;
+        part = CodeBlock.builder().add("($N & 0xFFFFL)", paraName).build();
+      } else if (type.equals(TypeName.CHAR)) {
+        bits = 16;
+        part = CodeBlock.builder().add("(long) $N", paraName).build();
+      } else if (type.equals(TypeName.INT)) {
+        bits = 32;
+        part = CodeBlock.builder().add("($N & 0xFFFFFFFFL)", paraName).build();
+      } else if (type.equals(TypeName.FLOAT)) {
+        bits = 32;
+        part = CodeBlock.builder()
+            .add("($T.floatToRawIntBits($N) & 0xFFFFFFFFL)", Float.class, paraName)
+            .build();
+      } else if (type.equals(TypeName.LONG)) {
+        bits = 64;
+        part = CodeBlock.builder().add("$N", paraName).build();
+      } else if (type.equals(TypeName.DOUBLE)) {
+        bits = 64;
+        part = CodeBlock.builder().add("$T.doubleToRawLongBits($N)", Double.class, paraName).build();
+      } else {
+        return null;
+      }
+      usedBits += bits;
+      if (usedBits > 64) {
+        return null;
+      }
+      key = usedBits == bits ? part
+          : CodeBlock.builder().add("($L << $L) | $L", key, bits, part).build();
+    }
+    return key;
+  }
+
   /**
    * Prints an error message
    *
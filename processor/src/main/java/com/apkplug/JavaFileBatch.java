@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.squareup.javapoet.JavaFile;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.tools.JavaFileObject;
+
+/**
+ * Collects the builders of the files a round generates, builds and renders them on all cores and
+ * writes the results in the order the builders have been added, so that the output doesn't depend
+ * on the scheduling. Builders must only use JavaPoet and what has been read from the elements
+ * before, the compiler's element and type utilities are not thread-safe. Only the {@link Filer} is
+ * used on the processor thread.
+ * <p>
+ * The threads are started by the first round that has more than one file and are kept until
+ * {@link #shutdown()}.
+ */
+public class JavaFileBatch {
+
+  private final boolean parallel;
+  private final ProcessorReport report;
+  private final List<Callable<JavaFile>> builders = new ArrayList<Callable<JavaFile>>();
+  private ExecutorService executor;
+
+  /**
+   * @param parallel false to build the files one after another on the calling thread
+   * @param report gets every file that has been written
+   */
+  public JavaFileBatch(boolean parallel, ProcessorReport report) {
+    this.parallel = parallel;
+    this.report = report;
+  }
+
+  public void add(Callable<JavaFile> builder) {
+    builders.add(builder);
+  }
+
+  /**
+   * Adds a file that has been built on the processor thread already
+   */
+  public void add(final JavaFile file) {
+    builders.add(new Callable<JavaFile>() {
+      @Override public JavaFile call() {
+        return file;
+      }
+    });
+  }
+
+  /**
+   * Drops the builders that haven't been run yet
+   */
+  public void clear() {
+    builders.clear();
+  }
+
+  /**
+   * Stops the threads, called once processing is over. A later {@link #writeTo(Filer)} starts new
+   * ones.
+   */
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Builds and writes all files added since the last call
+   *
+   * @throws ProcessingException if a builder has failed with one
+   */
+  public void writeTo(Filer filer) throws ProcessingException, IOException {
+    List<Callable<JavaFile>> pending = new ArrayList<Callable<JavaFile>>(builders);
+    builders.clear();
+    if (!parallel || pending.size() < 2) {
+      for (Callable<JavaFile> builder : pending) {
+        write(new Renderer(builder).call(), filer);
+      }
+      return;
+    }
+
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+          new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "apkplug-processor");
+              // Never keep the compiler alive
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+    List<Future<RenderedFile>> files = new ArrayList<Future<RenderedFile>>(pending.size());
+    try {
+      for (Callable<JavaFile> builder : pending) {
+        files.add(executor.submit(new Renderer(builder)));
+      }
+      for (Future<RenderedFile> file : files) {
+        write(await(file), filer);
+      }
+    } finally {
+      // Don't leave work of a failed round running
+      for (Future<RenderedFile> file : files) {
+        file.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Writes a rendered file the way {@link JavaFile#writeTo(Filer)} does, without rendering it again
+   */
+  private void write(RenderedFile rendered, Filer filer) throws IOException {
+    JavaFile file = rendered.file;
+    String fileName = file.packageName.isEmpty()
+        ? file.typeSpec.name : file.packageName + "." + file.typeSpec.name;
+    List<Element> originatingElements = file.typeSpec.originatingElements;
+    JavaFileObject sourceFile = filer.createSourceFile(fileName,
+        originatingElements.toArray(new Element[originatingElements.size()]));
+    try {
+      Writer writer = sourceFile.openWriter();
+      try {
+        writer.write(rendered.source);
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      sourceFile.delete();
+      throw e;
+    }
+    report.fileWritten(file, rendered.source);
+  }
+
+  private static RenderedFile await(Future<RenderedFile> file) throws ProcessingException {
+    try {
+      return file.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessingException(null, "Interrupted while generating code");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ProcessingException) {
+        throw (ProcessingException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Builds a file and renders its source, the expensive part of writing it
+   */
+  private static final class Renderer implements Callable<RenderedFile> {
+    private final Callable<JavaFile> builder;
+
+    Renderer(Callable<JavaFile> builder) {
+      this.builder = builder;
+    }
+
+    @Override public RenderedFile call() throws ProcessingException {
+      JavaFile file;
+      try {
+        file = builder.call();
+      } catch (ProcessingException e) {
+        throw e;
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+      return new RenderedFile(file, file.toString());
+    }
+  }
+
+  private static final class RenderedFile {
+    final JavaFile file;
+    final String source;
+
+    RenderedFile(JavaFile file, String source) {
+      this.file = file;
+      this.source = source;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import java.util.Set;
+
+/**
+ * Helpers to derive java identifiers for generated members
+ */
+public final class NameUtils {
+
+  private NameUtils() {
+  }
+
+  /**
+   * Turns an arbitrary name into an upper case java identifier
+   */
+  public static String toConstantName(String id) {
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < id.length(); i++) {
+      char c = id.charAt(i);
+      if (!Character.isJavaIdentifierPart(c)) {
+        name.append('_');
+        continue;
+      }
+      if (i > 0 && Character.isUpperCase(c)) {
+        char previous = id.charAt(i - 1);
+        if (Character.isLowerCase(previous) || Character.isDigit(previous)) {
+          name.append('_');
+        }
+      }
+      name.append(Character.toUpperCase(c));
+    }
+    if (!Character.isJavaIdentifierStart(name.charAt(0))) {
+      name.insert(0, '_');
+    }
+    return name.toString();
+  }
+
+  /**
+   * Returns the given name, or the name with a number appended if it has been used already, and
+   * marks the result as used
+   */
+  public static String uniqueName(String name, Set<String> usedNames) {
+    String unique = name;
+    for (int i = 2; !usedNames.add(unique); i++) {
+      unique = name + i;
+    }
+    return unique;
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.lang.model.element.Modifier;
+
+/**
+ * Records where the processor spends its time and what it writes, see
+ * {@link FactoryProcessor#OPTION_REPORT}. The report lists the time of every round and of every
+ * annotation type, the number of validated elements, the files with their sizes and the methods
+ * and fields every generated class declares. The counts are estimates of what ends up in the dex
+ * file: implicit constructors and static initializers are counted, anonymous classes are not.
+ * A disabled report records nothing.
+ */
+public class ProcessorReport {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final List<String> rounds = new ArrayList<String>();
+  private final Map<String, long[]> annotations = new LinkedHashMap<String, long[]>();
+  private final List<String> files = new ArrayList<String>();
+  private final List<String> classes = new ArrayList<String>();
+  private int elementsValidated;
+  private long totalMethods;
+  private long totalFields;
+
+  private int round;
+  private int roundRootElements;
+  private long roundStart;
+  private long roundWriteNanos;
+  private int roundFiles;
+  private long roundBytes;
+
+  /**
+   * @param file where the report is written to or null to disable it
+   */
+  public ProcessorReport(File file) {
+    this.file = file;
+  }
+
+  public boolean isEnabled() {
+    return file != null;
+  }
+
+  public void roundStarted(int rootElements) {
+    if (!isEnabled()) {
+      return;
+    }
+    round++;
+    roundRootElements = rootElements;
+    roundStart = System.nanoTime();
+    roundWriteNanos = 0;
+    roundFiles = 0;
+    roundBytes = 0;
+  }
+
+  public void roundFinished() {
+    if (!isEnabled()) {
+      return;
+    }
+    rounds.add("{\"round\": " + round
+        + ", \"rootElements\": " + roundRootElements
+        + ", \"millis\": " + millis(System.nanoTime() - roundStart)
+        + ", \"writeMillis\": " + millis(roundWriteNanos)
+        + ", \"files\": " + roundFiles
+        + ", \"bytes\": " + roundBytes + "}");
+  }
+
+  /**
+   * Adds the time spent on the elements annotated with the given annotation
+   *
+   * @param startNanos the {@link System#nanoTime()} taken before the elements were processed
+   */
+  public void annotationProcessed(Class<?> annotation, int elements, long startNanos) {
+    if (!isEnabled()) {
+      return;
+    }
+    long[] total = annotations.get(annotation.getSimpleName());
+    if (total == null) {
+      total = new long[2];
+      annotations.put(annotation.getSimpleName(), total);
+    }
+    total[0] += elements;
+    total[1] += System.nanoTime() - startNanos;
+  }
+
+  public void elementsValidated(int count) {
+    elementsValidated += count;
+  }
+
+  /**
+   * Adds the time spent on building and writing the files of the round
+   */
+  public void filesWritten(long startNanos) {
+    if (isEnabled()) {
+      roundWriteNanos += System.nanoTime() - startNanos;
+    }
+  }
+
+  /**
+   * @param source what has been written, only its UTF-8 size is recorded
+   */
+  public void fileWritten(JavaFile javaFile, CharSequence source) {
+    if (!isEnabled()) {
+      return;
+    }
+    ByteCounter counter = new ByteCounter();
+    counter.append(source);
+    String name = javaFile.packageName.isEmpty()
+        ? javaFile.typeSpec.name : javaFile.packageName + "." + javaFile.typeSpec.name;
+    addFile(name.replace('.', '/') + ".java", counter.bytes);
+    addClass(name, javaFile.typeSpec);
+  }
+
+  public void resourceWritten(String name, long bytes) {
+    if (isEnabled()) {
+      addFile(name, bytes);
+    }
+  }
+
+  private void addFile(String name, long bytes) {
+    roundFiles++;
+    roundBytes += bytes;
+    files.add("{\"name\": \"" + escape(name) + "\", \"round\": " + round
+        + ", \"bytes\": " + bytes + "}");
+  }
+
+  /**
+   * Adds a class and its nested classes with an estimate of the methods and fields they declare
+   */
+  private void addClass(String name, TypeSpec type) {
+    int methods = type.methodSpecs.size();
+    int fields = type.fieldSpecs.size();
+    if (type.kind == TypeSpec.Kind.CLASS || type.kind == TypeSpec.Kind.ENUM) {
+      boolean hasConstructor = false;
+      for (MethodSpec method : type.methodSpecs) {
+        hasConstructor |= method.isConstructor();
+      }
+      if (!hasConstructor) {
+        methods++;
+      }
+    }
+    if (type.kind == TypeSpec.Kind.ENUM) {
+      // values(), valueOf() and the $VALUES array
+      methods += 2;
+      fields += type.enumConstants.size() + 1;
+    }
+    if (needsStaticInitializer(type)) {
+      methods++;
+    }
+    totalMethods += methods;
+    totalFields += fields;
+    classes.add("{\"name\": \"" + escape(name) + "\", \"methods\": " + methods
+        + ", \"fields\": " + fields + "}");
+    for (TypeSpec nested : type.typeSpecs) {
+      addClass(name + "$" + nested.name, nested);
+    }
+  }
+
+  private static boolean needsStaticInitializer(TypeSpec type) {
+    if (!type.staticBlock.isEmpty() || type.kind == TypeSpec.Kind.ENUM) {
+      return true;
+    }
+    for (FieldSpec field : type.fieldSpecs) {
+      boolean isStatic = field.hasModifier(Modifier.STATIC) || type.kind == TypeSpec.Kind.INTERFACE;
+      boolean isConstant = field.hasModifier(Modifier.FINAL)
+          && (field.type.isPrimitive() || field.type.equals(TypeName.get(String.class)));
+      if (isStatic && !isConstant && !field.initializer.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes the report and starts over for the next compilation
+   */
+  public void write() throws IOException {
+    if (!isEnabled()) {
+      return;
+    }
+    StringBuilder json = new StringBuilder()
+        .append("{\n  \"processor\": \"").append(FactoryProcessor.class.getName())
+        .append("\",\n  \"elementsValidated\": ").append(elementsValidated)
+        .append(",\n  \"rounds\": ");
+    appendArray(json, rounds);
+    json.append(",\n  \"annotations\": {");
+    boolean first = true;
+    for (Map.Entry<String, long[]> entry : annotations.entrySet()) {
+      json.append(first ? "\n    \"" : ",\n    \"").append(entry.getKey())
+          .append("\": {\"elements\": ").append(entry.getValue()[0])
+          .append(", \"millis\": ").append(millis(entry.getValue()[1])).append('}');
+      first = false;
+    }
+    json.append(annotations.isEmpty() ? "}" : "\n  }")
+        .append(",\n  \"files\": ");
+    appendArray(json, files);
+    json.append(",\n  \"classes\": ");
+    appendArray(json, classes);
+    json.append(",\n  \"totalMethods\": ").append(totalMethods)
+        .append(",\n  \"totalFields\": ").append(totalFields)
+        .append("\n}\n");
+
+    reset();
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Can't create " + parent);
+    }
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+    try {
+      writer.write(json.toString());
+    } finally {
+      writer.close();
+    }
+  }
+
+  private void reset() {
+    rounds.clear();
+    annotations.clear();
+    files.clear();
+    classes.clear();
+    elementsValidated = 0;
+    totalMethods = 0;
+    totalFields = 0;
+    round = 0;
+  }
+
+  private static void appendArray(StringBuilder json, List<String> items) {
+    json.append('[');
+    for (int i = 0; i < items.size(); i++) {
+      json.append(i == 0 ? "\n    " : ",\n    ").append(items.get(i));
+    }
+    json.append(items.isEmpty() ? "]" : "\n  ]");
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /**
+   * Counts the UTF-8 bytes of the appended characters, the way the
+   * {@link javax.annotation.processing.Filer} writes the source files
+   */
+  private static final class ByteCounter implements Appendable {
+    long bytes;
+
+    @Override public Appendable append(CharSequence csq) {
+      return append(csq, 0, csq.length());
+    }
+
+    @Override public Appendable append(CharSequence csq, int start, int end) {
+      for (int i = start; i < end; i++) {
+        append(csq.charAt(i));
+      }
+      return this;
+    }
+
+    @Override public Appendable append(char c) {
+      if (c < 0x80) {
+        bytes++;
+      } else if (c < 0x800 || Character.isSurrogate(c)) {
+        // A surrogate pair takes 4 bytes
+        bytes += 2;
+      } else {
+        bytes += 3;
+      }
+      return this;
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.apkplug.runtime.RemoteClient;
+import com.apkplug.runtime.RemoteCodec;
+import com.apkplug.runtime.RemoteOutput;
+import com.apkplug.runtime.RemoteServer;
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Modifier;
+
+/**
+ * Generates the client and the server stub of a service annotated with
+ * {@code @Service(remote = true)}. Both encode the arguments and results with
+ * {@link RemoteOutput} and {@link RemoteCodec}: primitives unboxed, ByteBuffers without copies.
+ * Methods are identified by {@link ExportedMethod#getMethodId()}.
+ */
+public class RemoteStubs {
+
+  public static final String CLIENT_SUFFIX = "RemoteClient";
+  public static final String SERVER_SUFFIX = "RemoteServer";
+
+  private static final TypeName STRING = ClassName.get(String.class);
+  private static final TypeName BYTES = ArrayTypeName.of(TypeName.BYTE);
+  private static final TypeName BUFFER = ClassName.get(ByteBuffer.class);
+
+  /**
+   * The methods of {@link RemoteOutput} that write a type
+   */
+  private static final Map<TypeName, String> WRITERS = new HashMap<TypeName, String>();
+
+  /**
+   * The methods that read a type back, of {@link ByteBuffer} itself or of {@link RemoteCodec}
+   */
+  private static final Map<TypeName, String> READERS = new HashMap<TypeName, String>();
+
+  static {
+    addCodec(TypeName.BOOLEAN, "putBoolean", "readBoolean");
+    addCodec(TypeName.BYTE, "putByte", "get");
+    addCodec(TypeName.SHORT, "putShort", "getShort");
+    addCodec(TypeName.CHAR, "putChar", "getChar");
+    addCodec(TypeName.INT, "putInt", "getInt");
+    addCodec(TypeName.LONG, "putLong", "getLong");
+    addCodec(TypeName.FLOAT, "putFloat", "getFloat");
+    addCodec(TypeName.DOUBLE, "putDouble", "getDouble");
+    addCodec(STRING, "putString", "readString");
+    addCodec(BYTES, "putBytes", "readBytes");
+    addCodec(BUFFER, "putBuffer", "readBuffer");
+  }
+
+  private static void addCodec(TypeName type, String writer, String reader) {
+    WRITERS.put(type, writer);
+    READERS.put(type, reader);
+  }
+
+  /**
+   * Reads a value of the given type from the given buffer
+   */
+  private static CodeBlock read(TypeName type, String in) {
+    String reader = READERS.get(type);
+    if (reader.startsWith("read")) {
+      return CodeBlock.builder().add("$T.$N($N)", RemoteCodec.class, reader, in).build();
+    }
+    return CodeBlock.builder().add("$N.$N()", in, reader).build();
+  }
+
+  private RemoteStubs() {
+  }
+
+  /**
+   * @return true if the stubs can send values of the given type
+   */
+  public static boolean canEncode(TypeName type) {
+    return WRITERS.containsKey(type);
+  }
+
+  /**
+   * Generates the client stub, it implements the service interface and sends every call through a
+   * {@link RemoteClient}
+   */
+  public static JavaFile generateClient(ServiceModel model, String packageName) {
+    ClassName interfaceClassName = ClassName.get(packageName, model.getName());
+    String clientFieldName = "mClient";
+    TypeSpec.Builder client = TypeSpec.classBuilder(model.getName() + CLIENT_SUFFIX)
+        .addOriginatingElement(model.getTypeElement())
+        .addJavadoc("Calls the $N service in another process.\n", model.getName())
+        .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+        .addSuperinterface(interfaceClassName)
+        .addField(FieldSpec.builder(RemoteClient.class, clientFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+            .build())
+        .addMethod(MethodSpec.constructorBuilder()
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(RemoteClient.class, "client")
+            .addStatement("$N = client", clientFieldName)
+            .build());
+
+    for (ExportedMethod method : model.getMethods()) {
+      String constant = model.getMethodIdConstant(method);
+      client.addField(FieldSpec.builder(int.class, constant)
+          .addModifiers(Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+          .initializer("$L", method.getMethodId())
+          .build());
+
+      MethodSpec.Builder methodSpec = MethodSpec.methodBuilder(method.getName())
+          .addAnnotation(Override.class)
+          .addModifiers(Modifier.PUBLIC)
+          .returns(method.getReturnType())
+          .addParameters(method.getParameters());
+      Set<String> localNames = new HashSet<String>();
+      for (ParameterSpec parameter : method.getParameters()) {
+        localNames.add(parameter.name);
+      }
+      String in = NameUtils.uniqueName("in", localNames);
+      String arguments = "null";
+      if (!method.getParameters().isEmpty()) {
+        arguments = NameUtils.uniqueName("out", localNames);
+        methodSpec.addStatement("$T $N = new $T()", RemoteOutput.class, arguments,
+            RemoteOutput.class);
+        for (ParameterSpec parameter : method.getParameters()) {
+          methodSpec.addStatement("$N.$N($N)", arguments, WRITERS.get(parameter.type),
+              parameter.name);
+        }
+      }
+      if (method.returnsVoid()) {
+        methodSpec.addStatement("$N.call($N, $N)", clientFieldName, constant, arguments);
+      } else {
+        methodSpec.addStatement("$T $N = $N.call($N, $N)", ByteBuffer.class, in, clientFieldName,
+            constant, arguments)
+            .addStatement("return $L", read(method.getReturnType(), in));
+      }
+      client.addMethod(methodSpec.build());
+    }
+    return JavaFile.builder(packageName, client.build()).build();
+  }
+
+  /**
+   * Generates the server stub, it decodes the calls received by a {@link RemoteServer} and runs
+   * them on the service
+   */
+  public static JavaFile generateServer(ServiceModel model, String packageName) {
+    ClassName interfaceClassName = ClassName.get(packageName, model.getName());
+    ClassName clientClassName = ClassName.get(packageName, model.getName() + CLIENT_SUFFIX);
+    String serviceFieldName = "mService";
+
+    MethodSpec.Builder invoke = MethodSpec.methodBuilder("invoke")
+        .addAnnotation(Override.class)
+        .addModifiers(Modifier.PUBLIC)
+        .addParameter(int.class, "methodId")
+        .addParameter(ByteBuffer.class, "in")
+        .addParameter(RemoteOutput.class, "out")
+        .beginControlFlow("switch (methodId)");
+    for (ExportedMethod method : model.getMethods()) {
+      invoke.addCode("case $T.$N: {\n$>", clientClassName, model.getMethodIdConstant(method));
+      // Arguments are read in order into locals, the call itself must not reorder them
+      StringBuilder arguments = new StringBuilder();
+      for (int i = 0; i < method.getParameters().size(); i++) {
+        TypeName type = method.getParameters().get(i).type;
+        invoke.addStatement("$T arg$L = $L", type, i, read(type, "in"));
+        arguments.append(i == 0 ? "arg" : ", arg").append(i);
+      }
+      if (method.returnsVoid()) {
+        invoke.addStatement("$N.$N($L)", serviceFieldName, method.getName(), arguments);
+      } else {
+        invoke.addStatement("out.$N($N.$N($L))", WRITERS.get(method.getReturnType()),
+            serviceFieldName, method.getName(), arguments);
+      }
+      invoke.addStatement("return")
+          .addCode("$<}\n");
+    }
+    invoke.addCode("default:\n$>")
+        .addStatement("throw new $T($S + methodId)", IllegalArgumentException.class,
+            "Unknown method id: ")
+        .addCode("$<")
+        .endControlFlow();
+
+    TypeSpec server = TypeSpec.classBuilder(model.getName() + SERVER_SUFFIX)
+        .addOriginatingElement(model.getTypeElement())
+        .addJavadoc("Runs the calls a $T sends on the $N service.\n", clientClassName,
+            model.getName())
+        .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+        .addSuperinterface(RemoteServer.Skeleton.class)
+        .addField(FieldSpec.builder(interfaceClassName, serviceFieldName)
+            .addModifiers(Modifier.PRIVATE, Modifier.FINAL)
+            .build())
+        .addMethod(MethodSpec.constructorBuilder()
+            .addModifiers(Modifier.PUBLIC)
+            .addParameter(interfaceClassName, "service")
+            .addStatement("$N = service", serviceFieldName)
+            .build())
+        .addMethod(invoke.build())
+        .build();
+    return JavaFile.builder(packageName, server).build();
+  }
+}
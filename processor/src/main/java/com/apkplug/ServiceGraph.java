@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The dependencies between the services of a bundle as declared by {@link Provided}. The services
+ * are sorted into waves: a service is in the wave after the last wave one of its dependencies is
+ * in, so all services of a wave can be started in parallel once the earlier waves are started.
+ */
+public class ServiceGraph {
+
+  private final Map<String, ServiceModel> services = new LinkedHashMap<String, ServiceModel>();
+
+  /**
+   * @param services the services of the bundle, the order of the services within a wave
+   */
+  public ServiceGraph(List<ServiceModel> services) {
+    for (ServiceModel service : services) {
+      this.services.put(service.getQualifiedName(), service);
+    }
+  }
+
+  /**
+   * @return true if at least one service depends on another one
+   */
+  public boolean hasDependencies() {
+    for (ServiceModel service : services.values()) {
+      if (!service.getDependencies().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sorts the services into waves
+   *
+   * @throws ProcessingException if a dependency is not a service of this bundle or the
+   * dependencies form a cycle
+   */
+  public List<List<ServiceModel>> waves() throws ProcessingException {
+    for (ServiceModel service : services.values()) {
+      for (String dependency : service.getDependencies()) {
+        if (!services.containsKey(dependency)) {
+          throw new ProcessingException(service.getTypeElement(),
+              "The class %s depends on %s with @%s but %s is not a service of this bundle",
+              service.getQualifiedName(), dependency, Provided.class.getSimpleName(), dependency);
+        }
+      }
+    }
+
+    Map<String, Integer> waveOf = new HashMap<String, Integer>();
+    List<List<ServiceModel>> waves = new ArrayList<List<ServiceModel>>();
+    for (ServiceModel service : services.values()) {
+      int wave = waveOf(service, waveOf, new ArrayList<String>());
+      while (waves.size() <= wave) {
+        waves.add(new ArrayList<ServiceModel>());
+      }
+    }
+    // Fill the waves in the order of the services, not in the order they have been visited
+    for (ServiceModel service : services.values()) {
+      waves.get(waveOf.get(service.getQualifiedName())).add(service);
+    }
+    return waves;
+  }
+
+  /**
+   * Computes the wave of a service and of all the services it depends on
+   *
+   * @param path the services that are being visited and depend on the given service
+   */
+  private int waveOf(ServiceModel service, Map<String, Integer> waveOf, List<String> path)
+      throws ProcessingException {
+    String name = service.getQualifiedName();
+    Integer known = waveOf.get(name);
+    if (known != null) {
+      return known;
+    }
+    int index = path.indexOf(name);
+    if (index >= 0) {
+      StringBuilder cycle = new StringBuilder();
+      for (String dependency : path.subList(index, path.size())) {
+        cycle.append(dependency).append(" -> ");
+      }
+      cycle.append(name);
+      throw new ProcessingException(service.getTypeElement(),
+          "Cycle in the services declared with @%s: %s", Provided.class.getSimpleName(), cycle);
+    }
+
+    path.add(name);
+    int wave = 0;
+    for (String dependency : service.getDependencies()) {
+      wave = Math.max(wave, waveOf(services.get(dependency), waveOf, path) + 1);
+    }
+    path.remove(path.size() - 1);
+    waveOf.put(name, wave);
+    return wave;
+  }
+}
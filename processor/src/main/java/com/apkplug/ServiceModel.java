@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypesException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+
+import static javax.lang.model.util.ElementFilter.methodsIn;
+
+/**
+ * Holds the information about a class annotated with @Service and its @Export methods. It is
+ * built and validated once, in the round the class is found, and all later rounds generate the
+ * proxy and the activator from it without analyzing the class again.
+ */
+public class ServiceModel {
+
+  private final TypeElement typeElement;
+  private final Service service;
+  private final String name;
+  private final ClassName className;
+  private final TypeName typeName;
+  private final String qualifiedName;
+  private final String binaryName;
+  private final List<ExportedMethod> methods;
+  private final List<String> dependencies;
+
+  /**
+   * @throws ProcessingException if the annotation values or the exported methods are not valid
+   */
+  public ServiceModel(TypeElement classElement, Elements elementUtils)
+      throws ProcessingException {
+    typeElement = classElement;
+    service = classElement.getAnnotation(Service.class);
+    name = service.name();
+    className = ClassName.get(classElement);
+    typeName = TypeName.get(classElement.asType());
+    qualifiedName = classElement.getQualifiedName().toString();
+    binaryName = elementUtils.getBinaryName(classElement).toString();
+
+    if (service.mailboxCapacity() < 0) {
+      throw new ProcessingException(classElement,
+              "mailboxCapacity() of @%s must not be negative", Service.class.getSimpleName());
+    }
+    if (service.stripes() <= 0) {
+      throw new ProcessingException(classElement,
+              "stripes() of @%s must be positive", Service.class.getSimpleName());
+    }
+    if (service.maxConcurrent() < 0) {
+      throw new ProcessingException(classElement,
+              "maxConcurrent() of @%s must not be negative", Service.class.getSimpleName());
+    }
+
+    List<? extends Element> enclosedElements = classElement.getEnclosedElements();
+    List<ExecutableElement> executableElements = methodsIn(enclosedElements);
+    if (enclosedElements.size() == 0){
+      throw new ProcessingException(classElement, "no methods be annotated with @%s",
+              Export.class.getSimpleName());
+    }
+
+    List<ExportedMethod> exportMethods = new ArrayList<ExportedMethod>();
+
+    for (ExecutableElement executableElement : executableElements) {
+      if (executableElement.getAnnotation(Export.class) !=null) {
+        if (executableElement.getKind() != ElementKind.METHOD){
+          throw new ProcessingException(classElement, "Only methods can be annotated with @%s",
+                  Export.class.getSimpleName());
+        }
+        if (executableElement.getAnnotation(Export.class).warmUp()
+            && !executableElement.getParameters().isEmpty()) {
+          throw new ProcessingException(executableElement,
+              "Only methods without parameters can be warm-up calls of @%s",
+              Export.class.getSimpleName());
+        }
+        Export export = executableElement.getAnnotation(Export.class);
+        if (export.cacheSize() < 0 || export.cacheTtlMillis() < 0) {
+          throw new ProcessingException(executableElement,
+              "cacheSize() and cacheTtlMillis() of @%s must not be negative",
+              Export.class.getSimpleName());
+        }
+        if (export.cacheSize() == 0 && export.cacheTtlMillis() > 0) {
+          throw new ProcessingException(executableElement,
+              "cacheTtlMillis() of @%s requires a cacheSize()",
+              Export.class.getSimpleName());
+        }
+        if (export.cacheSize() > 0
+            && executableElement.getReturnType().getKind() == TypeKind.VOID) {
+          throw new ProcessingException(executableElement,
+              "Only methods with a return value can be cached with @%s",
+              Export.class.getSimpleName());
+        }
+        if (export.cacheSize() > 0) {
+          for (VariableElement parameter : executableElement.getParameters()) {
+            // Arrays compare by identity and callers may mutate them after the call, so they
+            // can't be part of a cache key
+            if (parameter.asType().getKind() == TypeKind.ARRAY) {
+              throw new ProcessingException(parameter,
+                  "Methods with array parameters can't be cached with @%s",
+                  Export.class.getSimpleName());
+            }
+          }
+        }
+        ExportedMethod exportedMethod = new ExportedMethod(executableElement);
+        checkConcurrencyPolicy(executableElement, exportedMethod);
+        exportMethods.add(exportedMethod);
+      }
+    }
+    if (exportMethods.size() ==0) {
+      throw new ProcessingException(classElement, "no methods be annotated with @%s",
+              Export.class.getSimpleName());
+    }
+    checkMethodIds(classElement, exportMethods);
+    if (service.remote()) {
+      for (ExportedMethod exportedMethod : exportMethods) {
+        checkRemoteTypes(classElement, exportedMethod);
+      }
+    }
+    methods = Collections.unmodifiableList(exportMethods);
+    dependencies = Collections.unmodifiableList(readDependencies(classElement, elementUtils));
+  }
+
+  /**
+   * Reads the services declared by {@link Provided}, the dependencies must be @Service classes
+   */
+  private static List<String> readDependencies(TypeElement classElement, Elements elementUtils)
+      throws ProcessingException {
+    Provided provided = classElement.getAnnotation(Provided.class);
+    if (provided == null) {
+      return new ArrayList<String>();
+    }
+
+    List<TypeElement> dependencyElements = new ArrayList<TypeElement>();
+    try {
+      // Only works for classes that are already compiled
+      for (Class<?> clazz : provided.value()) {
+        dependencyElements.add(elementUtils.getTypeElement(clazz.getCanonicalName()));
+      }
+    } catch (MirroredTypesException mte) {
+      for (TypeMirror typeMirror : mte.getTypeMirrors()) {
+        if (typeMirror.getKind() != TypeKind.DECLARED) {
+          throw new ProcessingException(classElement, "@%s only accepts classes annotated with @%s",
+              Provided.class.getSimpleName(), Service.class.getSimpleName());
+        }
+        dependencyElements.add((TypeElement) ((DeclaredType) typeMirror).asElement());
+      }
+    }
+
+    Set<String> dependencies = new LinkedHashSet<String>();
+    for (TypeElement dependency : dependencyElements) {
+      if (dependency == null || dependency.getAnnotation(Service.class) == null) {
+        throw new ProcessingException(classElement,
+            "The class %s depends on %s with @%s but only classes annotated with @%s can be provided",
+            classElement.getQualifiedName().toString(),
+            dependency == null ? "an unknown class" : dependency.getQualifiedName().toString(),
+            Provided.class.getSimpleName(), Service.class.getSimpleName());
+      }
+      dependencies.add(dependency.getQualifiedName().toString());
+    }
+    return new ArrayList<String>(dependencies);
+  }
+
+  /**
+   * Remote calls and dynamic invocations identify a method by its id, two methods of a service
+   * must not share one
+   */
+  private static void checkMethodIds(TypeElement classElement, List<ExportedMethod> methods)
+      throws ProcessingException {
+    Map<Integer, ExportedMethod> methodIds = new HashMap<Integer, ExportedMethod>();
+    for (ExportedMethod method : methods) {
+      ExportedMethod existing = methodIds.put(method.getMethodId(), method);
+      if (existing != null) {
+        throw new ProcessingException(classElement,
+            "Conflict: The methods %s and %s of %s have the same method id %d, rename one of them",
+            existing.getSignature(), method.getSignature(),
+            classElement.getQualifiedName().toString(), method.getMethodId());
+      }
+    }
+  }
+
+  /**
+   * Checks that the remote stubs can encode the parameters and the return value of a method
+   */
+  private static void checkRemoteTypes(TypeElement classElement, ExportedMethod method)
+      throws ProcessingException {
+    List<TypeName> types = new ArrayList<TypeName>();
+    for (ParameterSpec parameter : method.getParameters()) {
+      types.add(parameter.type);
+    }
+    if (!method.returnsVoid()) {
+      types.add(method.getReturnType());
+    }
+    for (TypeName type : types) {
+      if (!RemoteStubs.canEncode(type)) {
+        throw new ProcessingException(classElement,
+            "The method %s of %s can not be called remotely with @%s(remote = true): %s is not a"
+                + " primitive, String, byte[] or ByteBuffer",
+            method.getSignature(), classElement.getQualifiedName().toString(),
+            Service.class.getSimpleName(), type);
+      }
+    }
+  }
+
+  /**
+   * Checks the concurrency attributes of an exported method against the policy of the service
+   */
+  private void checkConcurrencyPolicy(ExecutableElement exportMethod,
+      ExportedMethod exportedMethod) throws ProcessingException {
+    Export export = exportedMethod.getExport();
+    if (export.maxConcurrent() < 0) {
+      throw new ProcessingException(exportMethod, "maxConcurrent() of @%s must not be negative",
+          Export.class.getSimpleName());
+    }
+    if (export.readOnly() && service.concurrency() != Service.Concurrency.READ_WRITE) {
+      throw new ProcessingException(exportMethod,
+          "readOnly() of @%s requires @%s(concurrency = READ_WRITE)",
+          Export.class.getSimpleName(), Service.class.getSimpleName());
+    }
+    if (export.stripeKey().isEmpty()) {
+      return;
+    }
+    if (service.concurrency() != Service.Concurrency.STRIPED) {
+      throw new ProcessingException(exportMethod,
+          "stripeKey() of @%s requires @%s(concurrency = STRIPED)",
+          Export.class.getSimpleName(), Service.class.getSimpleName());
+    }
+    if (exportedMethod.getStripeKey() == null && exportedMethod.hasSyntheticParameterNames()) {
+      throw new ProcessingException(exportMethod, "stripeKey() of @%s names no parameter: %s. The"
+          + " parameter names of %s are read from a class file that doesn't contain them, compile"
+          + " it with -g", Export.class.getSimpleName(), export.stripeKey(), qualifiedName);
+    }
+    if (exportedMethod.getStripeKey() == null) {
+      throw new ProcessingException(exportMethod, "stripeKey() of @%s names no parameter: %s",
+          Export.class.getSimpleName(), export.stripeKey());
+    }
+  }
+
+  /**
+   * The name as specified in {@link Service#name()}, the generated interface is called like this
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The @Service annotation of the class
+   */
+  public Service getService() {
+    return service;
+  }
+
+  /**
+   * The service needs a {@code ServiceFactory} because it is created lazily or per bundle
+   */
+  public boolean isFactoryRegistered() {
+    return service.lazy() || service.scope() == Service.Scope.BUNDLE;
+  }
+
+  public ClassName getClassName() {
+    return className;
+  }
+
+  public TypeName getTypeName() {
+    return typeName;
+  }
+
+  public String getQualifiedName() {
+    return qualifiedName;
+  }
+
+  public String getBinaryName() {
+    return binaryName;
+  }
+
+  /**
+   * The methods annotated with @Export, in declaration order
+   */
+  public List<ExportedMethod> getMethods() {
+    return methods;
+  }
+
+  /**
+   * Name of the constant that holds the id of a method in the generated remote client stub and
+   * dispatcher, like METHOD_ADD. Overloaded methods get their id appended.
+   */
+  public String getMethodIdConstant(ExportedMethod method) {
+    String constant = "METHOD_" + NameUtils.toConstantName(method.getName());
+    if (isOverloaded(method)) {
+      return constant + "_" + Integer.toHexString(method.getMethodId()).toUpperCase();
+    }
+    return constant;
+  }
+
+  /**
+   * @return true if another exported method has the same name
+   */
+  public boolean isOverloaded(ExportedMethod method) {
+    for (ExportedMethod other : methods) {
+      if (other != method && other.getName().equals(method.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The qualified names of the @Service classes this service depends on, see {@link Provided}
+   */
+  public List<String> getDependencies() {
+    return dependencies;
+  }
+
+  /**
+   * The original element that was annotated with @Service
+   */
+  public TypeElement getTypeElement() {
+    return typeElement;
+  }
+}
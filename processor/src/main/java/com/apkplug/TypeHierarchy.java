@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+
+/**
+ * Answers whether a class is a subtype of a factory type. The supertypes of every class are taken
+ * from the compiler and memoized for the whole compilation, so that ancestors shared by many
+ * products are resolved only once. Superclasses, interfaces and interfaces implemented by
+ * superclasses or extended by other interfaces are all found. Classes are keyed by their
+ * qualified name, the compiler may create new elements for the same class in a later round.
+ */
+public class TypeHierarchy {
+
+  private final Types typeUtils;
+
+  /**
+   * The qualified names of all supertypes of a class, the class itself included
+   */
+  private final Map<String, Set<String>> supertypes = new HashMap<String, Set<String>>();
+
+  public TypeHierarchy(Types typeUtils) {
+    this.typeUtils = typeUtils;
+  }
+
+  /**
+   * @return true if the given class extends or implements the given type, type arguments are
+   * ignored
+   */
+  public boolean isSubtype(TypeElement classElement, TypeElement type) {
+    String typeName = type.getQualifiedName().toString();
+    // Products are looked at once, only the closures of their supertypes are worth keeping
+    for (TypeElement supertype : directSupertypes(classElement)) {
+      if (supertypesOf(supertype).contains(typeName)) {
+        return true;
+      }
+    }
+    // The memo only says yes, a no is left to the compiler
+    return typeUtils.isAssignable(typeUtils.erasure(classElement.asType()),
+        typeUtils.erasure(type.asType()));
+  }
+
+  /**
+   * Forgets everything, the next compilation may see other classes
+   */
+  public void clear() {
+    supertypes.clear();
+  }
+
+  private Set<String> supertypesOf(TypeElement classElement) {
+    String name = classElement.getQualifiedName().toString();
+    Set<String> closure = supertypes.get(name);
+    if (closure != null) {
+      return closure;
+    }
+    closure = new HashSet<String>();
+    closure.add(name);
+    for (TypeElement supertype : directSupertypes(classElement)) {
+      closure.addAll(supertypesOf(supertype));
+    }
+    closure = Collections.unmodifiableSet(closure);
+    supertypes.put(name, closure);
+    return closure;
+  }
+
+  private List<TypeElement> directSupertypes(TypeElement classElement) {
+    List<TypeElement> elements = new ArrayList<TypeElement>();
+    for (TypeMirror supertype : typeUtils.directSupertypes(classElement.asType())) {
+      if (supertype.getKind() != TypeKind.DECLARED) {
+        continue;
+      }
+      Element element = ((DeclaredType) supertype).asElement();
+      if (element instanceof TypeElement) {
+        elements.add((TypeElement) element);
+      }
+    }
+    return elements;
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.google.common.base.Joiner;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Test;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import static com.google.common.truth.Truth.assertAbout;
+import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Compile tests of the factories generated for {@code @Factory} classes
+ */
+public class FactoryProcessorTest {
+
+  private static final JavaFileObject FOOD = JavaFileObjects.forSourceString("test.Food",
+      "package test; public interface Food {}");
+
+  @Test public void chunkedFactoryKeepsTypedKeys() {
+    int products = FactoryGroupedClasses.CHUNK_SIZE + 2;
+    List<JavaFileObject> sources = products(products);
+    sources.add(JavaFileObjects.forSourceString("test.Client", Joiner.on('\n').join(
+        "package test;",
+        "public class Client {",
+        "  Meal byId(MealFactory factory) {",
+        "    return factory.create(MealFactory.Id.M" + (products - 1) + ");",
+        "  }",
+        "  Meal byIndex(MealFactory factory) {",
+        "    return factory.create(MealFactory.M0);",
+        "  }",
+        "  Meal byType(MealFactory factory) {",
+        "    return factory.create(M1.class);",
+        "  }",
+        "}")));
+
+    assertAbout(javaSources()).that(sources)
+        .processedWith(new FactoryProcessor())
+        .compilesWithoutError();
+  }
+
+  @Test public void idsWithTheSameConstantGetNumberedConstants() {
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+    sources.add(JavaFileObjects.forSourceString("test.Meal",
+        "package test; public interface Meal {}"));
+    sources.add(product("DishA", "dish-a"));
+    sources.add(product("DishB", "dish_a"));
+    sources.add(product("Ab", "a.b"));
+    sources.add(product("AB2", "a_b"));
+    sources.add(JavaFileObjects.forSourceString("test.Client", Joiner.on('\n').join(
+        "package test;",
+        "public class Client {",
+        "  Meal[] all(MealFactory factory) {",
+        "    return new Meal[] { factory.create(MealFactory.DISH_A), factory.create(MealFactory.DISH_A2),",
+        "        factory.create(MealFactory.Id.A_B), factory.create(MealFactory.Id.A_B2) };",
+        "  }",
+        "}")));
+
+    assertAbout(javaSources()).that(sources)
+        .processedWith(new FactoryProcessor())
+        .compilesWithoutError();
+  }
+
+  @Test public void factoryWithoutIdEnumWarns() {
+    assertAbout(javaSources()).that(products(FactoryGroupedClasses.ID_ENUM_LIMIT + 1))
+        .processedWith(new FactoryProcessor())
+        .compilesWithoutError()
+        .withWarningContaining("test.MealFactory has 2001 products, more than the 2000 an Id enum"
+            + " can hold. It only gets the int constants, create(Id) and the Id enum are not"
+            + " generated.");
+  }
+
+  @Test public void typedKeysRejectUnknownProducts() throws Exception {
+    // Plain and chunked lookups
+    for (int count : new int[] { 3, FactoryGroupedClasses.CHUNK_SIZE + 2 }) {
+      List<JavaFileObject> sources = products(count);
+      sources.add(JavaFileObjects.forSourceString("test.Other",
+          "package test; public class Other implements Meal {}"));
+      sources.add(JavaFileObjects.forSourceString("test.SubM0",
+          "package test; public class SubM0 extends M0 {}"));
+      GeneratedCode generated = GeneratedCode.compile(sources);
+      Class<?> factoryClass = generated.load("test.MealFactory");
+      Class<?> idClass = generated.load("test.MealFactory$Id");
+      // The generated factory is package-private
+      Constructor<?> constructor = factoryClass.getDeclaredConstructor();
+      constructor.setAccessible(true);
+      Object factory = constructor.newInstance();
+      Method createByIndex = factoryClass.getMethod("create", int.class);
+      Method createById = factoryClass.getMethod("create", idClass);
+      Method createByType = factoryClass.getMethod("create", Class.class);
+      AccessibleObject.setAccessible(
+          new AccessibleObject[] { createByIndex, createById, createByType }, true);
+
+      assertEquals("test.M1", createByIndex.invoke(factory, 1).getClass().getName());
+      assertEquals("test.M1", createById.invoke(factory, idClass.getEnumConstants()[1])
+          .getClass().getName());
+      assertEquals("test.M1", createByType.invoke(factory, generated.load("test.M1"))
+          .getClass().getName());
+
+      assertUnknown("Unknown id = " + count, createByIndex, factory, count);
+      assertUnknown("Unknown id = -1", createByIndex, factory, -1);
+      assertUnknown("id is null!", createById, factory, new Object[] { null });
+      assertUnknown("Unknown type = test.Other", createByType, factory,
+          generated.load("test.Other"));
+      // Only the annotated class itself is a product, not its subclasses
+      assertUnknown("Unknown type = test.SubM0", createByType, factory,
+          generated.load("test.SubM0"));
+    }
+  }
+
+  @Test public void productsMayImplementTheTypeIndirectly() {
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+    sources.add(JavaFileObjects.forSourceString("test.Meal",
+        "package test; public interface Meal {}"));
+    sources.add(JavaFileObjects.forSourceString("test.Soup",
+        "package test; public interface Soup extends Meal {}"));
+    sources.add(JavaFileObjects.forSourceString("test.BaseMeal",
+        "package test; public abstract class BaseMeal implements Meal {}"));
+    sources.add(JavaFileObjects.forSourceString("test.Stew",
+        "package test; public abstract class Stew extends BaseMeal {}"));
+    // Through the superclass of the superclass
+    sources.add(JavaFileObjects.forSourceString("test.IrishStew", Joiner.on('\n').join(
+        "package test;",
+        "@com.apkplug.Factory(type = Meal.class, id = \"irish-stew\")",
+        "public class IrishStew extends Stew {}")));
+    // Through a sub-interface
+    sources.add(JavaFileObjects.forSourceString("test.Minestrone", Joiner.on('\n').join(
+        "package test;",
+        "@com.apkplug.Factory(type = Meal.class, id = \"minestrone\")",
+        "public class Minestrone implements Soup {}")));
+
+    assertAbout(javaSources()).that(sources)
+        .processedWith(new FactoryProcessor())
+        .compilesWithoutError();
+  }
+
+  @Test public void productThatDoesNotImplementTheTypeFails() {
+    JavaFileObject meal = JavaFileObjects.forSourceString("test.Meal",
+        "package test; public interface Meal {}");
+    JavaFileObject product = JavaFileObjects.forSourceString("test.Stone", Joiner.on('\n').join(
+        "package test;",
+        "@com.apkplug.Factory(type = Meal.class, id = \"stone\")",
+        "public class Stone {}"));
+
+    assertAbout(javaSources()).that(Arrays.asList(meal, product))
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("The class test.Stone annotated with @Factory must implement the"
+            + " interface test.Meal")
+        .in(product).onLine(3);
+  }
+
+  @Test public void pooledProductWithResetMethodCompiles() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Pizza", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Factory;",
+        "@Factory(type = Food.class, id = \"pizza\", scope = Factory.Scope.POOLED,",
+        "    reset = \"clear\")",
+        "public class Pizza implements Food {",
+        "  public void clear() {}",
+        "}"));
+
+    assertAbout(javaSources()).that(Arrays.asList(FOOD, source))
+        .processedWith(new FactoryProcessor())
+        .compilesWithoutError();
+  }
+
+  @Test public void resetMethodWithParametersFails() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Pizza", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Factory;",
+        "@Factory(type = Food.class, id = \"pizza\", scope = Factory.Scope.POOLED,",
+        "    reset = \"clear\")",
+        "public class Pizza implements Food {",
+        "  public void clear(int size) {}",
+        "}"));
+
+    assertAbout(javaSources()).that(Arrays.asList(FOOD, source))
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("must provide a public non-static method clear() without parameters")
+        .in(source).onLine(5);
+  }
+
+  @Test public void staticResetMethodFails() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Pizza", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Factory;",
+        "@Factory(type = Food.class, id = \"pizza\", scope = Factory.Scope.POOLED,",
+        "    reset = \"clear\")",
+        "public class Pizza implements Food {",
+        "  public static void clear() {}",
+        "}"));
+
+    assertAbout(javaSources()).that(Arrays.asList(FOOD, source))
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("must provide a public non-static method clear() without parameters");
+  }
+
+  @Test public void resetWithoutPooledScopeFails() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Pizza", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Factory;",
+        "@Factory(type = Food.class, id = \"pizza\", reset = \"clear\")",
+        "public class Pizza implements Food {",
+        "  public void clear() {}",
+        "}"));
+
+    assertAbout(javaSources()).that(Arrays.asList(FOOD, source))
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("is only allowed together with scope = POOLED");
+  }
+
+  private static void assertUnknown(String message, Method create, Object factory,
+      Object... arguments) throws Exception {
+    try {
+      create.invoke(factory, arguments);
+    } catch (InvocationTargetException e) {
+      assertEquals(IllegalArgumentException.class, e.getCause().getClass());
+      assertEquals(message, e.getCause().getMessage());
+      return;
+    }
+    fail(create + " should reject " + Arrays.toString(arguments));
+  }
+
+  private static JavaFileObject product(String className, String id) {
+    return JavaFileObjects.forSourceString("test." + className, Joiner.on('\n').join(
+        "package test;",
+        "@com.apkplug.Factory(type = Meal.class, id = \"" + id + "\")",
+        "public class " + className + " implements Meal {}"));
+  }
+
+  static List<JavaFileObject> products(int count) {
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+    sources.add(JavaFileObjects.forSourceString("test.Meal",
+        "package test; public interface Meal {}"));
+    for (int i = 0; i < count; i++) {
+      sources.add(JavaFileObjects.forSourceString("test.M" + i, Joiner.on('\n').join(
+          "package test;",
+          "@com.apkplug.Factory(type = Meal.class, id = \"m" + i + "\")",
+          "public class M" + i + " implements Meal {}")));
+    }
+    return sources;
+  }
+}
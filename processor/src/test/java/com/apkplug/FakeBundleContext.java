@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import android.content.Context;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory service registry for tests that start generated bundle activators and locators. Only
+ * the service methods are implemented, filters can only be a single {@code (key=value)}.
+ */
+final class FakeBundleContext implements BundleContext {
+
+  final List<Registration> registrations = new ArrayList<Registration>();
+  final List<String> filters = new ArrayList<String>();
+  final List<ServiceListener> listeners = new ArrayList<ServiceListener>();
+  private final Map<Registration, Object> factoryServices = new HashMap<Registration, Object>();
+  private long nextServiceId;
+
+  /**
+   * @return the names of the services that are registered right now
+   */
+  List<String> registeredNames() {
+    List<String> names = new ArrayList<String>();
+    for (Registration registration : registrations) {
+      names.addAll(Arrays.asList((String[]) registration.properties.get(Constants.OBJECTCLASS)));
+    }
+    return names;
+  }
+
+  @Override public ServiceRegistration registerService(String[] names, Object service,
+      Dictionary properties) {
+    Registration registration = new Registration(service);
+    if (properties != null) {
+      for (Enumeration<?> keys = properties.keys(); keys.hasMoreElements(); ) {
+        Object key = keys.nextElement();
+        registration.properties.put((String) key, properties.get(key));
+      }
+    }
+    registration.properties.put(Constants.OBJECTCLASS, names);
+    registration.properties.put(Constants.SERVICE_ID, nextServiceId++);
+    registrations.add(registration);
+    fire(ServiceEvent.REGISTERED, registration);
+    return registration;
+  }
+
+  @Override public ServiceRegistration registerService(String name, Object service,
+      Dictionary properties) {
+    return registerService(new String[] { name }, service, properties);
+  }
+
+  @Override public ServiceReference[] getServiceReferences(String name, String filter)
+      throws InvalidSyntaxException {
+    filters.add(filter);
+    List<ServiceReference> references = new ArrayList<ServiceReference>();
+    for (Registration registration : registrations) {
+      if ((name == null || registration.hasName(name)) && registration.matches(filter)) {
+        references.add(registration);
+      }
+    }
+    return references.isEmpty() ? null : references.toArray(new ServiceReference[0]);
+  }
+
+  @Override public ServiceReference getServiceReference(String name) {
+    for (Registration registration : registrations) {
+      if (registration.hasName(name)) {
+        return registration;
+      }
+    }
+    return null;
+  }
+
+  @Override public Object getService(ServiceReference reference) {
+    Registration registration = (Registration) reference;
+    if (!registrations.contains(registration)) {
+      return null;
+    }
+    if (!(registration.service instanceof ServiceFactory)) {
+      return registration.service;
+    }
+    Object service = factoryServices.get(registration);
+    if (service == null) {
+      service = ((ServiceFactory) registration.service).getService(null, registration);
+      factoryServices.put(registration, service);
+    }
+    return service;
+  }
+
+  @Override public boolean ungetService(ServiceReference reference) {
+    Registration registration = (Registration) reference;
+    Object service = factoryServices.remove(registration);
+    if (service != null) {
+      ((ServiceFactory) registration.service).ungetService(null, registration, service);
+    }
+    return registrations.contains(registration);
+  }
+
+  @Override public void addServiceListener(ServiceListener listener, String filter) {
+    filters.add(filter);
+    listeners.add(listener);
+  }
+
+  @Override public void addServiceListener(ServiceListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override public void removeServiceListener(ServiceListener listener) {
+    listeners.remove(listener);
+  }
+
+  private void fire(int type, Registration registration) {
+    for (ServiceListener listener : new ArrayList<ServiceListener>(listeners)) {
+      listener.serviceChanged(new ServiceEvent(type, registration));
+    }
+  }
+
+  final class Registration implements ServiceRegistration, ServiceReference {
+
+    final Object service;
+    final Map<String, Object> properties = new HashMap<String, Object>();
+
+    Registration(Object service) {
+      this.service = service;
+    }
+
+    boolean hasName(String name) {
+      return Arrays.asList((String[]) properties.get(Constants.OBJECTCLASS)).contains(name);
+    }
+
+    boolean matches(String filter) throws InvalidSyntaxException {
+      if (filter == null) {
+        return true;
+      }
+      int equals = filter.indexOf('=');
+      if (!filter.startsWith("(") || !filter.endsWith(")") || equals < 0) {
+        throw new InvalidSyntaxException("Only (key=value) is supported", filter);
+      }
+      String key = filter.substring(1, equals);
+      String value = filter.substring(equals + 1, filter.length() - 1);
+      Object property = properties.get(key);
+      return property instanceof String[] ? Arrays.asList((String[]) property).contains(value)
+          : property != null && String.valueOf(property).equals(value);
+    }
+
+    @Override public ServiceReference getReference() {
+      return this;
+    }
+
+    @Override public void setProperties(Dictionary properties) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void unregister() {
+      if (!registrations.contains(this)) {
+        throw new IllegalStateException("Service already unregistered");
+      }
+      fire(ServiceEvent.UNREGISTERING, this);
+      registrations.remove(this);
+    }
+
+    @Override public Object getProperty(String key) {
+      return properties.get(key);
+    }
+
+    @Override public String[] getPropertyKeys() {
+      return properties.keySet().toArray(new String[0]);
+    }
+
+    @Override public Bundle getBundle() {
+      return null;
+    }
+
+    @Override public Bundle[] getUsingBundles() {
+      return null;
+    }
+  }
+
+  @Override public String getProperty(String key) {
+    return null;
+  }
+
+  @Override public Bundle getBundle() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public Bundle installBundle(String location) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public Bundle installBundle(String location, InputStream input) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public Bundle getBundle(long id) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public Bundle[] getBundles() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public void addBundleListener(BundleListener listener) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public void removeBundleListener(BundleListener listener) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public void addFrameworkListener(FrameworkListener listener) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public void removeFrameworkListener(FrameworkListener listener) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public File getDataFile(String name) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public Filter createFilter(String filter) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public Context getBundleContext() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override public Context getAndroidContext() {
+    throw new UnsupportedOperationException();
+  }
+}
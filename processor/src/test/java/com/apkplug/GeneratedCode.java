@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs the processor with javac into a temporary directory, for tests that load and call the
+ * generated classes or read the generated files
+ */
+final class GeneratedCode {
+
+  final File directory;
+  final ClassLoader classLoader;
+  final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+
+  private GeneratedCode(File directory, List<Diagnostic<? extends JavaFileObject>> diagnostics)
+      throws IOException {
+    this.directory = directory;
+    this.diagnostics = diagnostics;
+    this.classLoader = new URLClassLoader(new URL[] { directory.toURI().toURL() },
+        GeneratedCode.class.getClassLoader());
+  }
+
+  /**
+   * Compiles the sources with the processor
+   */
+  static GeneratedCode compile(List<JavaFileObject> sources, String... options)
+      throws IOException {
+    return run(sources, Collections.<String>emptyList(), null, true, options);
+  }
+
+  /**
+   * Compiles the sources without the processor and then runs the processor on the classes from
+   * their class files, like Gradle does for unchanged classes of an aggregating processor
+   *
+   * @param classNames the classes to process again
+   * @param javacOptions the options of the first compilation, e.g. "-g"
+   */
+  static GeneratedCode compileFromClassFiles(List<JavaFileObject> sources,
+      List<String> classNames, String... javacOptions) throws IOException {
+    File classes = run(sources, Collections.<String>emptyList(), null, false, javacOptions)
+        .directory;
+    return run(Collections.<JavaFileObject>emptyList(), classNames, classes, true);
+  }
+
+  private static GeneratedCode run(List<JavaFileObject> sources, List<String> classNames,
+      File classPath, boolean process, String... options) throws IOException {
+    File directory = Files.createTempDirectory("apkplug").toFile();
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<JavaFileObject>();
+    StandardJavaFileManager fileManager =
+        compiler.getStandardFileManager(collector, null, StandardCharsets.UTF_8);
+    fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(directory));
+    fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(directory));
+
+    List<String> arguments = new ArrayList<String>(Arrays.asList(options));
+    arguments.add("-classpath");
+    arguments.add(System.getProperty("java.class.path")
+        + (classPath == null ? "" : File.pathSeparator + classPath));
+    if (!process) {
+      arguments.add("-proc:none");
+    }
+    JavaCompiler.CompilationTask task =
+        compiler.getTask(null, fileManager, collector, arguments, classNames, sources);
+    if (process) {
+      task.setProcessors(Collections.singleton(new FactoryProcessor()));
+    }
+    boolean success = task.call();
+    fileManager.close();
+    if (!success) {
+      throw new AssertionError("Compilation failed: " + collector.getDiagnostics());
+    }
+    return new GeneratedCode(directory, collector.getDiagnostics());
+  }
+
+  /**
+   * @return the content of a generated file, e.g. "test/SimpleBundle.java"
+   */
+  String read(String path) throws IOException {
+    return new String(Files.readAllBytes(new File(directory, path).toPath()),
+        StandardCharsets.UTF_8);
+  }
+
+  Class<?> load(String className) throws ClassNotFoundException {
+    return classLoader.loadClass(className);
+  }
+}
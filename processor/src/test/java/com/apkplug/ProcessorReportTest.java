@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.apkplug.runtime.BundleIndex;
+import com.google.common.base.Joiner;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.tools.JavaFileObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the report written with {@link FactoryProcessor#OPTION_REPORT}
+ */
+public class ProcessorReportTest {
+
+  @Test public void reportIsJsonAndListsEveryWrittenFile() throws Exception {
+    List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+    sources.add(JavaFileObjects.forSourceString("test.Meal",
+        "package test; public interface Meal {}"));
+    for (String name : Arrays.asList("Pizza", "Pasta")) {
+      sources.add(JavaFileObjects.forSourceString("test." + name, Joiner.on('\n').join(
+          "package test;",
+          "@com.apkplug.Factory(type = Meal.class, id = \"" + name.toLowerCase() + "\")",
+          "public class " + name + " implements Meal {}")));
+    }
+    sources.add(JavaFileObjects.forSourceString("test.Kitchen", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"KitchenService\")",
+        "public class Kitchen {",
+        "  @Export public String cook(String meal) { return meal; }",
+        "}")));
+    File reportFile = new File(Files.createTempDirectory("apkplug-report").toFile(), "report.json");
+
+    GeneratedCode generated = GeneratedCode.compile(sources,
+        "-A" + FactoryProcessor.OPTION_REPORT + "=" + reportFile.getPath());
+
+    Map<?, ?> report = (Map<?, ?>) new JsonReader(new String(
+        Files.readAllBytes(reportFile.toPath()), StandardCharsets.UTF_8)).readDocument();
+    assertEquals(FactoryProcessor.class.getName(), report.get("processor"));
+    Map<String, Long> reported = new TreeMap<String, Long>();
+    for (Object file : (List<?>) report.get("files")) {
+      Map<?, ?> entry = (Map<?, ?>) file;
+      Long previous = reported.put((String) entry.get("name"),
+          ((Number) entry.get("bytes")).longValue());
+      assertEquals("Reported twice: " + entry.get("name"), null, previous);
+    }
+    Map<String, Long> written = new TreeMap<String, Long>();
+    listWrittenFiles(generated.directory, "", written);
+    assertTrue(written.toString(), written.containsKey("test/MealFactory.java"));
+    assertTrue(written.toString(), written.containsKey("test/KitchenService.java"));
+    assertTrue(written.toString(), written.containsKey(BundleIndex.DIRECTORY + "test.index"));
+    assertEquals(written, reported);
+    List<String> classes = new ArrayList<String>();
+    for (Object type : (List<?>) report.get("classes")) {
+      classes.add((String) ((Map<?, ?>) type).get("name"));
+    }
+    for (String file : written.keySet()) {
+      if (file.endsWith(".java")) {
+        String className = file.substring(0, file.length() - ".java".length()).replace('/', '.');
+        assertTrue(className + " in " + classes, classes.contains(className));
+      }
+    }
+  }
+
+  /**
+   * Adds the generated sources and resources with their sizes, the compiled classes are not
+   * written by the processor
+   */
+  private static void listWrittenFiles(File directory, String path, Map<String, Long> files) {
+    for (File file : directory.listFiles()) {
+      if (file.isDirectory()) {
+        listWrittenFiles(file, path + file.getName() + "/", files);
+      } else if (!file.getName().endsWith(".class")) {
+        files.put(path + file.getName(), file.length());
+      }
+    }
+  }
+
+  /**
+   * Reads the JSON the report consists of and fails on anything else, like trailing commas or
+   * unescaped characters in strings
+   */
+  private static final class JsonReader {
+    private final String json;
+    private int position;
+
+    JsonReader(String json) {
+      this.json = json;
+    }
+
+    Object readDocument() throws IOException {
+      Object value = readValue();
+      skipWhitespace();
+      if (position != json.length()) {
+        throw syntaxError("Content after the document");
+      }
+      return value;
+    }
+
+    private Object readValue() throws IOException {
+      skipWhitespace();
+      if (position == json.length()) {
+        throw syntaxError("Missing value");
+      }
+      char c = json.charAt(position);
+      if (c == '{') {
+        return readObject();
+      } else if (c == '[') {
+        return readArray();
+      } else if (c == '"') {
+        return readString();
+      } else if (json.startsWith("true", position)) {
+        position += 4;
+        return Boolean.TRUE;
+      } else if (json.startsWith("false", position)) {
+        position += 5;
+        return Boolean.FALSE;
+      } else if (json.startsWith("null", position)) {
+        position += 4;
+        return null;
+      }
+      return readNumber();
+    }
+
+    private Map<String, Object> readObject() throws IOException {
+      Map<String, Object> object = new LinkedHashMap<String, Object>();
+      position++;
+      skipWhitespace();
+      if (consume('}')) {
+        return object;
+      }
+      do {
+        skipWhitespace();
+        if (position == json.length() || json.charAt(position) != '"') {
+          throw syntaxError("Expected a name");
+        }
+        String name = readString();
+        skipWhitespace();
+        expect(':');
+        if (object.containsKey(name)) {
+          throw syntaxError("Duplicate name " + name);
+        }
+        object.put(name, readValue());
+        skipWhitespace();
+      } while (consume(','));
+      expect('}');
+      return object;
+    }
+
+    private List<Object> readArray() throws IOException {
+      List<Object> array = new ArrayList<Object>();
+      position++;
+      skipWhitespace();
+      if (consume(']')) {
+        return array;
+      }
+      do {
+        array.add(readValue());
+        skipWhitespace();
+      } while (consume(','));
+      expect(']');
+      return array;
+    }
+
+    private String readString() throws IOException {
+      StringBuilder value = new StringBuilder();
+      position++;
+      while (position < json.length()) {
+        char c = json.charAt(position++);
+        if (c == '"') {
+          return value.toString();
+        } else if (c < 0x20) {
+          throw syntaxError("Unescaped control character");
+        } else if (c != '\\') {
+          value.append(c);
+        } else if (position == json.length()) {
+          break;
+        } else {
+          char escaped = json.charAt(position++);
+          int index = "\"\\/bfnrt".indexOf(escaped);
+          if (index >= 0) {
+            value.append("\"\\/\b\f\n\r\t".charAt(index));
+          } else if (escaped == 'u' && position + 4 <= json.length()) {
+            value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+            position += 4;
+          } else {
+            throw syntaxError("Invalid escape");
+          }
+        }
+      }
+      throw syntaxError("Unterminated string");
+    }
+
+    private Number readNumber() throws IOException {
+      int start = position;
+      while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+        position++;
+      }
+      String number = json.substring(start, position);
+      if (!number.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?")) {
+        throw syntaxError("Invalid value");
+      }
+      return Double.valueOf(number);
+    }
+
+    private void skipWhitespace() {
+      while (position < json.length() && " \t\n\r".indexOf(json.charAt(position)) >= 0) {
+        position++;
+      }
+    }
+
+    private boolean consume(char c) {
+      if (position < json.length() && json.charAt(position) == c) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(char c) throws IOException {
+      if (!consume(c)) {
+        throw syntaxError("Expected " + c);
+      }
+    }
+
+    private IOException syntaxError(String message) {
+      return new IOException(message + " at " + position + " of " + json);
+    }
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2015 Hannes Dorfmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.apkplug;
+
+import com.apkplug.runtime.Dispatcher;
+import com.apkplug.runtime.Mailbox;
+import com.apkplug.runtime.MailboxProxy;
+import com.google.common.base.Joiner;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Test;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import static com.google.common.truth.Truth.assertAbout;
+import static com.google.testing.compile.JavaSourceSubjectFactory.javaSource;
+import static com.google.testing.compile.JavaSourcesSubjectFactory.javaSources;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compile tests of the checks the processor runs on {@code @Service} classes
+ */
+public class ServiceProcessorTest {
+
+  @Test public void cachedMethodWithoutArraysCompiles() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Calculator", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"Calc\")",
+        "public class Calculator {",
+        "  @Export(cacheSize = 16) public int add(int a, int b) { return a + b; }",
+        "  @Export(cacheSize = 16) public String join(String a, Object b) { return a + b; }",
+        "}"));
+
+    assertAbout(javaSource()).that(source)
+        .processedWith(new FactoryProcessor())
+        .compilesWithoutError();
+  }
+
+  @Test public void cachedMethodWithArrayParameterFails() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Hasher", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"Hash\")",
+        "public class Hasher {",
+        "  @Export(cacheSize = 16) public int hash(String seed,",
+        "      byte[] data) { return data.length; }",
+        "}"));
+
+    assertAbout(javaSource()).that(source)
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("Methods with array parameters can't be cached with @Export")
+        .in(source).onLine(7);
+  }
+
+  @Test public void providedServicesStartInWaves() {
+    assertAbout(javaSources()).that(Arrays.asList(
+        service("Config", ""),
+        service("Store", "@Provided(Config.class)"),
+        service("Cache", "@Provided({ Config.class, Store.class })")))
+        .processedWith(new FactoryProcessor())
+        .compilesWithoutError();
+  }
+
+  @Test public void providedCycleFails() {
+    assertAbout(javaSources()).that(Arrays.asList(
+        service("Config", "@Provided(Cache.class)"),
+        service("Store", "@Provided(Config.class)"),
+        service("Cache", "@Provided(Store.class)")))
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("Cycle in the services declared with @Provided");
+  }
+
+  @Test public void providedClassThatIsNotAServiceFails() {
+    JavaFileObject other = JavaFileObjects.forSourceString("test.Other",
+        "package test; public class Other {}");
+    assertAbout(javaSources()).that(Arrays.asList(other, service("Store", "@Provided(Other.class)")))
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("only classes annotated with @Service can be provided");
+  }
+
+  @Test public void remoteServiceWithEncodableTypesCompiles() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Storage", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "import java.nio.ByteBuffer;",
+        "@Service(name = \"Store\", remote = true)",
+        "public class Storage {",
+        "  @Export public byte[] read(String key, long offset) { return null; }",
+        "  @Export public void write(String key, ByteBuffer data) {}",
+        "  @Export public boolean remove(int slot, double weight, char tag) { return true; }",
+        "}"));
+
+    assertAbout(javaSource()).that(source)
+        .processedWith(new FactoryProcessor())
+        .compilesWithoutError();
+  }
+
+  @Test public void remoteServiceWithUnsupportedTypeFails() {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Storage", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "import java.util.List;",
+        "@Service(name = \"Store\", remote = true)",
+        "public class Storage {",
+        "  @Export public List<String> keys(String prefix) { return null; }",
+        "}"));
+
+    assertAbout(javaSource()).that(source)
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("The method keys(java.lang.String) of test.Storage can not be called"
+            + " remotely with @Service(remote = true): java.util.List<java.lang.String> is not a"
+            + " primitive, String, byte[] or ByteBuffer");
+  }
+
+  @Test public void methodIdCollisionFails() {
+    // "Aa()" and "BB()" have the same String.hashCode(), which is the method id
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Clash", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"ClashService\", dispatcher = true)",
+        "public class Clash {",
+        "  @Export public int Aa() { return 1; }",
+        "  @Export public int BB() { return 2; }",
+        "}"));
+
+    assertAbout(javaSource()).that(source)
+        .processedWith(new FactoryProcessor())
+        .failsToCompile()
+        .withErrorContaining("Conflict: The methods Aa() and BB() of test.Clash have the same"
+            + " method id");
+  }
+
+  @Test public void activatorStopUnregistersEveryService() throws Exception {
+    for (int count : new int[] { 3, FactoryProcessor.SERVICES_PER_CHUNK + 4 }) {
+      List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+      for (int i = 0; i < count; i++) {
+        sources.add(service("S" + i, ""));
+      }
+      BundleActivator activator = (BundleActivator) GeneratedCode.compile(sources)
+          .load("test." + FactoryProcessor.SIMPLE_BUNDLE).newInstance();
+      FakeBundleContext context = new FakeBundleContext();
+
+      activator.start(context);
+      assertEquals(count, context.registeredNames().size());
+      activator.stop(context);
+      assertEquals(Collections.<String>emptyList(), context.registeredNames());
+    }
+  }
+
+  @Test public void dispatcherResolvesMethodsAndChecksArguments() throws Exception {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Calc", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"CalcService\", dispatcher = true)",
+        "public class Calc {",
+        "  @Export public int add(int a, int b) { return a + b; }",
+        "  @Export public long add(long a, long b) { return a + b; }",
+        "  @Export public String name() { return \"calc\"; }",
+        "}"));
+    JavaFileObject dispatchers = JavaFileObjects.forSourceString("test.Dispatchers",
+        Joiner.on('\n').join(
+            "package test;",
+            "public class Dispatchers {",
+            "  public static com.apkplug.runtime.Dispatcher calc() {",
+            "    return new CalcServiceDispatcher(new CalcServiceProxy(new Calc()));",
+            "  }",
+            "}"));
+    Dispatcher dispatcher = (Dispatcher) GeneratedCode.compile(Arrays.asList(source, dispatchers))
+        .load("test.Dispatchers").getMethod("calc").invoke(null);
+
+    int addInts = dispatcher.methodId("add(int,int)");
+    int addLongs = dispatcher.methodId("add(long,long)");
+    assertEquals(5, dispatcher.invoke(addInts, new Object[] { 2, 3 }));
+    assertEquals(5L, dispatcher.invoke(addLongs, new Object[] { 2L, 3L }));
+    // Names that are not overloaded resolve without the parameter types
+    assertEquals(dispatcher.methodId("name()"), dispatcher.methodId("name"));
+    assertEquals("calc", dispatcher.invoke(dispatcher.methodId("name"), null));
+
+    try {
+      dispatcher.methodId("add");
+      fail("add is overloaded");
+    } catch (IllegalArgumentException expected) {
+      assertEquals("Unknown method: add", expected.getMessage());
+    }
+    try {
+      dispatcher.invoke(addInts, new Object[] { 2 });
+      fail("add(int,int) takes two arguments");
+    } catch (IllegalArgumentException expected) {
+      assertEquals("add(int,int) takes 2 arguments, got 1", expected.getMessage());
+    }
+    try {
+      dispatcher.invoke(42, new Object[0]);
+      fail("42 is no method id");
+    } catch (IllegalArgumentException expected) {
+      assertEquals("Unknown method id: 42", expected.getMessage());
+    }
+  }
+
+  @Test public void ungetServiceShutsDownTheMailboxOfABundleScopedProxy() throws Exception {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Log", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"LogService\", scope = Service.Scope.BUNDLE, mailboxCapacity = 16)",
+        "public class Log {",
+        "  @Export public void append(String line) {}",
+        "}"));
+    BundleActivator activator = (BundleActivator) GeneratedCode.compile(
+        Collections.singletonList(source)).load("test." + FactoryProcessor.SIMPLE_BUNDLE)
+        .newInstance();
+    FakeBundleContext context = new FakeBundleContext();
+    activator.start(context);
+
+    ServiceReference reference = context.getServiceReference("test.Log");
+    Mailbox mailbox = ((MailboxProxy) context.getService(reference)).getMailbox();
+    assertFalse(mailbox.isShutdown());
+    context.ungetService(reference);
+
+    assertTrue(mailbox.isShutdown());
+    activator.stop(context);
+  }
+
+  @Test public void serviceFromClassFileKeepsParameterNames() throws Exception {
+    GeneratedCode generated = GeneratedCode.compileFromClassFiles(
+        Collections.singletonList(stripedService()), Collections.singletonList("test.Store"), "-g");
+
+    assertTrue(generated.read("test/StoreService.java").contains("int get(String key, int def);"));
+  }
+
+  @Test public void stripeKeyOfServiceFromClassFileWithoutNamesFails() throws Exception {
+    try {
+      GeneratedCode.compileFromClassFiles(Collections.singletonList(stripedService()),
+          Collections.singletonList("test.Store"), "-g:none");
+    } catch (AssertionError expected) {
+      assertTrue(expected.getMessage(), expected.getMessage().contains("stripeKey() of @Export"
+          + " names no parameter: key. The parameter names of test.Store are read from a class"
+          + " file that doesn't contain them, compile it with -g"));
+      return;
+    }
+    fail("Processing test.Store without parameter names should fail");
+  }
+
+  @Test public void locatorPicksTheHighestRankingServiceMatchingItsFilter() throws Exception {
+    JavaFileObject source = JavaFileObjects.forSourceString("test.Greeter", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"GreeterService\")",
+        "public class Greeter {",
+        "  @Export public String greet() { return \"hello\"; }",
+        "}"));
+    GeneratedCode generated = GeneratedCode.compile(Collections.singletonList(source));
+    Class<?> serviceClass = generated.load("test.GreeterService");
+    Class<?> locatorClass = generated.load("test.GreeterService" + FactoryProcessor.LOCATOR_SUFFIX);
+    String serviceName = (String) locatorClass.getField("SERVICE_NAME").get(null);
+    String filter = (String) locatorClass.getField("FILTER").get(null);
+    FakeBundleContext context = new FakeBundleContext();
+    context.registerService("test.Other", greeter(serviceClass, "other"), ranking(10));
+    context.registerService(serviceName, greeter(serviceClass, "low"), ranking(1));
+    context.registerService(serviceName, greeter(serviceClass, "high"), ranking(5));
+
+    Object locator = locatorClass.getConstructor(BundleContext.class).newInstance(context);
+    Method get = locatorClass.getMethod("get");
+    assertEquals("high", greet(get.invoke(locator)));
+    assertEquals(Arrays.asList(filter, filter), context.filters);
+
+    // Equal rankings keep the older registration, a higher one takes over
+    context.registerService(serviceName, greeter(serviceClass, "tie"), ranking(5));
+    assertEquals("high", greet(get.invoke(locator)));
+    ServiceRegistration highest =
+        context.registerService(serviceName, greeter(serviceClass, "highest"), ranking(7));
+    assertEquals("highest", greet(get.invoke(locator)));
+    highest.unregister();
+    assertEquals("high", greet(get.invoke(locator)));
+
+    locatorClass.getMethod("close").invoke(locator);
+    assertTrue(context.listeners.isEmpty());
+  }
+
+  private static Object greeter(Class<?> serviceClass, final String greeting) {
+    return Proxy.newProxyInstance(serviceClass.getClassLoader(), new Class<?>[] { serviceClass },
+        new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            return greeting;
+          }
+        });
+  }
+
+  private static String greet(Object greeter) throws Exception {
+    return (String) greeter.getClass().getMethod("greet").invoke(greeter);
+  }
+
+  private static Hashtable<String, Object> ranking(int ranking) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(Constants.SERVICE_RANKING, ranking);
+    return properties;
+  }
+
+  private static JavaFileObject stripedService() {
+    return JavaFileObjects.forSourceString("test.Store", Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"StoreService\", concurrency = Service.Concurrency.STRIPED)",
+        "public class Store {",
+        "  @Export(stripeKey = \"key\") public int get(String key, int def) { return def; }",
+        "}"));
+  }
+
+  private static JavaFileObject service(String name, String provided) {
+    return JavaFileObjects.forSourceString("test." + name, Joiner.on('\n').join(
+        "package test;",
+        "import com.apkplug.Export;",
+        "import com.apkplug.Provided;",
+        "import com.apkplug.Service;",
+        "@Service(name = \"" + name + "Service\")",
+        provided,
+        "public class " + name + " {",
+        "  @Export public int version() { return 1; }",
+        "}"));
+  }
+}